@@ -0,0 +1,24 @@
+package fi.seco.rdfio;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the standard JMH command line options, always
+ * adding the GC profiler so that allocation rates are reported next to the
+ * scores. For example, to parse gzipped N-Triples of a million quads:
+ *
+ * <pre>
+ * java -jar benchmarks.jar ReadBenchmark -p format=nt -p compression=.gz -p quads=1000000
+ * </pre>
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		new Runner(new OptionsBuilder().parent(cmd).addProfiler(GCProfiler.class).build()).run();
+	}
+
+}
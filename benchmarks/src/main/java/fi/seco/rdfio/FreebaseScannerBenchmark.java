@@ -0,0 +1,75 @@
+package fi.seco.rdfio;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fi.seco.rdfobject.ITriple;
+import fi.seco.rdfobject.ITripleVisitor;
+
+/**
+ * The line transformation of {@link FreebaseParser} in isolation, without
+ * reading or decoding input. Scores are per line.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FreebaseScannerBenchmark {
+
+	private static final int LINES = 10000;
+
+	private char[][] lines;
+	private FreebaseParser.QuadScanner scanner;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(SyntheticData.file("tsv", "", LINES)), "UTF-8"));
+		List<char[]> l = new ArrayList<char[]>(LINES);
+		try {
+			String line;
+			while ((line = r.readLine()) != null)
+				l.add(line.toCharArray());
+		} finally {
+			r.close();
+		}
+		lines = l.toArray(new char[l.size()][]);
+		scanner = new FreebaseParser.QuadScanner();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(LINES)
+	public void transformQuad(final Blackhole bh) {
+		ITripleVisitor v = new ITripleVisitor() {
+
+			@Override
+			public void visit(ITriple t) {
+				bh.consume(t);
+			}
+
+		};
+		for (char[] line : lines)
+			scanner.transformQuad(line, 0, line.length, v);
+	}
+
+}
@@ -0,0 +1,99 @@
+package fi.seco.rdfio;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import fi.seco.rdfio.RDFReader.IRDFHandler;
+import fi.seco.rdfobject.IQuad;
+
+/**
+ * Parse throughput of {@link RDFReader} by format and compression, reading
+ * inputs generated by {@link SyntheticData}. The time is per parsed file, the
+ * <code>quads</code> counter gives quads per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReadBenchmark {
+
+	@Param({ "nt", "nq", "ttl", "rdf", "tsv", "tar" })
+	public String format;
+
+	@Param({ "", ".gz", ".bz2", ".xz" })
+	public String compression;
+
+	@Param({ "100000" })
+	public int quads;
+
+	private String url;
+
+	/**
+	 * Counts the parsed quads, reported by JMH as a rate
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long quads;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			quads = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		File f = SyntheticData.file(format, compression, quads);
+		url = f.toURI().toString();
+	}
+
+	private static IRDFHandler handler(final Blackhole bh, final Counters c) {
+		return new IRDFHandler() {
+
+			@Override
+			public void visit(IQuad q) {
+				bh.consume(q);
+				c.quads++;
+			}
+
+			@Override
+			public void setNameSpace(String prefix, String ns) {}
+
+			@Override
+			public void setBaseIRI(String baseIRI) {}
+
+			@Override
+			public void comment(String comment) {}
+
+		};
+	}
+
+	@Benchmark
+	public void serial(Blackhole bh, Counters c) throws Exception {
+		RDFReader.read(url, handler(bh, c));
+	}
+
+	@Benchmark
+	public void parallel(Blackhole bh, Counters c) throws Exception {
+		RDFReader.read(url, handler(bh, c), 0, false);
+	}
+
+}
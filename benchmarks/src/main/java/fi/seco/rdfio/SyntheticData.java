@@ -0,0 +1,214 @@
+package fi.seco.rdfio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import fi.seco.rdfio.RDFWriter.IRDFWriter;
+import fi.seco.rdfobject.BNodeResourceRDFObject;
+import fi.seco.rdfobject.IQuad;
+import fi.seco.rdfobject.IRDFObject;
+import fi.seco.rdfobject.LiteralRDFObject;
+import fi.seco.rdfobject.Quad;
+import fi.seco.rdfobject.URIResourceRDFObject;
+
+/**
+ * Generates deterministic synthetic inputs for the benchmarks. Subjects come
+ * in runs like in real dumps, and predicates and objects follow a skewed
+ * distribution, so that caches and grouping writers see realistic reuse.
+ * Generated files are kept in the directory given by the
+ * <code>rdfio.bench.dir</code> system property (by default
+ * <code>rdfio-bench</code> in the system temporary directory) and reused by
+ * later runs.
+ */
+public final class SyntheticData {
+
+	/** The formats inputs can be generated in, by extension */
+	public static final String[] FORMATS = { "nt", "nq", "ttl", "rdf", "tsv", "tar" };
+	/** The compressions inputs can be generated with, by extension */
+	public static final String[] COMPRESSIONS = { "", ".gz", ".bz2", ".xz" };
+
+	static final String NS = "http://example.org/";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long SEED = 4711;
+	private static final String[] WORDS = { "alpha", "beta", "gamma", "delta", "epsilon", "zeta", "eta", "theta", "iota", "kappa", "lambda", "mu", "nu", "xi", "omicron", "pi", "rho", "sigma", "tau", "upsilon", "phi", "chi", "psi", "omega" };
+	private static final Locale[] LANGS = { null, null, Locale.ENGLISH, new Locale("fi"), Locale.GERMAN };
+	private static final String XSD_INT = "http://www.w3.org/2001/XMLSchema#int";
+	private static final int PREDICATES = 64;
+	private static final int QUADS_PER_SUBJECT = 8;
+	private static final int QUADS_PER_GRAPH = 1000;
+
+	private SyntheticData() {}
+
+	/**
+	 * @return a number below n, small numbers being much more likely
+	 */
+	private static int skewed(Random r, int n) {
+		double d = r.nextDouble();
+		return (int) (n * d * d * d);
+	}
+
+	private static String words(Random r, int min, int max) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = min + r.nextInt(max - min + 1); i > 0; i--) {
+			if (sb.length() > 0) sb.append(' ');
+			sb.append(WORDS[skewed(r, WORDS.length)]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Generate quads in memory
+	 *
+	 * @param count
+	 *            the number of quads
+	 */
+	public static List<IQuad> quads(int count) {
+		Random r = new Random(SEED);
+		int subjects = Math.max(1, count / QUADS_PER_SUBJECT);
+		IRDFObject[] predicates = new IRDFObject[PREDICATES];
+		for (int i = 0; i < PREDICATES; i++)
+			predicates[i] = new URIResourceRDFObject(NS + "vocab/p" + i);
+		List<IQuad> ret = new ArrayList<IQuad>(count);
+		IRDFObject s = null, g = null;
+		for (int i = 0; i < count; i++) {
+			if (i % QUADS_PER_SUBJECT == 0) s = new URIResourceRDFObject(NS + "resource/" + i / QUADS_PER_SUBJECT);
+			if (i % QUADS_PER_GRAPH == 0) g = new URIResourceRDFObject(NS + "graph/" + i / QUADS_PER_GRAPH);
+			IRDFObject o;
+			int kind = r.nextInt(10);
+			if (kind < 4)
+				o = new URIResourceRDFObject(NS + "resource/" + skewed(r, subjects));
+			else if (kind < 8)
+				o = new LiteralRDFObject(words(r, 1, 12), LANGS[r.nextInt(LANGS.length)]);
+			else if (kind < 9)
+				o = new LiteralRDFObject(Integer.toString(r.nextInt(100000)), null, XSD_INT);
+			else o = new BNodeResourceRDFObject("b" + skewed(r, subjects));
+			ret.add(new Quad(s, predicates[skewed(r, PREDICATES)], o, g));
+		}
+		return ret;
+	}
+
+	/**
+	 * Get a generated input file, generating it if it doesn't exist yet
+	 *
+	 * @param format
+	 *            one of {@link #FORMATS}
+	 * @param compression
+	 *            one of {@link #COMPRESSIONS}
+	 * @param quads
+	 *            the approximate number of quads in the input
+	 */
+	public static File file(String format, String compression, int quads) throws IOException {
+		File dir = new File(System.getProperty("rdfio.bench.dir", new File(System.getProperty("java.io.tmpdir"), "rdfio-bench").getPath()));
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Couldn't create " + dir);
+		File f = new File(dir, "data-" + quads + "." + format + compression);
+		if (f.exists()) return f;
+		// generate under a temporary name, so that interrupted runs don't leave partial files
+		File tmp = new File(dir, "tmp-" + f.getName());
+		if ("tsv".equals(format))
+			writeFreebase(tmp, quads);
+		else if ("tar".equals(format))
+			writeSindiceDETar(tmp, quads);
+		else {
+			IRDFWriter w = RDFWriter.getWriter(tmp.getPath(), false, 0);
+			if (w == null) throw new IOException("Couldn't create a writer for " + tmp);
+			w.setNameSpace("ex", NS + "vocab/");
+			w.endProlog();
+			for (IQuad q : quads(quads))
+				w.visit(q);
+			w.close();
+		}
+		if (!tmp.renameTo(f)) throw new IOException("Couldn't rename " + tmp + " to " + f);
+		return f;
+	}
+
+	private static String mid(int i) {
+		return "/m/0" + Integer.toString(i, 36);
+	}
+
+	private static void writeFreebase(File f, int lines) throws IOException {
+		Random r = new Random(SEED);
+		int subjects = Math.max(1, lines / QUADS_PER_SUBJECT);
+		Writer w = new OutputStreamWriter(CompressedOutputStreams.create(f.getPath(), 0), UTF8);
+		try {
+			for (int i = 0; i < lines; i++) {
+				String s = mid(i / QUADS_PER_SUBJECT);
+				switch (r.nextInt(5)) {
+				case 0:
+					w.write(s + "\t/type/object/name\t/lang/" + (r.nextBoolean() ? "en" : "fi") + "\t" + words(r, 1, 4) + "\n");
+					break;
+				case 1:
+					w.write(s + "\t/type/object/key\t/wikipedia/en\t" + words(r, 1, 3).replace(' ', '_') + "\n");
+					break;
+				case 2:
+					w.write(s + "\t/people/person/height_meters\t\t1." + r.nextInt(100) + "\n");
+					break;
+				default:
+					w.write(s + "\t/domain" + skewed(r, 16) + "/type" + skewed(r, 8) + "/property" + skewed(r, PREDICATES) + "\t" + mid(skewed(r, subjects)) + "\n");
+				}
+			}
+		} finally {
+			w.close();
+		}
+	}
+
+	private static void writeEntry(TarArchiveOutputStream out, String name, String data) throws IOException {
+		byte[] b = data.getBytes(UTF8);
+		TarArchiveEntry e = new TarArchiveEntry(name);
+		e.setSize(b.length);
+		out.putArchiveEntry(e);
+		out.write(b);
+		out.closeArchiveEntry();
+	}
+
+	private static void writeSindiceDETar(File f, int quads) throws IOException {
+		List<IQuad> data = quads(quads);
+		OutputStream os = CompressedOutputStreams.create(f.getPath(), 0);
+		TarArchiveOutputStream out = new TarArchiveOutputStream(os);
+		try {
+			StringBuilder outgoing = new StringBuilder();
+			StringBuilder incoming = new StringBuilder();
+			int entity = 0;
+			for (int i = 0; i < data.size(); i += QUADS_PER_SUBJECT) {
+				IQuad first = data.get(i);
+				outgoing.setLength(0);
+				incoming.setLength(0);
+				for (int j = i; j < Math.min(data.size(), i + QUADS_PER_SUBJECT); j++) {
+					IQuad q = data.get(j);
+					// every other object resource refers back to the entity
+					if (q.getObject().isURIResource() && j % 2 == 0)
+						incoming.append('<').append(q.getObject().getURI()).append("> <").append(q.getProperty().getURI()).append("> <").append(first.getSubject().getURI()).append("> .\n");
+					else outgoing.append('<').append(first.getSubject().getURI()).append("> <").append(q.getProperty().getURI()).append("> ").append(toNTriples(q.getObject())).append(" .\n");
+				}
+				String dir = String.format("%08d/", entity++);
+				writeEntry(out, dir + "metadata", first.getGraph().getURI() + "\n" + first.getSubject().getURI() + "\n");
+				writeEntry(out, dir + "outgoing-triples.nt", outgoing.toString());
+				writeEntry(out, dir + "incoming-triples.nt", incoming.toString());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String toNTriples(IRDFObject o) {
+		if (o.isURIResource()) return "<" + o.getURI() + ">";
+		if (o.isBlankNode()) return "_:" + o.getURI();
+		StringBuilder sb = new StringBuilder().append('"').append(o.getValue()).append('"');
+		if (o.getLang() != null)
+			sb.append('@').append(o.getLang().getLanguage());
+		else if (o.getDatatype() != null) sb.append("^^<").append(o.getDatatype()).append('>');
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,91 @@
+package fi.seco.rdfio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.seco.rdfio.RDFWriter.IRDFWriter;
+import fi.seco.rdfobject.IQuad;
+
+/**
+ * Serialization throughput of the writers of {@link RDFWriter} by format and
+ * compression, writing quads generated by {@link SyntheticData} into a
+ * temporary file. The time is per written file, the <code>quads</code>
+ * counter gives quads per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WriteBenchmark {
+
+	@Param({ "nt", "nq", "ttl", "n3", "rdf", "trig", "trix", "rdfd" })
+	public String format;
+
+	@Param({ "", ".gz", ".bz2", ".xz" })
+	public String compression;
+
+	@Param({ "false", "true" })
+	public boolean pretty;
+
+	@Param({ "100000" })
+	public int quads;
+
+	private List<IQuad> data;
+	private File out;
+
+	/**
+	 * Counts the written quads, reported by JMH as a rate
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Counters {
+		public long quads;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			quads = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		data = SyntheticData.quads(quads);
+		out = File.createTempFile("rdfio-bench", "." + format + compression);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		out.delete();
+	}
+
+	@Benchmark
+	public void write(Counters c) {
+		IRDFWriter w = RDFWriter.getWriter(out.getPath(), pretty, 0);
+		w.setNameSpace("ex", SyntheticData.NS + "vocab/");
+		w.endProlog();
+		for (IQuad q : data)
+			w.visit(q);
+		w.close();
+		c.quads += data.size();
+	}
+
+}
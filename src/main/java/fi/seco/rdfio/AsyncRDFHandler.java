@@ -0,0 +1,298 @@
+package fi.seco.rdfio;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
+import fi.seco.rdfio.RDFReader.IRDFHandler;
+import fi.seco.rdfobject.IQuad;
+
+/**
+ * An RDF handler that decouples the thread producing quads and metadata (the
+ * parser) from the handler consuming them. Events are passed through a
+ * preallocated single producer, single consumer ring buffer to a consumer
+ * thread, which calls the wrapped handler. If the wrapped handler accepts
+ * batches, it is passed all events available at once as a single batch.
+ * <p>
+ * Only a single thread may call the handler methods. An exception thrown by
+ * the wrapped handler is rethrown to the producer from the next call into
+ * this handler, or from {@link #close()}. A failing producer should call
+ * {@link #abort(Throwable)}.
+ */
+public class AsyncRDFHandler implements IRDFBatchHandler {
+
+	/** The default number of slots in the ring buffer */
+	public static final int DEFAULT_CAPACITY = 8192;
+
+	/**
+	 * How a thread waits for the other side of the ring buffer
+	 */
+	public static enum WaitStrategy {
+		/** Spin without yielding. Lowest latency, burns a core per side. */
+		BUSY_SPIN {
+			@Override
+			int idle(int counter) {
+				return counter + 1;
+			}
+		},
+		/** Spin for a while, then yield the processor */
+		YIELDING {
+			@Override
+			int idle(int counter) {
+				if (counter < 100) return counter + 1;
+				Thread.yield();
+				return counter;
+			}
+		},
+		/** Spin, yield and finally park for increasing periods */
+		SLEEPING {
+			@Override
+			int idle(int counter) {
+				if (counter < 100) return counter + 1;
+				if (counter < 200) {
+					Thread.yield();
+					return counter + 1;
+				}
+				LockSupport.parkNanos(Math.min(1000L << Math.min(counter - 200, 10), 1000000L));
+				return counter + 1;
+			}
+		};
+
+		abstract int idle(int counter);
+	}
+
+	private static final byte QUAD = 0;
+	private static final byte NAMESPACE = 1;
+	private static final byte BASE = 2;
+	private static final byte COMMENT = 3;
+	private static final byte END = 4;
+
+	private final IRDFHandler handler;
+	private final WaitStrategy waitStrategy;
+	private final int mask;
+	private final byte[] types;
+	private final IQuad[] quads;
+	private final String[] strings1;
+	private final String[] strings2;
+	private final IQuad[] batch;
+
+	/** next sequence to be written by the producer, published */
+	private final AtomicLong head = new AtomicLong();
+	/** next sequence to be read by the consumer, published */
+	private final AtomicLong tail = new AtomicLong();
+	/** producer's cached view of tail */
+	private long cachedTail;
+	/** producer's next unpublished sequence */
+	private long next;
+
+	private volatile Throwable consumerFailure;
+	private volatile Throwable producerFailure;
+	private boolean closed;
+	private final Thread consumer;
+
+	public AsyncRDFHandler(IRDFHandler handler) {
+		this(handler, DEFAULT_CAPACITY, WaitStrategy.SLEEPING);
+	}
+
+	/**
+	 * @param handler
+	 *            the handler to pass events to on the consumer thread
+	 * @param capacity
+	 *            the number of slots in the ring buffer, rounded up to a power
+	 *            of two
+	 * @param waitStrategy
+	 *            how to wait when the buffer is full or empty
+	 */
+	public AsyncRDFHandler(IRDFHandler handler, int capacity, WaitStrategy waitStrategy) {
+		this.handler = handler;
+		this.waitStrategy = waitStrategy;
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.types = new byte[size];
+		this.quads = new IQuad[size];
+		this.strings1 = new String[size];
+		this.strings2 = new String[size];
+		this.batch = handler instanceof IRDFBatchHandler ? new IQuad[size] : null;
+		this.consumer = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				consume();
+			}
+
+		}, "rdfio-async-handler");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+
+	private void checkConsumer() {
+		Throwable t = consumerFailure;
+		if (t != null) {
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			throw new RuntimeException(t);
+		}
+	}
+
+	/**
+	 * Claim the next slot, waiting for space if needed
+	 */
+	private int claim() {
+		if (closed) throw new IllegalStateException("Handler closed");
+		long wrap = next - mask;
+		if (cachedTail < wrap) {
+			int counter = 0;
+			while ((cachedTail = tail.get()) < wrap) {
+				checkConsumer();
+				counter = waitStrategy.idle(counter);
+			}
+		}
+		return (int) (next++ & mask);
+	}
+
+	private void publish() {
+		head.lazySet(next);
+	}
+
+	@Override
+	public void visit(IQuad q) {
+		checkConsumer();
+		int i = claim();
+		types[i] = QUAD;
+		quads[i] = q;
+		publish();
+	}
+
+	@Override
+	public void visit(IQuad[] qs, int count) {
+		checkConsumer();
+		for (int j = 0; j < count; j++) {
+			if (next - cachedTail > mask) publish(); // let the consumer catch up before waiting for it
+			int i = claim();
+			types[i] = QUAD;
+			quads[i] = qs[j];
+		}
+		publish();
+	}
+
+	private void put(byte type, String s1, String s2) {
+		checkConsumer();
+		int i = claim();
+		types[i] = type;
+		strings1[i] = s1;
+		strings2[i] = s2;
+		publish();
+	}
+
+	@Override
+	public void setNameSpace(String prefix, String ns) {
+		put(NAMESPACE, prefix, ns);
+	}
+
+	@Override
+	public void setBaseIRI(String baseIRI) {
+		put(BASE, baseIRI, null);
+	}
+
+	@Override
+	public void comment(String comment) {
+		put(COMMENT, comment, null);
+	}
+
+	private void consume() {
+		long seq = 0;
+		try {
+			while (producerFailure == null) {
+				long available;
+				int counter = 0;
+				while ((available = head.get()) <= seq) {
+					if (producerFailure != null) return;
+					counter = waitStrategy.idle(counter);
+				}
+				int n = 0;
+				for (; seq < available; seq++) {
+					int i = (int) (seq & mask);
+					byte type = types[i];
+					if (type == QUAD) {
+						IQuad q = quads[i];
+						quads[i] = null;
+						if (batch != null)
+							batch[n++] = q;
+						else handler.visit(q);
+						continue;
+					}
+					if (n > 0) {
+						((IRDFBatchHandler) handler).visit(batch, n);
+						n = 0;
+					}
+					String s1 = strings1[i];
+					String s2 = strings2[i];
+					strings1[i] = null;
+					strings2[i] = null;
+					switch (type) {
+					case NAMESPACE:
+						handler.setNameSpace(s1, s2);
+						break;
+					case BASE:
+						handler.setBaseIRI(s1);
+						break;
+					case COMMENT:
+						handler.comment(s1);
+						break;
+					case END:
+						tail.lazySet(seq + 1);
+						return;
+					}
+				}
+				if (n > 0) ((IRDFBatchHandler) handler).visit(batch, n);
+				tail.lazySet(seq);
+			}
+		} catch (Throwable t) {
+			consumerFailure = t;
+		}
+	}
+
+	/**
+	 * Wait for all events to be passed to the wrapped handler and stop the
+	 * consumer thread. Rethrows any exception thrown by the wrapped handler.
+	 * Does not close the wrapped handler.
+	 */
+	public void close() {
+		if (!closed) {
+			if (consumerFailure == null) {
+				int i = claim();
+				types[i] = END;
+				publish();
+			}
+			closed = true;
+			join();
+		}
+		checkConsumer();
+	}
+
+	/**
+	 * Stop the consumer thread without passing pending events on, for when
+	 * the producer fails
+	 *
+	 * @param cause
+	 *            the failure of the producer
+	 */
+	public void abort(Throwable cause) {
+		producerFailure = cause != null ? cause : new IllegalStateException("Aborted");
+		closed = true;
+		consumer.interrupt();
+		join();
+	}
+
+	private void join() {
+		boolean interrupted = false;
+		while (consumer.isAlive())
+			try {
+				consumer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+}
@@ -0,0 +1,39 @@
+package fi.seco.rdfio;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Replaces small files atomically, for state that must survive a crash.
+ */
+final class AtomicFiles {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private AtomicFiles() {}
+
+	/**
+	 * Write a file by writing a temporary file next to it, forcing it to disk
+	 * and moving it over the file in one atomic step, so that a crash leaves
+	 * either the old or the new content in place
+	 *
+	 * @throws java.nio.file.AtomicMoveNotSupportedException
+	 *             if the file system can't replace the file atomically
+	 */
+	public static void write(File f, String content) throws IOException {
+		File tmp = new File(f.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(content.getBytes(UTF8));
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+}
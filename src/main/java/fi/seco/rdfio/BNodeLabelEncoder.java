@@ -0,0 +1,43 @@
+package fi.seco.rdfio;
+
+/**
+ * Encodes blank node labels into the characters allowed in N-Triples, N-Quads
+ * and Turtle labels. ASCII letters, digits, <code>_</code> and
+ * <code>-</code> (except first) are kept, <code>x</code> is escaped as
+ * <code>xx</code> and any other character as <code>x</code> followed by four
+ * hex digits of its UTF-16 code unit. As the escape character is escaped too,
+ * distinct labels always encode to distinct labels.
+ */
+final class BNodeLabelEncoder {
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private BNodeLabelEncoder() {}
+
+	private static boolean isPlain(char c, int i) {
+		return c >= 'a' && c <= 'z' && c != 'x' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '_' || c == '-' && i > 0;
+	}
+
+	/**
+	 * @return the encoded label, the label itself if it needs no escapes
+	 */
+	public static String encode(String label) {
+		int n = label.length();
+		int i = 0;
+		while (i < n && isPlain(label.charAt(i), i))
+			i++;
+		if (i == n) return label;
+		StringBuilder sb = new StringBuilder(n + 16);
+		sb.append(label, 0, i);
+		for (; i < n; i++) {
+			char c = label.charAt(i);
+			if (isPlain(c, i))
+				sb.append(c);
+			else if (c == 'x')
+				sb.append("xx");
+			else sb.append('x').append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF]).append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+		}
+		return sb.toString();
+	}
+
+}
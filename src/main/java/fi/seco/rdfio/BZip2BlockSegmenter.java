@@ -0,0 +1,222 @@
+package fi.seco.rdfio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import fi.seco.rdfio.ParallelDecompressingInputStream.ISegmenter;
+import fi.seco.rdfio.ParallelDecompressingInputStream.Segment;
+
+/**
+ * Splits a (possibly concatenated) bzip2 stream into its blocks. Blocks are
+ * not byte aligned, so the source is scanned bit by bit for the block and
+ * end-of-stream magic numbers. Each block is decoded by wrapping it into a
+ * stand-alone single block bzip2 stream, whose combined CRC is the block CRC.
+ */
+final class BZip2BlockSegmenter implements ISegmenter {
+
+	private static final long BLOCK_MAGIC = 0x314159265359L;
+	private static final long EOS_MAGIC = 0x177245385090L;
+	private static final long MAGIC_MASK = 0xFFFFFFFFFFFFL;
+	private static final int MAX_SEGMENT = 16 * 1024 * 1024;
+
+	/**
+	 * A contiguous range of bits of the source, starting at a block or
+	 * end-of-stream magic number
+	 */
+	static final class BitSegment extends Segment {
+		final byte[] bits;
+		final long bitLength;
+
+		BitSegment(byte[] bits, long bitLength) {
+			this.bits = bits;
+			this.bitLength = bitLength;
+		}
+
+		private long readBits(long from, int n) {
+			long v = 0;
+			for (int i = 0; i < n; i++)
+				v = (v << 1) | ((bits[(int) ((from + i) >>> 3)] >>> (7 - ((from + i) & 7))) & 1);
+			return v;
+		}
+
+		@Override
+		public byte[] decode() {
+			if (bitLength < 80) return null;
+			long magic = readBits(0, 48);
+			if (magic == EOS_MAGIC) return new byte[0]; // stream trailer and next stream header
+			if (magic != BLOCK_MAGIC) return null;
+			BitWriter w = new BitWriter((int) ((bitLength + 7) / 8) + 16);
+			w.write('B', 8);
+			w.write('Z', 8);
+			w.write('h', 8);
+			w.write('9', 8);
+			w.copy(bits, 0, bitLength);
+			w.write(EOS_MAGIC, 48);
+			w.write(readBits(48, 32), 32);
+			try {
+				BZip2CompressorInputStream in = new BZip2CompressorInputStream(new ByteArrayInputStream(w.toByteArray()), false);
+				ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+				byte[] buf = new byte[65536];
+				int r;
+				while ((r = in.read(buf)) != -1)
+					out.write(buf, 0, r);
+				in.close();
+				return out.toByteArray();
+			} catch (IOException e) {
+				return null;
+			} catch (RuntimeException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public Segment merge(Segment next) throws IOException {
+			if (!(next instanceof BitSegment)) throw new IOException("Corrupt bzip2 data");
+			BitSegment n = (BitSegment) next;
+			if (bitLength + n.bitLength > 8L * MAX_SEGMENT) throw new IOException("Corrupt bzip2 data");
+			BitWriter w = new BitWriter((int) ((bitLength + n.bitLength + 7) / 8));
+			w.copy(bits, 0, bitLength);
+			w.copy(n.bits, 0, n.bitLength);
+			return new BitSegment(w.toByteArray(), bitLength + n.bitLength);
+		}
+	}
+
+	static final class BitWriter {
+		private byte[] buf;
+		private long bitPos;
+
+		BitWriter(int capacity) {
+			buf = new byte[Math.max(capacity, 16)];
+		}
+
+		void write(long value, int n) {
+			for (int i = n - 1; i >= 0; i--)
+				writeBit((int) (value >>> i) & 1);
+		}
+
+		private void writeBit(int bit) {
+			int i = (int) (bitPos >>> 3);
+			if (i >= buf.length) {
+				byte[] nbuf = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, nbuf, 0, buf.length);
+				buf = nbuf;
+			}
+			if (bit != 0) buf[i] |= 0x80 >>> (bitPos & 7);
+			bitPos++;
+		}
+
+		void copy(byte[] src, long from, long n) {
+			long i = 0;
+			// bit by bit until the target is byte aligned
+			for (; i < n && (bitPos & 7) != 0; i++)
+				writeBit((src[(int) ((from + i) >>> 3)] >>> (7 - ((from + i) & 7))) & 1);
+			int shift = (int) ((from + i) & 7);
+			for (; i + 8 <= n; i += 8) {
+				int s = (int) ((from + i) >>> 3);
+				int b = (src[s] & 0xFF) << shift;
+				if (shift != 0) b |= (src[s + 1] & 0xFF) >>> (8 - shift);
+				write(b & 0xFF, 8);
+			}
+			for (; i < n; i++)
+				writeBit((src[(int) ((from + i) >>> 3)] >>> (7 - ((from + i) & 7))) & 1);
+		}
+
+		byte[] toByteArray() {
+			byte[] ret = new byte[(int) ((bitPos + 7) >>> 3)];
+			System.arraycopy(buf, 0, ret, 0, ret.length);
+			return ret;
+		}
+	}
+
+	private final InputStream in;
+	private byte[] buf = new byte[4 * 1024 * 1024];
+	/** the bit position in the source of the first byte in buf */
+	private long bufStartBit;
+	private int bufLength;
+	/** the position of the next bit to scan, relative to the start of buf */
+	private long scanBit;
+	private long window;
+	private int windowBits;
+	/** the bit position of the start of the segment being collected, or -1 */
+	private long segmentStart = -1;
+	private boolean eof;
+
+	public BZip2BlockSegmenter(InputStream in) throws IOException {
+		this.in = in;
+		byte[] header = new byte[4];
+		int len = 0;
+		int r;
+		while (len < 4 && (r = in.read(header, len, 4 - len)) != -1)
+			len += r;
+		if (len < 4 || header[0] != 'B' || header[1] != 'Z' || header[2] != 'h') throw new IOException("Not a bzip2 stream");
+		bufStartBit = 32;
+	}
+
+	private BitSegment cut(long end) {
+		long from = segmentStart - bufStartBit;
+		BitWriter w = new BitWriter((int) ((end - segmentStart + 7) >>> 3));
+		w.copy(buf, from, end - segmentStart);
+		return new BitSegment(w.toByteArray(), end - segmentStart);
+	}
+
+	private void compact() {
+		// when not collecting a segment, keep enough bytes for a magic number spanning the scan position
+		int keep = segmentStart == -1 ? Math.max(0, (int) (scanBit >>> 3) - 6) : (int) ((segmentStart - bufStartBit) >>> 3);
+		if (keep == 0) {
+			if (bufLength == buf.length && buf.length < MAX_SEGMENT) {
+				byte[] nbuf = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, nbuf, 0, bufLength);
+				buf = nbuf;
+			}
+			return;
+		}
+		System.arraycopy(buf, keep, buf, 0, bufLength - keep);
+		bufLength -= keep;
+		scanBit -= 8L * keep;
+		bufStartBit += 8L * keep;
+	}
+
+	@Override
+	public Segment next() throws IOException {
+		while (true) {
+			long scanEnd = 8L * bufLength;
+			while (scanBit < scanEnd) {
+				window = (window << 1) | ((buf[(int) (scanBit >>> 3)] >>> (7 - (scanBit & 7))) & 1);
+				scanBit++;
+				if (windowBits < 48) windowBits++;
+				if (windowBits == 48) {
+					long m = window & MAGIC_MASK;
+					if (m == BLOCK_MAGIC || m == EOS_MAGIC) {
+						long magicStart = bufStartBit + scanBit - 48;
+						BitSegment ret = segmentStart != -1 ? cut(magicStart) : null;
+						segmentStart = magicStart;
+						if (ret != null) return ret;
+					}
+				}
+			}
+			if (eof) {
+				if (segmentStart == -1) return null;
+				long end = bufStartBit + scanEnd;
+				BitSegment ret = end > segmentStart ? cut(end) : null;
+				segmentStart = -1;
+				return ret;
+			}
+			compact();
+			if (bufLength == buf.length) throw new IOException("Corrupt bzip2 data: no block boundary found within " + MAX_SEGMENT + " bytes");
+			int r = in.read(buf, bufLength, buf.length - bufLength);
+			if (r == -1)
+				eof = true;
+			else bufLength += r;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
@@ -0,0 +1,304 @@
+package fi.seco.rdfio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
+import fi.seco.rdfobject.IQuad;
+import fi.seco.rdfobject.model.IRDFObjectQuadModel;
+import fi.seco.rdfobject.model.IRDFObjectTripleModel;
+
+/**
+ * An RDF handler loading quads into a model in bulk, for when
+ * {@link RDFReader#getInserter(IRDFObjectQuadModel)} is too slow. Quads are
+ * collected into batches before being added. Models implementing
+ * {@link IPresizable} are sized up front from a hint, and models implementing
+ * {@link IConcurrentlyInsertable} have the batches added by several threads
+ * in parallel. Namespaces are only put into the prefix map when they change.
+ * <p>
+ * Must be closed to add the last batch and wait for the insertion threads.
+ * Only a single thread may call the handler methods.
+ */
+public class BulkModelInserter implements IRDFBatchHandler {
+
+	/**
+	 * A model that can reserve room for a number of quads or triples before
+	 * they are added
+	 */
+	public interface IPresizable {
+		public void ensureCapacity(long size);
+	}
+
+	/**
+	 * A model whose <code>addQuad</code> or <code>addTriple</code> may be
+	 * called from several threads at once
+	 */
+	public interface IConcurrentlyInsertable {}
+
+	/** The default number of quads in a batch */
+	public static final int DEFAULT_BATCH_SIZE = 4096;
+
+	/** The number of decompressed bytes sampled by {@link #estimateQuads(String)} */
+	private static final int SAMPLE_SIZE = 1024 * 1024;
+
+	/**
+	 * Adds quads to the model
+	 */
+	private static abstract class Target {
+		abstract void add(IQuad[] quads, int count);
+
+		abstract Map<String, String> getPrefixMap();
+	}
+
+	private final Target target;
+	private final int batchSize;
+	private final ExecutorService executor;
+	private final int maxInFlight;
+	private final Semaphore inFlight;
+	private final Map<String, String> prefixes = new HashMap<String, String>();
+	private IQuad[] batch;
+	private int count;
+	private volatile Throwable failure;
+	private boolean closed;
+
+	public BulkModelInserter(IRDFObjectQuadModel m) {
+		this(m, 0, DEFAULT_BATCH_SIZE, 0);
+	}
+
+	/**
+	 * @param sizeHint
+	 *            the expected number of quads, or zero or less if not known,
+	 *            see {@link #estimateQuads(String)}
+	 * @param batchSize
+	 *            the number of quads to add at a time
+	 * @param threads
+	 *            the number of threads adding batches to a
+	 *            {@link IConcurrentlyInsertable} model, zero or less for one
+	 *            per processor
+	 */
+	public BulkModelInserter(final IRDFObjectQuadModel m, long sizeHint, int batchSize, int threads) {
+		this(new Target() {
+
+			@Override
+			void add(IQuad[] quads, int count) {
+				for (int i = 0; i < count; i++)
+					m.addQuad(quads[i]);
+			}
+
+			@Override
+			Map<String, String> getPrefixMap() {
+				return m.getPrefixMap();
+			}
+
+		}, m, sizeHint, batchSize, threads);
+	}
+
+	public BulkModelInserter(IRDFObjectTripleModel m) {
+		this(m, 0, DEFAULT_BATCH_SIZE, 0);
+	}
+
+	/**
+	 * @see #BulkModelInserter(IRDFObjectQuadModel, long, int, int)
+	 */
+	public BulkModelInserter(final IRDFObjectTripleModel m, long sizeHint, int batchSize, int threads) {
+		this(new Target() {
+
+			@Override
+			void add(IQuad[] quads, int count) {
+				for (int i = 0; i < count; i++)
+					m.addTriple(quads[i]);
+			}
+
+			@Override
+			Map<String, String> getPrefixMap() {
+				return m.getPrefixMap();
+			}
+
+		}, m, sizeHint, batchSize, threads);
+	}
+
+	private BulkModelInserter(Target target, Object model, long sizeHint, int batchSize, int threads) {
+		this.target = target;
+		this.batchSize = Math.max(1, batchSize);
+		this.batch = new IQuad[this.batchSize];
+		if (sizeHint > 0 && model instanceof IPresizable) ((IPresizable) model).ensureCapacity(sizeHint);
+		if (model instanceof IConcurrentlyInsertable) {
+			int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+			this.executor = ChunkPipeline.newThreadPool(n, "rdfio-inserter");
+			// bounds the batches waiting to be added
+			this.maxInFlight = 2 * n;
+			this.inFlight = new Semaphore(maxInFlight);
+		} else {
+			this.executor = null;
+			this.maxInFlight = 0;
+			this.inFlight = null;
+		}
+	}
+
+	private void checkFailure() {
+		Throwable t = failure;
+		if (t != null) {
+			if (t instanceof RuntimeException) throw (RuntimeException) t;
+			if (t instanceof Error) throw (Error) t;
+			throw new RuntimeException(t);
+		}
+	}
+
+	/**
+	 * Add the collected batch to the model, or hand it to an insertion thread
+	 */
+	private void flush() {
+		if (count == 0) return;
+		checkFailure();
+		if (executor == null) {
+			target.add(batch, count);
+			for (int i = 0; i < count; i++)
+				batch[i] = null;
+			count = 0;
+			return;
+		}
+		final IQuad[] b = batch;
+		final int c = count;
+		batch = new IQuad[batchSize];
+		count = 0;
+		inFlight.acquireUninterruptibly();
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					if (failure == null) target.add(b, c);
+				} catch (Throwable t) {
+					if (failure == null) failure = t;
+				} finally {
+					inFlight.release();
+				}
+			}
+
+		});
+	}
+
+	@Override
+	public void visit(IQuad q) {
+		batch[count++] = q;
+		if (count == batchSize) flush();
+	}
+
+	@Override
+	public void visit(IQuad[] quads, int n) {
+		for (int i = 0; i < n;) {
+			int m = Math.min(n - i, batchSize - count);
+			System.arraycopy(quads, i, batch, count, m);
+			count += m;
+			i += m;
+			if (count == batchSize) flush();
+		}
+	}
+
+	@Override
+	public void setNameSpace(String prefix, String ns) {
+		// parsers repeat declarations, only pass on changes
+		if (ns.equals(prefixes.put(prefix, ns))) return;
+		target.getPrefixMap().put(prefix, ns);
+	}
+
+	@Override
+	public void setBaseIRI(String baseIRI) {}
+
+	@Override
+	public void comment(String comment) {}
+
+	/**
+	 * Add the last batch and wait for all batches to be added. Rethrows any
+	 * exception thrown by the model.
+	 */
+	public void close() {
+		if (closed) return;
+		closed = true;
+		try {
+			flush();
+		} finally {
+			if (executor != null) {
+				// all permits back means all batches are done
+				inFlight.acquireUninterruptibly(maxInFlight);
+				executor.shutdownNow();
+			}
+		}
+		checkFailure();
+	}
+
+	/**
+	 * Estimate the number of quads in a file from the lines in its first
+	 * megabyte, scaled by its size. Only meaningful for line based formats,
+	 * a rough figure for others. Remote sources can't be estimated.
+	 *
+	 * @return the estimate, or 0 if not known
+	 */
+	public static long estimateQuads(String url) throws IOException {
+		File f = CompressedInputStreams.toLocalFile(url);
+		if (f == null || !f.exists()) return 0;
+		CountingInputStream raw = new CountingInputStream(CompressedInputStreams.openRaw(url));
+		InputStream in = raw;
+		// decompress on this thread, so that the raw count matches the sample
+		if (url.endsWith(".gz"))
+			in = new GZIPInputStream(raw);
+		else if (url.endsWith(".bz2"))
+			in = new BZip2CompressorInputStream(raw, true);
+		else if (url.endsWith(".xz")) in = new XZCompressorInputStream(raw, true);
+		try {
+			byte[] buf = new byte[64 * 1024];
+			long bytes = 0, lines = 0;
+			int n;
+			while (bytes < SAMPLE_SIZE && (n = in.read(buf)) != -1) {
+				for (int i = 0; i < n; i++)
+					if (buf[i] == '\n') lines++;
+				bytes += n;
+			}
+			if (lines == 0 || raw.getByteCount() == 0) return 0;
+			if (bytes < SAMPLE_SIZE) return lines;
+			return (long) ((double) lines / raw.getByteCount() * f.length());
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Load a file into a model in bulk, sizing the model from an estimate
+	 * of its quads
+	 *
+	 * @param threads
+	 *            the number of threads to parse and add quads with, zero or
+	 *            less for one per processor
+	 */
+	public static void load(String url, IRDFObjectQuadModel m, int threads) throws IOException, RDFParseException, RDFHandlerException {
+		load(url, new BulkModelInserter(m, m instanceof IPresizable ? estimateQuads(url) : 0, DEFAULT_BATCH_SIZE, threads), threads);
+	}
+
+	/**
+	 * @see #load(String, IRDFObjectQuadModel, int)
+	 */
+	public static void load(String url, IRDFObjectTripleModel m, int threads) throws IOException, RDFParseException, RDFHandlerException {
+		load(url, new BulkModelInserter(m, m instanceof IPresizable ? estimateQuads(url) : 0, DEFAULT_BATCH_SIZE, threads), threads);
+	}
+
+	private static void load(String url, BulkModelInserter inserter, int threads) throws IOException, RDFParseException, RDFHandlerException {
+		try {
+			RDFReader.read(url, inserter, threads, false);
+		} finally {
+			inserter.close();
+		}
+	}
+
+}
@@ -0,0 +1,47 @@
+package fi.seco.rdfio;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An input stream reading from a byte buffer. Used to hand out slices of
+ * heap, direct or memory-mapped buffers to parsers without copying.
+ */
+final class ByteBufferInputStream extends InputStream {
+
+	private final ByteBuffer buf;
+
+	public ByteBufferInputStream(ByteBuffer buf) {
+		this.buf = buf;
+	}
+
+	@Override
+	public int read() {
+		if (!buf.hasRemaining()) return -1;
+		return buf.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) return 0;
+		int r = buf.remaining();
+		if (r == 0) return -1;
+		if (len > r) len = r;
+		buf.get(b, off, len);
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		if (n <= 0) return 0;
+		int s = (int) Math.min(n, buf.remaining());
+		buf.position(buf.position() + s);
+		return s;
+	}
+
+	@Override
+	public int available() {
+		return buf.remaining();
+	}
+
+}
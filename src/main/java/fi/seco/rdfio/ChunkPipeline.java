@@ -0,0 +1,142 @@
+package fi.seco.rdfio;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs chunk processing tasks on a worker pool, handing the results back to
+ * a result handler on the submitting thread, either in submission order or as
+ * they complete. The number of tasks in flight is bounded, so that a slow
+ * result handler blocks submission instead of letting results pile up.
+ *
+ * @param <R>
+ *            the type of the task results
+ */
+final class ChunkPipeline<R> {
+
+	/**
+	 * Receives results of processed chunks. Always called on the thread
+	 * submitting tasks to the pipeline.
+	 */
+	interface IResultHandler<R> {
+		public void handle(R result);
+	}
+
+	private final ArrayDeque<Future<R>> pending = new ArrayDeque<Future<R>>();
+	private final CompletionService<R> completionService;
+	private final ExecutorService executor;
+	private final IResultHandler<R> handler;
+	private final boolean ordered;
+	private final int maxInFlight;
+	private int inFlight;
+
+	/**
+	 * @param executor
+	 *            the executor to run tasks on
+	 * @param maxInFlight
+	 *            the maximum number of submitted tasks whose results have not
+	 *            yet been handled
+	 * @param ordered
+	 *            whether to hand results to the handler in submission order
+	 * @param handler
+	 *            the handler to pass results to
+	 */
+	public ChunkPipeline(ExecutorService executor, int maxInFlight, boolean ordered, IResultHandler<R> handler) {
+		this.executor = executor;
+		this.maxInFlight = Math.max(1, maxInFlight);
+		this.ordered = ordered;
+		this.handler = handler;
+		this.completionService = ordered ? null : new ExecutorCompletionService<R>(executor);
+	}
+
+	/**
+	 * Submit a task, first handling completed results as needed to keep the
+	 * number of tasks in flight within bounds.
+	 */
+	public void submit(Callable<R> task) {
+		while (inFlight >= maxInFlight)
+			handleOne();
+		if (ordered)
+			pending.add(executor.submit(task));
+		else completionService.submit(task);
+		inFlight++;
+		if (ordered) while (!pending.isEmpty() && pending.peek().isDone())
+			handleOne();
+	}
+
+	/**
+	 * Wait for all submitted tasks to complete, handling their results
+	 */
+	public void finish() {
+		while (inFlight > 0)
+			handleOne();
+	}
+
+	/**
+	 * Cancel all tasks still in flight, discarding their results
+	 */
+	public void cancel() {
+		for (Future<R> f : pending)
+			f.cancel(true);
+		pending.clear();
+		inFlight = 0;
+	}
+
+	private void handleOne() {
+		Future<R> f;
+		try {
+			if (ordered)
+				f = pending.poll();
+			else f = completionService.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		inFlight--;
+		handler.handle(get(f));
+	}
+
+	static <R> R get(Future<R> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			Throwable c = e.getCause();
+			if (c instanceof RuntimeException) throw (RuntimeException) c;
+			if (c instanceof Error) throw (Error) c;
+			throw new RuntimeException(c);
+		}
+	}
+
+	/**
+	 * @return a fixed size thread pool of daemon threads with the given name
+	 *         prefix. A thread count of zero or less means one thread per
+	 *         available processor.
+	 */
+	static ExecutorService newThreadPool(int threads, final String name) {
+		if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+		return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+			private final AtomicInteger n = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + n.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+
+		});
+	}
+
+}
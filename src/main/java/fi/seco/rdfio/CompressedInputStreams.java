@@ -0,0 +1,161 @@
+package fi.seco.rdfio;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+/**
+ * Opens possibly compressed sources for reading. Decompression runs in its own
+ * pipeline stage, separate from the thread consuming the data. bzip2 blocks,
+ * gzip members and the blocks of local xz files are additionally decoded in
+ * parallel.
+ */
+public class CompressedInputStreams {
+
+	/** The size of raw gzip segments to decode as a unit */
+	private static final int GZIP_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * @param url
+	 *            the url to check
+	 * @return the local file the url points to, or <code>null</code> if the
+	 *         url is not a file url
+	 */
+	public static File toLocalFile(String url) {
+		if (!url.startsWith("file:")) return null;
+		try {
+			return new File(new URI(url));
+		} catch (URISyntaxException e) {
+			return new File(url.substring(5));
+		} catch (IllegalArgumentException e) {
+			return new File(url.substring(5));
+		}
+	}
+
+	/**
+	 * Open a source, decompressing it if its extension indicates a gzip,
+	 * bzip2 or xz compressed source
+	 *
+	 * @param url
+	 *            the source to open
+	 * @param threads
+	 *            the number of threads to use for decompression, zero or less
+	 *            for one per processor
+	 * @return a stream of the decompressed source
+	 * @throws IOException
+	 */
+	public static InputStream open(String url, int threads) throws IOException {
+		if (url.endsWith(".xz")) {
+			File f = toLocalFile(url);
+			if (f != null) return xz(f, threads);
+			return xz(openRaw(url));
+		}
+		if (url.endsWith(".gz")) return gzip(openRaw(url), threads);
+		if (url.endsWith(".bz2")) return bzip2(openRaw(url), threads);
+		return openRaw(url);
+	}
+
+	/**
+	 * Open a source at an offset in its decompressed data. Local uncompressed
+	 * and xz compressed files are seeked to the offset, xz files starting from
+	 * the block holding it. Other sources are decompressed from the start,
+	 * skipping data up to the offset.
+	 *
+	 * @see #open(String, int)
+	 */
+	public static InputStream open(String url, long offset, int threads) throws IOException {
+		if (offset == 0) return open(url, threads);
+		File f = toLocalFile(url);
+		if (f != null && !isCompressed(url)) return new MappedFileInputStream(f, offset);
+		if (f != null && url.endsWith(".xz")) {
+			SeekableXZInputStream in = new SeekableXZInputStream(new SeekableFileInputStream(f));
+			in.seek(offset);
+			return new ReadAheadInputStream(in);
+		}
+		InputStream in = open(url, threads);
+		for (long n = offset; n > 0;) {
+			long s = in.skip(n);
+			if (s <= 0) {
+				if (in.read() == -1) throw new EOFException("Offset " + offset + " is past the end of " + url);
+				s = 1;
+			}
+			n -= s;
+		}
+		return in;
+	}
+
+	/**
+	 * @return <code>true</code> if the extension of the url indicates a
+	 *         compressed source
+	 */
+	public static boolean isCompressed(String url) {
+		return url.endsWith(".xz") || url.endsWith(".gz") || url.endsWith(".bz2");
+	}
+
+	/**
+	 * Open a source without decompressing it. Local files are memory-mapped.
+	 *
+	 * @param url
+	 *            the source to open
+	 * @return a stream of the raw source
+	 * @throws IOException
+	 */
+	public static InputStream openRaw(String url) throws IOException {
+		File f = toLocalFile(url);
+		if (f != null) return new MappedFileInputStream(f);
+		return new URL(url).openStream();
+	}
+
+	private static int threads(int threads) {
+		return threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+	}
+
+	/**
+	 * @return a stream decompressing a (possibly concatenated) bzip2 source
+	 *         block by block in parallel
+	 * @throws IOException
+	 */
+	public static InputStream bzip2(InputStream in, int threads) throws IOException {
+		threads = threads(threads);
+		return new ParallelDecompressingInputStream(new BZip2BlockSegmenter(in), ChunkPipeline.newThreadPool(threads, "rdfio-bzip2"), 2 * threads);
+	}
+
+	/**
+	 * @return a stream decompressing a gzip source, decoding multiple members
+	 *         in parallel
+	 */
+	public static InputStream gzip(InputStream in, int threads) {
+		threads = threads(threads);
+		return new ParallelDecompressingInputStream(new GzipMemberSegmenter(in, GZIP_SEGMENT_SIZE), ChunkPipeline.newThreadPool(threads, "rdfio-gzip"), 2 * threads);
+	}
+
+	/**
+	 * @return a stream decompressing a local xz file, decoding multiple blocks
+	 *         in parallel
+	 * @throws IOException
+	 */
+	public static InputStream xz(File f, int threads) throws IOException {
+		if (XZBlockSegmenter.getBlockCount(f) < 2) return xz(new FileInputStream(f));
+		threads = threads(threads);
+		return new ParallelDecompressingInputStream(new XZBlockSegmenter(f), ChunkPipeline.newThreadPool(threads, "rdfio-xz"), 2 * threads);
+	}
+
+	/**
+	 * @return a stream decompressing a (possibly concatenated) xz source on a
+	 *         separate thread
+	 * @throws IOException
+	 */
+	public static InputStream xz(InputStream in) throws IOException {
+		return new ReadAheadInputStream(new XZCompressorInputStream(in, true));
+	}
+
+}
@@ -0,0 +1,119 @@
+package fi.seco.rdfio;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import fi.seco.rdfio.ParallelCompressingOutputStream.IBlockCompressor;
+
+/**
+ * Opens possibly compressed destinations for writing. Compression is done in
+ * parallel by splitting the data into blocks and compressing each block into
+ * an independent gzip member, bzip2 stream or xz stream. The results are
+ * concatenations that gzip, bzip2 and xz (and {@link CompressedInputStreams})
+ * decompress as a whole.
+ */
+public class CompressedOutputStreams {
+
+	/** The amount of uncompressed data in a gzip member */
+	public static final int GZIP_BLOCK_SIZE = 1024 * 1024;
+
+	/** The amount of uncompressed data in a bzip2 stream, one full block */
+	public static final int BZIP2_BLOCK_SIZE = 900 * 1000;
+
+	/** The amount of uncompressed data in an xz stream */
+	public static final int XZ_BLOCK_SIZE = 8 * 1024 * 1024;
+
+	/**
+	 * Create a file, compressing it if its extension indicates a gzip, bzip2
+	 * or xz compressed file
+	 *
+	 * @param filename
+	 *            the file to create
+	 * @param threads
+	 *            the number of threads to compress with, zero or less for one
+	 *            per processor
+	 * @return a stream writing to the file
+	 * @throws IOException
+	 */
+	public static OutputStream create(String filename, int threads) throws IOException {
+		OutputStream fo = new FileOutputStream(filename);
+		try {
+			if (filename.endsWith(".gz")) return gzip(fo, threads);
+			if (filename.endsWith(".bz2")) return bzip2(fo, threads);
+			if (filename.endsWith(".xz")) return xz(fo, threads);
+			return fo;
+		} catch (IOException e) {
+			fo.close();
+			throw e;
+		}
+	}
+
+	private static boolean sequential(int threads) {
+		return threads == 1 || threads <= 0 && Runtime.getRuntime().availableProcessors() == 1;
+	}
+
+	/**
+	 * @return a stream writing gzip compressed data as a series of members
+	 */
+	public static OutputStream gzip(OutputStream out, int threads) throws IOException {
+		if (sequential(threads)) return new GZIPOutputStream(out, 64 * 1024);
+		return new ParallelCompressingOutputStream(out, new IBlockCompressor() {
+
+			@Override
+			public byte[] compress(byte[] data, int length) throws IOException {
+				ByteArrayOutputStream bout = new ByteArrayOutputStream(length / 3 + 64);
+				GZIPOutputStream gout = new GZIPOutputStream(bout, 64 * 1024);
+				gout.write(data, 0, length);
+				gout.close();
+				return bout.toByteArray();
+			}
+
+		}, GZIP_BLOCK_SIZE, threads);
+	}
+
+	/**
+	 * @return a stream writing bzip2 compressed data as a series of streams
+	 */
+	public static OutputStream bzip2(OutputStream out, int threads) throws IOException {
+		if (sequential(threads)) return new BZip2CompressorOutputStream(out);
+		return new ParallelCompressingOutputStream(out, new IBlockCompressor() {
+
+			@Override
+			public byte[] compress(byte[] data, int length) throws IOException {
+				ByteArrayOutputStream bout = new ByteArrayOutputStream(length / 4 + 64);
+				BZip2CompressorOutputStream bzout = new BZip2CompressorOutputStream(bout);
+				bzout.write(data, 0, length);
+				bzout.close();
+				return bout.toByteArray();
+			}
+
+		}, BZIP2_BLOCK_SIZE, threads);
+	}
+
+	/**
+	 * @return a stream writing xz compressed data as a series of streams
+	 */
+	public static OutputStream xz(OutputStream out, int threads) throws IOException {
+		if (sequential(threads)) return new XZOutputStream(out, new LZMA2Options());
+		return new ParallelCompressingOutputStream(out, new IBlockCompressor() {
+
+			@Override
+			public byte[] compress(byte[] data, int length) throws IOException {
+				ByteArrayOutputStream bout = new ByteArrayOutputStream(length / 5 + 64);
+				XZOutputStream xzout = new XZOutputStream(bout, new LZMA2Options());
+				xzout.write(data, 0, length);
+				xzout.close();
+				return bout.toByteArray();
+			}
+
+		}, XZ_BLOCK_SIZE, threads);
+	}
+
+}
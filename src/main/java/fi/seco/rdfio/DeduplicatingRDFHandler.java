@@ -0,0 +1,341 @@
+package fi.seco.rdfio;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
+import fi.seco.rdfio.RDFReader.IRDFHandler;
+import fi.seco.rdfobject.IQuad;
+import fi.seco.rdfobject.IRDFObject;
+
+/**
+ * An RDF handler dropping exact duplicate quads before passing them on,
+ * streaming with bounded memory. Remembers a 128-bit hash of the serialized
+ * form (see {@link RDFObjectCodec}) of each quad seen, in an open addressing
+ * table in a direct buffer outside the Java heap, which grows up to a given
+ * memory limit. When the table would grow beyond the limit, the hashes are
+ * moved into a Bloom filter of the same size, after which some unique quads
+ * may be dropped as duplicates at the configured false positive rate. The
+ * rate rises if more quads are seen than the filter was sized for.
+ * <p>
+ * Metadata is passed on as is. Not thread safe.
+ */
+public class DeduplicatingRDFHandler implements IRDFBatchHandler {
+
+	private static final Logger log = LoggerFactory.getLogger(DeduplicatingRDFHandler.class);
+
+	/** The default memory limit of the hash set */
+	public static final long DEFAULT_MAX_MEMORY = 256L * 1024 * 1024;
+
+	/** The default false positive rate of the Bloom filter */
+	public static final double DEFAULT_FALSE_POSITIVE_RATE = 1e-6;
+
+	private static final int INITIAL_SLOTS = 1 << 16;
+	/** the largest table fitting a direct buffer */
+	private static final long MAX_SLOTS = 1L << 26;
+
+	private final IRDFHandler handler;
+	private final long maxMemory;
+	private final double falsePositiveRate;
+	private final RDFObjectCodec codec = new RDFObjectCodec();
+	private byte[] buf = new byte[1024];
+	private IQuad[] batch = new IQuad[0];
+	private long h1, h2;
+
+	/** the hash set, two longs per slot, or null after switching to Bloom */
+	private LongBuffer table;
+	private long slots;
+	private long size;
+
+	/** the Bloom filter bits */
+	private LongBuffer bloom;
+	private long bloomBits;
+	private int bloomHashes;
+	private long bloomCapacity;
+
+	private long quads;
+	private long duplicates;
+
+	public DeduplicatingRDFHandler(IRDFHandler handler) {
+		this(handler, DEFAULT_MAX_MEMORY, DEFAULT_FALSE_POSITIVE_RATE);
+	}
+
+	/**
+	 * @param handler
+	 *            the handler to pass unique quads to
+	 * @param maxMemory
+	 *            the number of bytes the hash set and the Bloom filter may
+	 *            take outside the heap
+	 * @param falsePositiveRate
+	 *            the target rate of unique quads dropped as duplicates after
+	 *            switching to the Bloom filter
+	 */
+	public DeduplicatingRDFHandler(IRDFHandler handler, long maxMemory, double falsePositiveRate) {
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1) throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+		this.handler = handler;
+		this.maxMemory = maxMemory;
+		this.falsePositiveRate = falsePositiveRate;
+		this.slots = Math.max(2, Math.min(INITIAL_SLOTS, Long.highestOneBit(Math.max(32, maxMemory) / 16)));
+		this.table = ByteBuffer.allocateDirect((int) (slots * 16)).asLongBuffer();
+	}
+
+	/**
+	 * @return whether the quad has been seen before, remembering it
+	 */
+	private boolean seen(IQuad q) {
+		int len = append(q.getSubject(), 0);
+		len = append(q.getProperty(), len);
+		len = append(q.getObject(), len);
+		len = append(q.getGraph(), len);
+		hash(buf, len);
+		return table != null ? addToTable(h1, h2) : addToBloom(h1, h2);
+	}
+
+	private int append(IRDFObject o, int off) {
+		if (o == null) {
+			// distinct from any encoded term, which starts with its kind
+			ensure(off + 1);
+			buf[off] = -1;
+			return off + 1;
+		}
+		int n = codec.encode(o);
+		ensure(off + n);
+		System.arraycopy(codec.buffer(), 0, buf, off, n);
+		return off + n;
+	}
+
+	private void ensure(int len) {
+		if (len > buf.length) buf = Arrays.copyOf(buf, Math.max(len, buf.length * 2));
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private static long getLong(byte[] b, int i) {
+		return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24 | (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48 | (b[i + 7] & 0xFFL) << 56;
+	}
+
+	/**
+	 * MurmurHash3 x64 128 into h1 and h2
+	 */
+	private void hash(byte[] b, int len) {
+		final long c1 = 0x87c37b91114253d5L;
+		final long c2 = 0x4cf5ad432745937fL;
+		long a = 0, c = 0;
+		int i = 0;
+		for (; i + 16 <= len; i += 16) {
+			long k1 = getLong(b, i);
+			long k2 = getLong(b, i + 8);
+			k1 *= c1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= c2;
+			a ^= k1;
+			a = Long.rotateLeft(a, 27);
+			a += c;
+			a = a * 5 + 0x52dce729;
+			k2 *= c2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= c1;
+			c ^= k2;
+			c = Long.rotateLeft(c, 31);
+			c += a;
+			c = c * 5 + 0x38495ab5;
+		}
+		long k1 = 0, k2 = 0;
+		for (int j = len - i - 1; j >= 0; j--)
+			if (j >= 8)
+				k2 = k2 << 8 | (b[i + j] & 0xFFL);
+			else k1 = k1 << 8 | (b[i + j] & 0xFFL);
+		if (len - i > 8) {
+			k2 *= c2;
+			k2 = Long.rotateLeft(k2, 33);
+			k2 *= c1;
+			c ^= k2;
+		}
+		if (len - i > 0) {
+			k1 *= c1;
+			k1 = Long.rotateLeft(k1, 31);
+			k1 *= c2;
+			a ^= k1;
+		}
+		a ^= len;
+		c ^= len;
+		a += c;
+		c += a;
+		a = fmix(a);
+		c = fmix(c);
+		a += c;
+		c += a;
+		h1 = a;
+		h2 = c;
+	}
+
+	private boolean addToTable(long a, long b) {
+		// (0, 0) marks an empty slot
+		if (a == 0 && b == 0) b = 1;
+		long mask = slots - 1;
+		for (long i = a & mask;; i = (i + 1) & mask) {
+			int j = (int) (i * 2);
+			long x = table.get(j);
+			long y = table.get(j + 1);
+			if (x == 0 && y == 0) {
+				table.put(j, a);
+				table.put(j + 1, b);
+				if (++size * 2 > slots) grow();
+				return false;
+			}
+			if (x == a && y == b) return true;
+		}
+	}
+
+	private void grow() {
+		long nslots = slots * 2;
+		if (nslots * 16 > maxMemory || nslots > MAX_SLOTS) {
+			toBloom();
+			return;
+		}
+		LongBuffer old = table;
+		long oslots = slots;
+		table = ByteBuffer.allocateDirect((int) (nslots * 16)).asLongBuffer();
+		slots = nslots;
+		long mask = slots - 1;
+		for (long i = 0; i < oslots; i++) {
+			long a = old.get((int) (i * 2));
+			long b = old.get((int) (i * 2 + 1));
+			if (a == 0 && b == 0) continue;
+			long k = a & mask;
+			while (table.get((int) (k * 2)) != 0 || table.get((int) (k * 2 + 1)) != 0)
+				k = (k + 1) & mask;
+			table.put((int) (k * 2), a);
+			table.put((int) (k * 2 + 1), b);
+		}
+	}
+
+	/**
+	 * Move the hashes from the table into a Bloom filter using all the
+	 * memory allowed. Both exist for the duration of the move.
+	 */
+	private void toBloom() {
+		long words = Math.min(Math.max(1, maxMemory / 8), Integer.MAX_VALUE / 8);
+		bloomBits = words * 64;
+		double ln2 = Math.log(2);
+		bloomHashes = Math.max(1, (int) Math.round(-Math.log(falsePositiveRate) / ln2));
+		bloomCapacity = (long) (bloomBits * ln2 * ln2 / -Math.log(falsePositiveRate));
+		LongBuffer old = table;
+		long oslots = slots;
+		long distinct = size;
+		table = null;
+		size = 0;
+		bloom = ByteBuffer.allocateDirect((int) (words * 8)).asLongBuffer();
+		for (long i = 0; i < oslots; i++) {
+			long a = old.get((int) (i * 2));
+			long b = old.get((int) (i * 2 + 1));
+			if (a != 0 || b != 0) addToBloom(a, b);
+		}
+		log.info("Deduplicating " + distinct + " distinct quads exceeded the memory limit of " + maxMemory + " bytes, switched to a Bloom filter with a false positive rate of " + falsePositiveRate + " for up to " + bloomCapacity + " quads");
+	}
+
+	private boolean addToBloom(long a, long b) {
+		boolean seen = true;
+		long h = a;
+		for (int i = 0; i < bloomHashes; i++) {
+			long bit = (h & Long.MAX_VALUE) % bloomBits;
+			int w = (int) (bit >>> 6);
+			long m = 1L << bit;
+			long x = bloom.get(w);
+			if ((x & m) == 0) {
+				seen = false;
+				bloom.put(w, x | m);
+			}
+			h += b;
+		}
+		if (!seen && ++size == bloomCapacity + 1) log.warn("The Bloom filter deduplicating quads is past its capacity of " + bloomCapacity + " quads, its false positive rate will rise");
+		return seen;
+	}
+
+	@Override
+	public void visit(IQuad q) {
+		quads++;
+		if (seen(q))
+			duplicates++;
+		else handler.visit(q);
+	}
+
+	@Override
+	public void visit(IQuad[] qs, int count) {
+		if (!(handler instanceof IRDFBatchHandler)) {
+			for (int i = 0; i < count; i++)
+				visit(qs[i]);
+			return;
+		}
+		if (batch.length < count) batch = new IQuad[count];
+		int n = 0;
+		for (int i = 0; i < count; i++)
+			if (seen(qs[i]))
+				duplicates++;
+			else batch[n++] = qs[i];
+		quads += count;
+		if (n > 0) ((IRDFBatchHandler) handler).visit(batch, n);
+		Arrays.fill(batch, 0, n, null);
+	}
+
+	@Override
+	public void setNameSpace(String prefix, String ns) {
+		handler.setNameSpace(prefix, ns);
+	}
+
+	@Override
+	public void setBaseIRI(String baseIRI) {
+		handler.setBaseIRI(baseIRI);
+	}
+
+	@Override
+	public void comment(String comment) {
+		handler.comment(comment);
+	}
+
+	/**
+	 * @return the number of quads seen
+	 */
+	public long getQuads() {
+		return quads;
+	}
+
+	/**
+	 * @return the number of quads dropped as duplicates
+	 */
+	public long getDuplicates() {
+		return duplicates;
+	}
+
+	/**
+	 * @return the fraction of quads seen that were dropped as duplicates
+	 */
+	public double getDedupRatio() {
+		return quads == 0 ? 0 : (double) duplicates / quads;
+	}
+
+	/**
+	 * @return whether duplicates are still detected exactly, that is the
+	 *         Bloom filter is not in use
+	 */
+	public boolean isExact() {
+		return table != null;
+	}
+
+	@Override
+	public String toString() {
+		return "DeduplicatingRDFHandler[quads=" + quads + ", duplicates=" + duplicates + ", ratio=" + getDedupRatio() + (isExact() ? "" : ", bloom") + "]";
+	}
+
+}
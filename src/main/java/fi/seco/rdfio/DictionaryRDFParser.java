@@ -0,0 +1,306 @@
+package fi.seco.rdfio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openrdf.rio.RDFFormat;
+
+import fi.seco.rdfio.RDFReader.IRDFHandler;
+import fi.seco.rdfobject.IQuad;
+import fi.seco.rdfobject.IRDFObject;
+import fi.seco.rdfobject.Quad;
+
+/**
+ * A reader for the dictionary encoded binary RDF format written by
+ * {@link RDFWriter} for {@link #FORMAT}. A file consists of
+ * <ol>
+ * <li>a header: the magic bytes <code>RDFD</code>, a version byte, the block
+ * size, the base IRI and the namespace prefixes</li>
+ * <li>the term dictionary: the number of terms followed by the terms
+ * serialized with {@link RDFObjectCodec} in sorted order. Each term shares a
+ * prefix with the previous one, so only the length of the shared prefix and
+ * the remaining suffix are stored, except for every
+ * {@link #FRONT_CODING_BUCKET_SIZE}th term, which is stored in full.</li>
+ * <li>blocks of quads as term ids, each starting with the number of quads and
+ * the length of the block in bytes, so that whole blocks can be skipped. A
+ * block with zero quads ends the file. Each quad is a flags byte telling
+ * which of the graph, subject and property are the same as in the previous
+ * quad, followed by the varint encoded ids of the rest. Id 0 stands for no
+ * graph. Blocks don't refer to each other, so each can be decoded on its
+ * own.</li>
+ * </ol>
+ * All integers are unsigned varints and all strings varint length prefixed
+ * UTF-8. Reading decodes the dictionary once, after which producing quads is
+ * only a matter of decoding integers and looking up terms in an array.
+ */
+public final class DictionaryRDFParser {
+
+	/**
+	 * The dictionary encoded binary RDF format, with the extension rdfd.
+	 * Registered with Sesame when {@link RDFReader} is loaded.
+	 */
+	public static final RDFFormat FORMAT = new RDFFormat("Dictionary RDF", "application/x-seco-dictionary-rdf", null, "rdfd", true, true);
+
+	static final byte[] MAGIC = { 'R', 'D', 'F', 'D' };
+	static final int VERSION = 1;
+	/** Every this many terms, a term is stored in full instead of front coded */
+	static final int FRONT_CODING_BUCKET_SIZE = 16;
+
+	static final int SAME_GRAPH = 1;
+	static final int SAME_SUBJECT = 2;
+	static final int SAME_PROPERTY = 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private DictionaryRDFParser() {}
+
+	/**
+	 * A buffered source of varint encoded quad id blocks
+	 */
+	static class IdBlockInput {
+
+		private final InputStream in;
+		private final byte[] buf = new byte[64 * 1024];
+		private int pos;
+		private int limit;
+		private boolean ended;
+
+		IdBlockInput(InputStream in) {
+			this.in = in;
+		}
+
+		private boolean fill() throws IOException {
+			pos = 0;
+			limit = in.read(buf);
+			if (limit <= 0) {
+				limit = 0;
+				return false;
+			}
+			return true;
+		}
+
+		final int readByte() throws IOException {
+			if (pos == limit && !fill()) throw new EOFException();
+			return buf[pos++] & 0xFF;
+		}
+
+		final int readVarInt() throws IOException {
+			int v = 0;
+			int shift = 0;
+			while (true) {
+				int x = readByte();
+				v |= (x & 0x7F) << shift;
+				if (x < 0x80) return v;
+				shift += 7;
+			}
+		}
+
+		final void readFully(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (pos == limit && !fill()) throw new EOFException();
+				int n = Math.min(len, limit - pos);
+				System.arraycopy(buf, pos, b, off, n);
+				pos += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		final String readString() throws IOException {
+			int n = readVarInt();
+			byte[] b = new byte[n];
+			readFully(b, 0, n);
+			return new String(b, UTF8);
+		}
+
+		/**
+		 * Read the next block of quads as consecutive graph, subject, property
+		 * and object ids
+		 *
+		 * @param ids
+		 *            an array of at least four times the block size
+		 * @return the number of quads read, or -1 at the end
+		 */
+		final int nextBlock(int[] ids) throws IOException {
+			if (ended) return -1;
+			int count = readVarInt();
+			if (count == 0) {
+				ended = true;
+				return -1;
+			}
+			readVarInt();
+			int g = 0, s = 0, p = 0;
+			for (int i = 0, j = 0; i < count; i++) {
+				int flags = readByte();
+				if ((flags & SAME_GRAPH) == 0) g = readVarInt();
+				if ((flags & SAME_SUBJECT) == 0) s = readVarInt();
+				if ((flags & SAME_PROPERTY) == 0) p = readVarInt();
+				ids[j++] = g;
+				ids[j++] = s;
+				ids[j++] = p;
+				ids[j++] = readVarInt();
+			}
+			return count;
+		}
+
+		/**
+		 * Skip the next block without decoding it
+		 *
+		 * @return the number of quads skipped, or -1 at the end
+		 */
+		final int skipBlock() throws IOException {
+			if (ended) return -1;
+			int count = readVarInt();
+			if (count == 0) {
+				ended = true;
+				return -1;
+			}
+			long len = readVarInt();
+			long n = Math.min(len, limit - pos);
+			pos += n;
+			len -= n;
+			while (len > 0) {
+				long skipped = in.skip(len);
+				if (skipped <= 0) {
+					if (in.read() == -1) throw new EOFException();
+					skipped = 1;
+				}
+				len -= skipped;
+			}
+			return count;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+	/**
+	 * Reads a dictionary encoded file block by block. The header and the
+	 * dictionary are read on construction.
+	 */
+	public static final class Reader {
+
+		private final IdBlockInput in;
+		private final int blockSize;
+		private final String baseIRI;
+		private final Map<String, String> nameSpaces = new LinkedHashMap<String, String>();
+		private final IRDFObject[] terms;
+		private final int[] ids;
+
+		public Reader(InputStream is) throws IOException {
+			in = new IdBlockInput(is);
+			for (int i = 0; i < MAGIC.length; i++)
+				if (in.readByte() != MAGIC[i]) throw new IOException("Not a dictionary encoded RDF file");
+			int version = in.readByte();
+			if (version != VERSION) throw new IOException("Unsupported dictionary encoded RDF version " + version);
+			blockSize = in.readVarInt();
+			baseIRI = in.readVarInt() == 0 ? null : in.readString();
+			for (int i = in.readVarInt(); i > 0; i--) {
+				String prefix = in.readString();
+				nameSpaces.put(prefix, in.readString());
+			}
+			int count = in.readVarInt();
+			terms = new IRDFObject[count + 1];
+			byte[] term = new byte[256];
+			for (int i = 1; i <= count; i++) {
+				int shared = (i - 1) % FRONT_CODING_BUCKET_SIZE == 0 ? 0 : in.readVarInt();
+				int len = in.readVarInt();
+				if (shared + len > term.length) term = Arrays.copyOf(term, Math.max(term.length * 2, shared + len));
+				in.readFully(term, shared, len);
+				terms[i] = RDFObjectCodec.decode(ByteBuffer.wrap(term, 0, shared + len));
+			}
+			ids = new int[blockSize * 4];
+		}
+
+		/**
+		 * @return the maximum number of quads in a block
+		 */
+		public int getBlockSize() {
+			return blockSize;
+		}
+
+		/**
+		 * @return the base IRI of the data, or <code>null</code> if none
+		 */
+		public String getBaseIRI() {
+			return baseIRI;
+		}
+
+		/**
+		 * @return the namespace prefixes of the data
+		 */
+		public Map<String, String> getNameSpaces() {
+			return Collections.unmodifiableMap(nameSpaces);
+		}
+
+		/**
+		 * @return the number of terms in the dictionary
+		 */
+		public int getTermCount() {
+			return terms.length - 1;
+		}
+
+		/**
+		 * Read the next block of quads
+		 *
+		 * @param quads
+		 *            an array of at least {@link #getBlockSize()} to read the
+		 *            quads into
+		 * @param dg
+		 *            the graph to use for quads without one
+		 * @return the number of quads read, or -1 at the end
+		 */
+		public int readBlock(IQuad[] quads, IRDFObject dg) throws IOException {
+			int count = in.nextBlock(ids);
+			for (int i = 0, j = 0; i < count; i++, j += 4)
+				quads[i] = new Quad(terms[ids[j + 1]], terms[ids[j + 2]], terms[ids[j + 3]], ids[j] == 0 ? dg : terms[ids[j]]);
+			return count;
+		}
+
+		/**
+		 * Skip the next block of quads without decoding it
+		 *
+		 * @return the number of quads skipped, or -1 at the end
+		 */
+		public int skipBlock() throws IOException {
+			return in.skipBlock();
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+	/**
+	 * Parse a dictionary encoded file, streaming quads and metadata to an RDF
+	 * handler
+	 *
+	 * @param dg
+	 *            the graph to use for quads without one
+	 */
+	public static void parse(InputStream is, IRDFObject dg, IRDFHandler handler) throws IOException {
+		Reader r = new Reader(is);
+		try {
+			if (r.getBaseIRI() != null) handler.setBaseIRI(r.getBaseIRI());
+			for (Map.Entry<String, String> e : r.getNameSpaces().entrySet())
+				handler.setNameSpace(e.getKey(), e.getValue());
+			IQuad[] quads = new IQuad[r.getBlockSize()];
+			for (int count = r.readBlock(quads, dg); count != -1; count = r.readBlock(quads, dg))
+				for (int i = 0; i < count; i++)
+					handler.visit(quads[i]);
+		} finally {
+			r.close();
+		}
+	}
+
+}
@@ -0,0 +1,261 @@
+package fi.seco.rdfio;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
+import fi.seco.rdfio.RDFWriter.IRDFWriter;
+import fi.seco.rdfobject.IQuad;
+import fi.seco.rdfobject.IRDFObject;
+
+/**
+ * A writer for the dictionary encoded binary RDF format described in
+ * {@link DictionaryRDFParser}. Terms are assigned provisional ids in an
+ * {@link OffHeapTermDictionary} as quads come in, and the quads are spooled
+ * as id blocks into a temporary file. On {@link #close()}, the dictionary is
+ * sorted and written out front coded, after which the spooled blocks are
+ * rewritten with the final ids. Quads keep their order. Comments are not
+ * stored.
+ */
+class DictionaryRDFWriter implements IRDFWriter, IRDFBatchHandler {
+
+	/** The default number of quads in a block */
+	public static final int DEFAULT_BLOCK_SIZE = 4096;
+
+	private static final int IO_BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Collects quad ids into blocks, writing each out when full
+	 */
+	static final class IdBlockOutput {
+
+		private final OutputStream out;
+		private final int blockSize;
+		private byte[] buf = new byte[64 * 1024];
+		private int length;
+		private int count;
+		private int g, s, p;
+
+		IdBlockOutput(OutputStream out, int blockSize) {
+			this.out = out;
+			this.blockSize = blockSize;
+		}
+
+		private void putVarInt(int v) {
+			while ((v & ~0x7F) != 0) {
+				buf[length++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[length++] = (byte) v;
+		}
+
+		void add(int g, int s, int p, int o) throws IOException {
+			if (length + 21 > buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+			int flags = 0;
+			// each block starts afresh, so that it can be decoded on its own
+			if (count > 0) {
+				if (g == this.g) flags |= DictionaryRDFParser.SAME_GRAPH;
+				if (s == this.s) flags |= DictionaryRDFParser.SAME_SUBJECT;
+				if (p == this.p) flags |= DictionaryRDFParser.SAME_PROPERTY;
+			}
+			buf[length++] = (byte) flags;
+			if ((flags & DictionaryRDFParser.SAME_GRAPH) == 0) putVarInt(g);
+			if ((flags & DictionaryRDFParser.SAME_SUBJECT) == 0) putVarInt(s);
+			if ((flags & DictionaryRDFParser.SAME_PROPERTY) == 0) putVarInt(p);
+			putVarInt(o);
+			this.g = g;
+			this.s = s;
+			this.p = p;
+			if (++count == blockSize) flush();
+		}
+
+		private void flush() throws IOException {
+			if (count == 0) return;
+			ExternalLongTupleSorter.writeVarLong(out, count);
+			ExternalLongTupleSorter.writeVarLong(out, length);
+			out.write(buf, 0, length);
+			count = 0;
+			length = 0;
+		}
+
+		/**
+		 * Write out the last block and the end marker
+		 */
+		void finish() throws IOException {
+			flush();
+			out.write(0);
+		}
+
+	}
+
+	private final OutputStream output;
+	private final int blockSize;
+	private final OffHeapTermDictionary dictionary = new OffHeapTermDictionary();
+	private final Map<String, String> nameSpaces = new LinkedHashMap<String, String>();
+	private String baseIRI;
+	private final File spool;
+	private final OutputStream spoolOut;
+	private final IdBlockOutput spoolBlocks;
+
+	/**
+	 * @param output
+	 *            the stream to write to
+	 * @param blockSize
+	 *            the maximum number of quads in a block
+	 * @param tmpDir
+	 *            the directory for the spooled quads, or <code>null</code> for
+	 *            the system default
+	 */
+	public DictionaryRDFWriter(OutputStream output, int blockSize, File tmpDir) {
+		this.output = output;
+		this.blockSize = blockSize;
+		try {
+			this.spool = File.createTempFile("rdfio-dict", ".blocks", tmpDir);
+			spool.deleteOnExit();
+			this.spoolOut = new BufferedOutputStream(new FileOutputStream(spool), IO_BUFFER_SIZE);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		this.spoolBlocks = new IdBlockOutput(spoolOut, blockSize);
+	}
+
+	@Override
+	public void setNameSpace(String prefix, String ns) {
+		nameSpaces.put(prefix, ns);
+	}
+
+	@Override
+	public void setBaseIRI(String baseIRI) {
+		this.baseIRI = baseIRI;
+	}
+
+	@Override
+	public void comment(String comment) {}
+
+	@Override
+	public void endProlog() {}
+
+	@Override
+	public void visit(IQuad q) {
+		int g = (int) dictionary.getOrAddId(q.getGraph());
+		int s = (int) dictionary.getOrAddId(q.getSubject());
+		int p = (int) dictionary.getOrAddId(q.getProperty());
+		int o = (int) dictionary.getOrAddId(q.getObject());
+		try {
+			spoolBlocks.add(g, s, p, o);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void visit(IQuad[] quads, int count) {
+		for (int i = 0; i < count; i++)
+			visit(quads[i]);
+	}
+
+	private static void writeString(OutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(UTF8);
+		ExternalLongTupleSorter.writeVarLong(out, b.length);
+		out.write(b);
+	}
+
+	/**
+	 * Write the dictionary in sorted order
+	 *
+	 * @return the final ids by provisional id
+	 */
+	private int[] writeDictionary(OutputStream out) throws IOException {
+		int n = dictionary.size();
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++)
+			order[i] = i + 1;
+		IntMergeSort.sort(order, 0, n, new IntMergeSort.IComparator() {
+
+			@Override
+			public int compare(int a, int b) {
+				return dictionary.compare(a, b);
+			}
+
+		});
+		int[] ids = new int[n + 1];
+		ExternalLongTupleSorter.writeVarLong(out, n);
+		byte[] previous = new byte[256];
+		int previousLength = 0;
+		byte[] term = new byte[256];
+		for (int i = 0; i < n; i++) {
+			ids[order[i]] = i + 1;
+			ByteBuffer b = dictionary.getEncoded(order[i]);
+			int len = b.remaining();
+			if (len > term.length) term = new byte[Math.max(term.length * 2, len)];
+			b.get(term, 0, len);
+			int shared = 0;
+			if (i % DictionaryRDFParser.FRONT_CODING_BUCKET_SIZE != 0) {
+				int max = Math.min(len, previousLength);
+				while (shared < max && term[shared] == previous[shared])
+					shared++;
+				ExternalLongTupleSorter.writeVarLong(out, shared);
+			}
+			ExternalLongTupleSorter.writeVarLong(out, len - shared);
+			out.write(term, shared, len - shared);
+			byte[] t = previous;
+			previous = term;
+			term = t;
+			previousLength = len;
+		}
+		return ids;
+	}
+
+	@Override
+	public void close() {
+		try {
+			spoolBlocks.finish();
+			spoolOut.close();
+			OutputStream out = new BufferedOutputStream(output, IO_BUFFER_SIZE);
+			out.write(DictionaryRDFParser.MAGIC);
+			out.write(DictionaryRDFParser.VERSION);
+			ExternalLongTupleSorter.writeVarLong(out, blockSize);
+			if (baseIRI == null)
+				out.write(0);
+			else {
+				out.write(1);
+				writeString(out, baseIRI);
+			}
+			ExternalLongTupleSorter.writeVarLong(out, nameSpaces.size());
+			for (Map.Entry<String, String> e : nameSpaces.entrySet()) {
+				writeString(out, e.getKey());
+				writeString(out, e.getValue());
+			}
+			int[] remap = writeDictionary(out);
+			dictionary.close();
+			DictionaryRDFParser.IdBlockInput in = new DictionaryRDFParser.IdBlockInput(new FileInputStream(spool));
+			try {
+				IdBlockOutput blocks = new IdBlockOutput(out, blockSize);
+				int[] ids = new int[blockSize * 4];
+				for (int count = in.nextBlock(ids); count != -1; count = in.nextBlock(ids))
+					for (int j = 0; j < count * 4; j += 4)
+						blocks.add(remap[ids[j]], remap[ids[j + 1]], remap[ids[j + 2]], remap[ids[j + 3]]);
+				blocks.finish();
+			} finally {
+				in.close();
+			}
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			dictionary.close();
+			spool.delete();
+		}
+	}
+
+}
@@ -0,0 +1,398 @@
+package fi.seco.rdfio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts fixed size tuples of longs lexicographically using a bounded amount
+ * of memory. Tuples are collected into a buffer, which is sorted and spilled
+ * to a temporary file as a run whenever it fills up. The runs are merged when
+ * iterating. Spilled tuples are delta and varint encoded, so small ids take
+ * only a few bytes on disk.
+ */
+final class ExternalLongTupleSorter {
+
+	/**
+	 * Iterates over sorted tuples
+	 */
+	interface ITupleReader {
+		/**
+		 * @param tuple
+		 *            an array to copy the next tuple into
+		 * @return <code>false</code> if there are no more tuples
+		 */
+		public boolean next(long[] tuple);
+	}
+
+	/** The maximum number of runs merged at once */
+	static final int MAX_MERGE_FAN_IN = 128;
+
+	private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+	private final int arity;
+	private final int maxBufferedTuples;
+	private final File tmpDir;
+	private long[] buffer;
+	private int size;
+	private long count;
+	private final List<File> runs = new ArrayList<File>();
+
+	/**
+	 * @param arity
+	 *            the number of longs in a tuple
+	 * @param maxBufferedTuples
+	 *            the number of tuples to keep in memory before spilling a run
+	 *            to disk
+	 * @param tmpDir
+	 *            the directory to write runs to, or <code>null</code> for the
+	 *            system default
+	 */
+	public ExternalLongTupleSorter(int arity, int maxBufferedTuples, File tmpDir) {
+		if (maxBufferedTuples <= 0) throw new IllegalArgumentException("maxBufferedTuples must be positive");
+		this.arity = arity;
+		this.maxBufferedTuples = maxBufferedTuples;
+		this.tmpDir = tmpDir;
+		this.buffer = new long[Math.min(maxBufferedTuples, 1024) * arity];
+	}
+
+	public void add(long a, long b, long c, long d, long e) {
+		int i = reserve();
+		buffer[i] = a;
+		buffer[i + 1] = b;
+		buffer[i + 2] = c;
+		buffer[i + 3] = d;
+		buffer[i + 4] = e;
+	}
+
+	public void add(long[] tuple) {
+		int i = reserve();
+		System.arraycopy(tuple, 0, buffer, i, arity);
+	}
+
+	private int reserve() {
+		if (size == maxBufferedTuples) spill();
+		int i = size * arity;
+		if (i == buffer.length) {
+			long[] nbuffer = new long[(int) Math.min((long) maxBufferedTuples * arity, (long) buffer.length * 2)];
+			System.arraycopy(buffer, 0, nbuffer, 0, buffer.length);
+			buffer = nbuffer;
+		}
+		size++;
+		count++;
+		return i;
+	}
+
+	/**
+	 * @return the number of tuples added
+	 */
+	public long size() {
+		return count;
+	}
+
+	/**
+	 * @return the number of runs spilled to disk
+	 */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	private File createRunFile() throws IOException {
+		File f = File.createTempFile("rdfio-sort", ".run", tmpDir);
+		f.deleteOnExit();
+		return f;
+	}
+
+	private void spill() {
+		sort(buffer, arity, 0, size);
+		try {
+			File f = createRunFile();
+			RunWriter w = new RunWriter(f, arity);
+			try {
+				long[] tuple = new long[arity];
+				for (int i = 0; i < size; i++) {
+					System.arraycopy(buffer, i * arity, tuple, 0, arity);
+					w.write(tuple);
+				}
+			} finally {
+				w.close();
+			}
+			runs.add(f);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		size = 0;
+	}
+
+	/**
+	 * Sort the buffered tuples and return a reader merging them with the
+	 * spilled runs. No tuples may be added after calling this.
+	 */
+	public ITupleReader sorted() {
+		try {
+			while (runs.size() > MAX_MERGE_FAN_IN) {
+				// merge the oldest runs into one to stay within the fan-in
+				List<File> batch = new ArrayList<File>(runs.subList(0, MAX_MERGE_FAN_IN));
+				runs.subList(0, MAX_MERGE_FAN_IN).clear();
+				List<Run> in = new ArrayList<Run>(batch.size());
+				for (File f : batch)
+					in.add(new FileRun(f, arity));
+				File f = createRunFile();
+				RunWriter w = new RunWriter(f, arity);
+				try {
+					ITupleReader r = merge(in);
+					long[] tuple = new long[arity];
+					while (r.next(tuple))
+						w.write(tuple);
+				} finally {
+					w.close();
+					for (Run r : in)
+						r.close();
+					for (File bf : batch)
+						bf.delete();
+				}
+				runs.add(f);
+			}
+			sort(buffer, arity, 0, size);
+			List<Run> in = new ArrayList<Run>(runs.size() + 1);
+			for (File f : runs)
+				in.add(new FileRun(f, arity));
+			if (size > 0) in.add(new MemoryRun(buffer, arity, size));
+			return merge(in);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Delete the spilled runs and release the buffer
+	 */
+	public void close() {
+		for (File f : runs)
+			f.delete();
+		runs.clear();
+		buffer = null;
+		size = 0;
+	}
+
+	private ITupleReader merge(final List<Run> in) throws IOException {
+		if (in.size() == 1) return in.get(0);
+		final PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, in.size()));
+		for (Run r : in)
+			if (r.advance()) queue.add(r);
+		return new ITupleReader() {
+
+			@Override
+			public boolean next(long[] tuple) {
+				Run r = queue.poll();
+				if (r == null) return false;
+				System.arraycopy(r.current, 0, tuple, 0, arity);
+				try {
+					if (r.advance())
+						queue.add(r);
+					else r.close();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				return true;
+			}
+
+		};
+	}
+
+	static int compare(long[] a, int ai, long[] b, int bi, int arity) {
+		for (int i = 0; i < arity; i++) {
+			long x = a[ai + i];
+			long y = b[bi + i];
+			if (x != y) return x < y ? -1 : 1;
+		}
+		return 0;
+	}
+
+	private static void swap(long[] a, int i, int j, int arity) {
+		i *= arity;
+		j *= arity;
+		for (int k = 0; k < arity; k++) {
+			long t = a[i + k];
+			a[i + k] = a[j + k];
+			a[j + k] = t;
+		}
+	}
+
+	/**
+	 * Sort the tuples in [from, to) in place
+	 */
+	static void sort(long[] a, int arity, int from, int to) {
+		sort(a, arity, from, to, new long[arity]);
+	}
+
+	private static void sort(long[] a, int arity, int from, int to, long[] pivot) {
+		while (to - from > 16) {
+			int mid = (from + to) >>> 1;
+			// median of three as the pivot
+			if (compare(a, mid * arity, a, from * arity, arity) < 0) swap(a, mid, from, arity);
+			if (compare(a, (to - 1) * arity, a, mid * arity, arity) < 0) {
+				swap(a, to - 1, mid, arity);
+				if (compare(a, mid * arity, a, from * arity, arity) < 0) swap(a, mid, from, arity);
+			}
+			System.arraycopy(a, mid * arity, pivot, 0, arity);
+			// three way partition, so runs of equal tuples do not degrade the sort
+			int lt = from, i = from, gt = to;
+			while (i < gt) {
+				int c = compare(a, i * arity, pivot, 0, arity);
+				if (c < 0)
+					swap(a, lt++, i++, arity);
+				else if (c > 0)
+					swap(a, i, --gt, arity);
+				else i++;
+			}
+			// recurse into the smaller part to bound the stack depth
+			if (lt - from < to - gt) {
+				sort(a, arity, from, lt, pivot);
+				from = gt;
+			} else {
+				sort(a, arity, gt, to, pivot);
+				to = lt;
+			}
+		}
+		for (int i = from + 1; i < to; i++)
+			for (int j = i; j > from && compare(a, j * arity, a, (j - 1) * arity, arity) < 0; j--)
+				swap(a, j, j - 1, arity);
+	}
+
+	private static abstract class Run implements Comparable<Run>, ITupleReader {
+
+		final long[] current;
+		final int arity;
+
+		Run(int arity) {
+			this.arity = arity;
+			this.current = new long[arity];
+		}
+
+		abstract boolean advance() throws IOException;
+
+		void close() throws IOException {}
+
+		@Override
+		public int compareTo(Run o) {
+			return compare(current, 0, o.current, 0, arity);
+		}
+
+		@Override
+		public boolean next(long[] tuple) {
+			try {
+				if (!advance()) {
+					close();
+					return false;
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			System.arraycopy(current, 0, tuple, 0, arity);
+			return true;
+		}
+
+	}
+
+	private static final class MemoryRun extends Run {
+
+		private final long[] buffer;
+		private final int size;
+		private int i;
+
+		MemoryRun(long[] buffer, int arity, int size) {
+			super(arity);
+			this.buffer = buffer;
+			this.size = size;
+		}
+
+		@Override
+		boolean advance() {
+			if (i == size) return false;
+			System.arraycopy(buffer, i++ * arity, current, 0, arity);
+			return true;
+		}
+
+	}
+
+	private static final class FileRun extends Run {
+
+		private final InputStream in;
+
+		FileRun(File f, int arity) throws IOException {
+			super(arity);
+			this.in = new BufferedInputStream(new FileInputStream(f), IO_BUFFER_SIZE);
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			int b = in.read();
+			if (b == -1) return false;
+			current[0] += readVarLong(in, b);
+			for (int i = 1; i < arity; i++)
+				current[i] = readVarLong(in, in.read());
+			return true;
+		}
+
+		@Override
+		void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+	private static final class RunWriter {
+
+		private final OutputStream out;
+		private final int arity;
+		private long previous;
+
+		RunWriter(File f, int arity) throws IOException {
+			this.out = new BufferedOutputStream(new FileOutputStream(f), IO_BUFFER_SIZE);
+			this.arity = arity;
+		}
+
+		void write(long[] tuple) throws IOException {
+			writeVarLong(out, tuple[0] - previous);
+			previous = tuple[0];
+			for (int i = 1; i < arity; i++)
+				writeVarLong(out, tuple[i]);
+		}
+
+		void close() throws IOException {
+			out.close();
+		}
+
+	}
+
+	static void writeVarLong(OutputStream out, long v) throws IOException {
+		while ((v & ~0x7FL) != 0) {
+			out.write((int) (v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.write((int) v);
+	}
+
+	private static long readVarLong(InputStream in, int b) throws IOException {
+		long v = 0;
+		int shift = 0;
+		while (true) {
+			if (b == -1) throw new EOFException();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return v;
+			shift += 7;
+			b = in.read();
+		}
+	}
+
+}
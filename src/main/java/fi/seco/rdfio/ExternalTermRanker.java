@@ -0,0 +1,477 @@
+package fi.seco.rdfio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import fi.seco.rdfobject.IRDFObject;
+
+/**
+ * Ranks RDF terms by their serialized form (see {@link RDFObjectCodec}) using
+ * a bounded amount of memory, however many distinct terms there are. Term
+ * occurrences, each identified by a caller given number, are collected into a
+ * buffer, which is sorted by term and spilled to a temporary file as a run
+ * whenever it fills up. {@link #rank(ExternalLongTupleSorter)} merges the runs,
+ * numbers the distinct terms from 1 in order, writes them to a term file for
+ * lookup by rank and passes on an (occurrence, rank) pair for each occurrence.
+ * The term file is memory-mapped for lookups, and recently looked up terms
+ * are cached, so repeated terms are only decoded once.
+ */
+final class ExternalTermRanker {
+
+	private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+	/** The maximum number of runs merged at once */
+	static final int MAX_MERGE_FAN_IN = ExternalLongTupleSorter.MAX_MERGE_FAN_IN;
+
+	/** The size of the windows the term files are mapped in */
+	private static final int MAP_WINDOW = 1 << 30;
+
+	/** The number of decoded terms cached, a power of two */
+	private static final int CACHE_SIZE = 1 << 16;
+
+	/** The average term size budgeted for in the buffer */
+	private static final int BUFFERED_BYTES_PER_TERM = 64;
+
+	private final RDFObjectCodec codec = new RDFObjectCodec();
+	private final int maxBufferedTerms;
+	private final int maxBufferedBytes;
+	private final File tmpDir;
+	private byte[] bytes = new byte[64 * 1024];
+	private int bytesLength;
+	private int[] offsets = new int[1024];
+	private long[] occurrences = new long[1024];
+	private int size;
+	private final List<File> runs = new ArrayList<File>();
+	private File termFile;
+	private File offsetFile;
+	/** the term and offset files, memory-mapped in windows */
+	private ByteBuffer[] terms;
+	private LongBuffer[] termOffsets;
+	private ByteBuffer termBuffer = ByteBuffer.allocate(256);
+	/** recently decoded terms, by a hash of their rank */
+	private final long[] cachedRanks = new long[CACHE_SIZE];
+	private final IRDFObject[] cachedTerms = new IRDFObject[CACHE_SIZE];
+
+	/**
+	 * @param maxBufferedTerms
+	 *            the number of term occurrences to keep in memory before
+	 *            spilling a run to disk
+	 * @param tmpDir
+	 *            the directory to write runs and terms to, or
+	 *            <code>null</code> for the system default
+	 */
+	public ExternalTermRanker(int maxBufferedTerms, File tmpDir) {
+		if (maxBufferedTerms <= 0) throw new IllegalArgumentException("maxBufferedTerms must be positive");
+		this.maxBufferedTerms = maxBufferedTerms;
+		this.maxBufferedBytes = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1024 * 1024, (long) maxBufferedTerms * BUFFERED_BYTES_PER_TERM));
+		this.tmpDir = tmpDir;
+	}
+
+	/**
+	 * @param occurrence
+	 *            a non-negative number identifying this occurrence of the term
+	 */
+	public void add(IRDFObject o, long occurrence) {
+		int n = codec.encode(o);
+		if (size == maxBufferedTerms || size > 0 && (long) bytesLength + n > maxBufferedBytes) spill();
+		if (bytesLength + n > bytes.length) bytes = Arrays.copyOf(bytes, (int) Math.min(Integer.MAX_VALUE - 8, Math.max((long) bytes.length * 2, (long) bytesLength + n)));
+		if (size + 1 == offsets.length) {
+			int l = (int) Math.min((long) offsets.length * 2, maxBufferedTerms + 1L);
+			offsets = Arrays.copyOf(offsets, l);
+			occurrences = Arrays.copyOf(occurrences, l);
+		}
+		System.arraycopy(codec.buffer(), 0, bytes, bytesLength, n);
+		offsets[size] = bytesLength;
+		occurrences[size] = occurrence;
+		bytesLength += n;
+		offsets[++size] = bytesLength;
+	}
+
+	private File createTempFile(String suffix) throws IOException {
+		File f = File.createTempFile("rdfio-terms", suffix, tmpDir);
+		f.deleteOnExit();
+		return f;
+	}
+
+	/**
+	 * @return the buffered term occurrences in term order
+	 */
+	private int[] sortBuffer() {
+		int[] order = new int[size];
+		for (int i = 0; i < size; i++)
+			order[i] = i;
+		// stable, so occurrences of a term stay in the order they were added
+		IntMergeSort.sort(order, 0, size, new IntMergeSort.IComparator() {
+
+			@Override
+			public int compare(int a, int b) {
+				return ExternalTermRanker.this.compare(a, b);
+			}
+
+		});
+		return order;
+	}
+
+	private void spill() {
+		try {
+			File f = createTempFile(".run");
+			write(new MemoryRun(sortBuffer()), f);
+			runs.add(f);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		size = 0;
+		bytesLength = 0;
+	}
+
+	private static void write(TermRun r, File f) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(f), IO_BUFFER_SIZE);
+		try {
+			while (r.advance()) {
+				ExternalLongTupleSorter.writeVarLong(out, r.length);
+				out.write(r.term, 0, r.length);
+				// occurrences shifted by one, so that zero ends the list
+				for (long o = r.nextOccurrence(); o != -1; o = r.nextOccurrence())
+					ExternalLongTupleSorter.writeVarLong(out, o + 1);
+				out.write(0);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Merge the buffered and spilled occurrences, rank the distinct terms and
+	 * add an (occurrence, rank) tuple to the sorter for each occurrence. No
+	 * terms may be added after calling this.
+	 *
+	 * @return the number of distinct terms
+	 */
+	public long rank(ExternalLongTupleSorter sorter) {
+		List<TermRun> in = new ArrayList<TermRun>();
+		try {
+			while (runs.size() > MAX_MERGE_FAN_IN) {
+				// merge the oldest runs into one to stay within the fan-in
+				List<File> batch = new ArrayList<File>(runs.subList(0, MAX_MERGE_FAN_IN));
+				runs.subList(0, MAX_MERGE_FAN_IN).clear();
+				for (File f : batch)
+					in.add(new FileRun(f));
+				File f = createTempFile(".run");
+				try {
+					write(new MergedRun(in), f);
+				} finally {
+					for (TermRun r : in)
+						r.close();
+					in.clear();
+					for (File bf : batch)
+						bf.delete();
+				}
+				runs.add(f);
+			}
+			for (File f : runs)
+				in.add(new FileRun(f));
+			if (size > 0) in.add(new MemoryRun(sortBuffer()));
+			termFile = createTempFile(".terms");
+			offsetFile = createTempFile(".offsets");
+			OutputStream termOut = new BufferedOutputStream(new FileOutputStream(termFile), IO_BUFFER_SIZE);
+			DataOutputStream offsetOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(offsetFile), IO_BUFFER_SIZE));
+			long rank = 0;
+			long offset = 0;
+			try {
+				// equal terms are merged into one group, so each group is a new rank
+				TermRun r = new MergedRun(in);
+				long[] tuple = new long[2];
+				offsetOut.writeLong(0);
+				while (r.advance()) {
+					rank++;
+					termOut.write(r.term, 0, r.length);
+					offset += r.length;
+					offsetOut.writeLong(offset);
+					tuple[1] = rank;
+					for (long o = r.nextOccurrence(); o != -1; o = r.nextOccurrence()) {
+						tuple[0] = o;
+						sorter.add(tuple);
+					}
+				}
+			} finally {
+				termOut.close();
+				offsetOut.close();
+				for (TermRun r : in)
+					r.close();
+			}
+			for (File f : runs)
+				f.delete();
+			runs.clear();
+			bytes = null;
+			offsets = null;
+			occurrences = null;
+			size = 0;
+			terms = map(termFile);
+			ByteBuffer[] o = map(offsetFile);
+			termOffsets = new LongBuffer[o.length];
+			for (int i = 0; i < o.length; i++)
+				termOffsets[i] = o[i].asLongBuffer();
+			return rank;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static ByteBuffer[] map(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel c = raf.getChannel();
+			long size = c.size();
+			ByteBuffer[] ret = new ByteBuffer[(int) ((size + MAP_WINDOW - 1) / MAP_WINDOW)];
+			for (int i = 0; i < ret.length; i++) {
+				long from = (long) i * MAP_WINDOW;
+				ret[i] = c.map(FileChannel.MapMode.READ_ONLY, from, Math.min(MAP_WINDOW, size - from));
+			}
+			return ret;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private long offset(long rank) {
+		// the windows hold a whole number of offsets
+		return termOffsets[(int) (rank / (MAP_WINDOW / 8))].get((int) (rank % (MAP_WINDOW / 8)));
+	}
+
+	/**
+	 * @return the term of a rank given by {@link #rank(ExternalLongTupleSorter)}
+	 */
+	public IRDFObject get(long rank) {
+		int slot = (int) ((rank * 0x9E3779B97F4A7C15L) >>> 48) & (CACHE_SIZE - 1);
+		if (cachedRanks[slot] == rank) return cachedTerms[slot];
+		long from = offset(rank - 1);
+		long to = offset(rank);
+		int n = (int) (to - from);
+		if (n > termBuffer.capacity()) termBuffer = ByteBuffer.allocate(Math.max(n, termBuffer.capacity() * 2));
+		termBuffer.clear();
+		// copy the term out, as it may span two windows
+		for (long p = from; p < to;) {
+			ByteBuffer w = terms[(int) (p / MAP_WINDOW)].duplicate();
+			int off = (int) (p % MAP_WINDOW);
+			int k = (int) Math.min(to - p, w.capacity() - off);
+			w.position(off);
+			w.limit(off + k);
+			termBuffer.put(w);
+			p += k;
+		}
+		termBuffer.flip();
+		IRDFObject o = RDFObjectCodec.decode(termBuffer);
+		cachedRanks[slot] = rank;
+		cachedTerms[slot] = o;
+		return o;
+	}
+
+	/**
+	 * Delete the runs and the term files, and release the buffer
+	 */
+	public void close() {
+		for (File f : runs)
+			f.delete();
+		runs.clear();
+		terms = null;
+		termOffsets = null;
+		Arrays.fill(cachedTerms, null);
+		if (termFile != null) termFile.delete();
+		if (offsetFile != null) offsetFile.delete();
+		bytes = null;
+		offsets = null;
+		occurrences = null;
+		size = 0;
+	}
+
+	static int compare(byte[] a, int ai, int an, byte[] b, int bi, int bn) {
+		int n = Math.min(an, bn);
+		for (int i = 0; i < n; i++) {
+			int c = (a[ai + i] & 0xFF) - (b[bi + i] & 0xFF);
+			if (c != 0) return c;
+		}
+		return an - bn;
+	}
+
+	private int compare(int a, int b) {
+		return compare(bytes, offsets[a], offsets[a + 1] - offsets[a], bytes, offsets[b], offsets[b + 1] - offsets[b]);
+	}
+
+	/**
+	 * Iterates over groups of occurrences of a term, in term order
+	 */
+	private static abstract class TermRun implements Comparable<TermRun> {
+
+		byte[] term = new byte[256];
+		int length;
+
+		/**
+		 * Move to the next term, skipping any occurrences not read
+		 */
+		abstract boolean advance() throws IOException;
+
+		/**
+		 * @return the next occurrence of the current term, or -1 if there are
+		 *         no more
+		 */
+		abstract long nextOccurrence() throws IOException;
+
+		void close() throws IOException {}
+
+		void setTerm(byte[] b, int from, int n) {
+			if (n > term.length) term = new byte[Math.max(n, term.length * 2)];
+			System.arraycopy(b, from, term, 0, n);
+			length = n;
+		}
+
+		@Override
+		public int compareTo(TermRun o) {
+			return compare(term, 0, length, o.term, 0, o.length);
+		}
+
+	}
+
+	private final class MemoryRun extends TermRun {
+
+		private final int[] order;
+		private int i;
+		private int end;
+
+		MemoryRun(int[] order) {
+			this.order = order;
+		}
+
+		@Override
+		boolean advance() {
+			i = end;
+			if (i == order.length) return false;
+			int first = order[i];
+			end = i + 1;
+			while (end < order.length && ExternalTermRanker.this.compare(first, order[end]) == 0)
+				end++;
+			setTerm(bytes, offsets[first], offsets[first + 1] - offsets[first]);
+			return true;
+		}
+
+		@Override
+		long nextOccurrence() {
+			return i == end ? -1 : occurrences[order[i++]];
+		}
+
+	}
+
+	private static final class FileRun extends TermRun {
+
+		private final InputStream in;
+		private boolean pending;
+
+		FileRun(File f) throws IOException {
+			this.in = new BufferedInputStream(new FileInputStream(f), IO_BUFFER_SIZE);
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			while (pending)
+				nextOccurrence();
+			int b = in.read();
+			if (b == -1) return false;
+			int n = (int) readVarLong(in, b);
+			if (n > term.length) term = new byte[Math.max(n, term.length * 2)];
+			for (int off = 0; off < n;) {
+				int r = in.read(term, off, n - off);
+				if (r == -1) throw new EOFException();
+				off += r;
+			}
+			length = n;
+			pending = true;
+			return true;
+		}
+
+		@Override
+		long nextOccurrence() throws IOException {
+			if (!pending) return -1;
+			long o = readVarLong(in, in.read());
+			if (o == 0) {
+				pending = false;
+				return -1;
+			}
+			return o - 1;
+		}
+
+		@Override
+		void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+	/**
+	 * Merges runs, joining the occurrences of equal terms into one group
+	 */
+	private static final class MergedRun extends TermRun {
+
+		private final PriorityQueue<TermRun> queue;
+		private final List<TermRun> current = new ArrayList<TermRun>();
+		private int i;
+
+		MergedRun(List<TermRun> in) throws IOException {
+			queue = new PriorityQueue<TermRun>(Math.max(1, in.size()));
+			for (TermRun r : in)
+				if (r.advance()) queue.add(r);
+		}
+
+		@Override
+		boolean advance() throws IOException {
+			for (TermRun r : current)
+				if (r.advance()) queue.add(r);
+			current.clear();
+			i = 0;
+			TermRun r = queue.poll();
+			if (r == null) return false;
+			current.add(r);
+			while (!queue.isEmpty() && queue.peek().compareTo(r) == 0)
+				current.add(queue.poll());
+			setTerm(r.term, 0, r.length);
+			return true;
+		}
+
+		@Override
+		long nextOccurrence() throws IOException {
+			for (; i < current.size(); i++) {
+				long o = current.get(i).nextOccurrence();
+				if (o != -1) return o;
+			}
+			return -1;
+		}
+
+	}
+
+	private static long readVarLong(InputStream in, int b) throws IOException {
+		long v = 0;
+		int shift = 0;
+		while (true) {
+			if (b == -1) throw new EOFException();
+			v |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return v;
+			shift += 7;
+			b = in.read();
+		}
+	}
+
+}
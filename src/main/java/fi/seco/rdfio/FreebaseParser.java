@@ -1,11 +1,32 @@
 package fi.seco.rdfio;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import fi.seco.rdfio.LineChunker.LineChunk;
 import fi.seco.rdfobject.IRDFObject;
 import fi.seco.rdfobject.ITriple;
 import fi.seco.rdfobject.ITripleVisitor;
@@ -17,76 +38,498 @@ import fi.seco.util.LocaleUtil;
 public class FreebaseParser {
 
 	private static final Logger log = LoggerFactory.getLogger(FreebaseParser.class);
-	private static final CharSequence fieldSeparator = "\t";
 	private static final String freebaseNsPrefix = "http://rdf.freebase.com/ns/";
 
 	private static final String DEFAULT_LANG_REGEX = "/lang/";
 	private static final String KEY_TYPE1_REGEX = "type.key.namespace";
 	private static final String KEY_TYPE2_REGEX = "type.object.key";
 	private static final String BAD_ISBN = "soft.isbn.";
+	private static final String BAD_ISBN_DATATYPE = freebaseNsPrefix + "soft.isbn";
 
-	private static final String convertId(String id) {
-		return id.replace("/", ".");
+	/**
+	 * A bounded cache keyed by character ranges, so that lookups do not need
+	 * to create a string for the key. Cleared when full.
+	 */
+	private static final class CharRangeCache<V> {
+		private final int maxSize;
+		private final char[][] keys;
+		private final Object[] values;
+		private final int mask;
+		private int size;
+
+		CharRangeCache(int maxSize) {
+			this.maxSize = maxSize;
+			int cap = Integer.highestOneBit(maxSize * 2 - 1) << 1;
+			this.keys = new char[cap][];
+			this.values = new Object[cap];
+			this.mask = cap - 1;
+		}
+
+		private static int hash(char[] a, int s, int e) {
+			int h = 0;
+			for (int i = s; i < e; i++)
+				h = 31 * h + a[i];
+			return h ^ (h >>> 16);
+		}
+
+		private static boolean equals(char[] k, char[] a, int s, int e) {
+			if (k.length != e - s) return false;
+			for (int i = 0; i < k.length; i++)
+				if (k[i] != a[s + i]) return false;
+			return true;
+		}
+
+		@SuppressWarnings("unchecked")
+		V get(char[] a, int s, int e) {
+			int i = hash(a, s, e) & mask;
+			char[] k;
+			while ((k = keys[i]) != null) {
+				if (equals(k, a, s, e)) return (V) values[i];
+				i = (i + 1) & mask;
+			}
+			return null;
+		}
+
+		void put(char[] a, int s, int e, V v) {
+			if (size >= maxSize) {
+				Arrays.fill(keys, null);
+				Arrays.fill(values, null);
+				size = 0;
+			}
+			int i = hash(a, s, e) & mask;
+			while (keys[i] != null)
+				i = (i + 1) & mask;
+			keys[i] = Arrays.copyOfRange(a, s, e);
+			values[i] = v;
+			size++;
+		}
 	}
 
-	private static final boolean isItKeyTypeAssertion(String predicate) {
+	private static final class Predicate {
+		final IRDFObject uri;
+		final boolean keyType;
 
-		/*
-		 * for (String regex: keyRegexList) { if (regex.contains(predicate))
-		 * return true; }
+		Predicate(IRDFObject uri, boolean keyType) {
+			this.uri = uri;
+			this.keyType = keyType;
+		}
+	}
+
+	/**
+	 * A single pass scanner over Freebase dump lines. Keeps a reusable buffer
+	 * for building converted ids as well as caches for predicates, key
+	 * namespace datatypes and language locales, so transforming a line only
+	 * allocates the strings and objects of the resulting triple. Not thread
+	 * safe.
+	 */
+	static final class QuadScanner {
+
+		private final StringBuilder sb = new StringBuilder(128);
+		private final CharRangeCache<Predicate> predicates = new CharRangeCache<Predicate>(65536);
+		private final CharRangeCache<String> datatypes = new CharRangeCache<String>(65536);
+		private final CharRangeCache<Locale> locales = new CharRangeCache<Locale>(4096);
+		private final int[] fieldStart = new int[4];
+		private final int[] fieldEnd = new int[4];
+
+		/**
+		 * Append an id to the id buffer, dropping its first character and
+		 * replacing slashes with dots
 		 */
+		private void appendConverted(char[] a, int s, int e) {
+			for (int i = s + 1; i < e; i++) {
+				char c = a[i];
+				sb.append(c == '/' ? '.' : c);
+			}
+		}
+
+		private String convertedURI(char[] a, int s, int e) {
+			sb.setLength(0);
+			sb.append(freebaseNsPrefix);
+			appendConverted(a, s, e);
+			return sb.toString();
+		}
+
+		private boolean equalsConverted(char[] a, int s, int e, String v) {
+			if (e - s - 1 != v.length()) return false;
+			for (int i = 0; i < v.length(); i++) {
+				char c = a[s + 1 + i];
+				if ((c == '/' ? '.' : c) != v.charAt(i)) return false;
+			}
+			return true;
+		}
+
+		private boolean startsWithConverted(char[] a, int s, int e, String v) {
+			if (e - s - 1 < v.length()) return false;
+			for (int i = 0; i < v.length(); i++) {
+				char c = a[s + 1 + i];
+				if ((c == '/' ? '.' : c) != v.charAt(i)) return false;
+			}
+			return true;
+		}
 
-		if (KEY_TYPE1_REGEX.equals(predicate) || KEY_TYPE2_REGEX.equals(predicate)) return true;
+		private static int indexOf(char[] a, int s, int e, String v) {
+			outer: for (int i = s; i <= e - v.length(); i++) {
+				for (int j = 0; j < v.length(); j++)
+					if (a[i + j] != v.charAt(j)) continue outer;
+				return i;
+			}
+			return -1;
+		}
+
+		private Predicate getPredicate(char[] a, int s, int e) {
+			Predicate p = predicates.get(a, s, e);
+			if (p == null) {
+				p = new Predicate(new URIResourceRDFObject(convertedURI(a, s, e)), equalsConverted(a, s, e, KEY_TYPE1_REGEX) || equalsConverted(a, s, e, KEY_TYPE2_REGEX));
+				predicates.put(a, s, e, p);
+			}
+			return p;
+		}
+
+		private Locale getLocale(char[] a, int s, int e) {
+			Locale l = locales.get(a, s, e);
+			if (l == null) {
+				l = LocaleUtil.parseLocaleString(new String(a, s, e - s));
+				if (l != null) locales.put(a, s, e, l);
+			}
+			return l;
+		}
+
+		private String getDatatype(char[] a, int s, int e) {
+			String dt = datatypes.get(a, s, e);
+			if (dt == null) {
+				dt = convertedURI(a, s, e);
+				datatypes.put(a, s, e, dt);
+			}
+			return dt;
+		}
+
+		/**
+		 * Transform a line of a Freebase dump
+		 *
+		 * @param a
+		 *            the buffer holding the line
+		 * @param start
+		 *            the start of the line in the buffer
+		 * @param end
+		 *            the end of the line in the buffer, excluding the line
+		 *            terminator
+		 * @param visitor
+		 *            the visitor to pass the resulting triple to
+		 */
+		public void transformQuad(char[] a, int start, int end, ITripleVisitor visitor) {
+			// split at tabs, dropping trailing empty fields like String.split does
+			int fields = 0;
+			int nonEmptyFields = 0;
+			int fs = start;
+			for (int i = start; i <= end; i++)
+				if (i == end || a[i] == '\t') {
+					if (fields < 4) {
+						fieldStart[fields] = fs;
+						fieldEnd[fields] = i;
+					}
+					fields++;
+					if (i > fs) nonEmptyFields = fields;
+					fs = i + 1;
+				}
+			if (nonEmptyFields < 3 || nonEmptyFields > 4 || fieldEnd[0] == fieldStart[0] || fieldEnd[1] == fieldStart[1]) {
+				if (log.isDebugEnabled()) log.debug("Malformed (" + nonEmptyFields + " tuples): " + new String(a, start, end - start));
+				RDFIOMetrics.badTerm("Malformed line");
+				return;
+			}
+			Predicate predicate = getPredicate(a, fieldStart[1], fieldEnd[1]);
+			IRDFObject trs = new URIResourceRDFObject(convertedURI(a, fieldStart[0], fieldEnd[0]));
+			IRDFObject tro;
+			if (nonEmptyFields == 3)
+				tro = new URIResourceRDFObject(convertedURI(a, fieldStart[2], fieldEnd[2]));
+			else {
+				int ts = fieldStart[2];
+				int te = fieldEnd[2];
+				if (te == ts)
+					tro = new LiteralRDFObject(new String(a, fieldStart[3], fieldEnd[3] - fieldStart[3]));
+				else if (predicate.keyType) {
+					if (startsWithConverted(a, ts, te, BAD_ISBN)) {
+						sb.setLength(0);
+						appendConverted(a, ts + BAD_ISBN.length(), te);
+						tro = new LiteralRDFObject(sb.toString(), null, BAD_ISBN_DATATYPE);
+					} else tro = new LiteralRDFObject(new String(a, fieldStart[3], fieldEnd[3] - fieldStart[3]), null, getDatatype(a, ts, te));
+				} else {
+					int li = indexOf(a, ts, te, DEFAULT_LANG_REGEX);
+					if (li == -1) {
+						if (log.isDebugEnabled()) log.debug("Couldn't understand quad: " + new String(a, start, end - start));
+						RDFIOMetrics.badTerm("Unknown literal type");
+						return;
+					}
+					Locale locale;
+					if (li == ts && indexOf(a, ts + DEFAULT_LANG_REGEX.length(), te, DEFAULT_LANG_REGEX) == -1)
+						locale = getLocale(a, ts + DEFAULT_LANG_REGEX.length(), te);
+					else locale = LocaleUtil.parseLocaleString(new String(a, ts, te - ts).replace(DEFAULT_LANG_REGEX, ""));
+					tro = new LiteralRDFObject(new String(a, fieldStart[3], fieldEnd[3] - fieldStart[3]), locale);
+				}
+			}
+			visitor.visit(new Triple(trs, predicate.uri, tro));
+		}
+
+		/**
+		 * Transform the complete lines in a buffer, leaving the position at
+		 * the start of the first incomplete line. Lines end in '\n', '\r'
+		 * or "\r\n", like for {@link BufferedReader#readLine()}.
+		 */
+		public void transformLines(CharBuffer cb, ITripleVisitor visitor) {
+			char[] a = cb.array();
+			int start = cb.arrayOffset() + cb.position();
+			int end = cb.arrayOffset() + cb.limit();
+			for (int i = start; i < end; i++)
+				if (a[i] == '\n') {
+					transformQuad(a, start, i, visitor);
+					start = i + 1;
+				} else if (a[i] == '\r') {
+					// a '\n' may follow in the next read
+					if (i + 1 == end) break;
+					transformQuad(a, start, i, visitor);
+					if (a[i + 1] == '\n') i++;
+					start = i + 1;
+				}
+			cb.position(start - cb.arrayOffset());
+		}
+
+		/**
+		 * Transform what is left in a buffer at the end of input
+		 */
+		public void transformRest(CharBuffer cb, ITripleVisitor visitor) {
+			transformLines(cb, visitor);
+			if (cb.hasRemaining()) {
+				int start = cb.arrayOffset() + cb.position();
+				int end = cb.arrayOffset() + cb.limit();
+				if (cb.array()[end - 1] == '\r') end--;
+				transformQuad(cb.array(), start, end, visitor);
+				cb.position(cb.limit());
+			}
+		}
 
-		return false;
+		/**
+		 * Make room in a buffer holding a partial line for reading more,
+		 * growing the buffer if the line fills it completely
+		 *
+		 * @return the buffer to continue reading into
+		 */
+		static CharBuffer compact(CharBuffer cb) {
+			if (cb.remaining() == cb.capacity()) {
+				CharBuffer ncb = CharBuffer.allocate(cb.capacity() * 2);
+				ncb.put(cb);
+				return ncb;
+			}
+			cb.compact();
+			return cb;
+		}
 	}
 
 	public static void transformData(BufferedReader r, ITripleVisitor visitor) {
-		String line;
+		transformData((Reader) r, visitor);
+	}
+
+	/**
+	 * Transform a Freebase dump read from a reader. Lines are scanned in
+	 * place in a reusable buffer.
+	 *
+	 * @param r
+	 *            the reader to read from
+	 * @param visitor
+	 *            the visitor to pass the triples to
+	 */
+	public static void transformData(Reader r, ITripleVisitor visitor) {
+		QuadScanner scanner = new QuadScanner();
+		CharBuffer cb = CharBuffer.allocate(1024 * 1024);
 		try {
-			while ((line = r.readLine()) != null)
-				transformQuad(line, visitor);
+			while (r.read(cb) != -1) {
+				cb.flip();
+				scanner.transformLines(cb, visitor);
+				cb = QuadScanner.compact(cb);
+			}
+			cb.flip();
+			scanner.transformRest(cb, visitor);
 		} catch (IOException e) {
 			log.error("", e);
 		}
 	}
 
-	private static void transformQuad(String assertion, ITripleVisitor visitor) {
-		if (assertion == null) throw new NullPointerException();
+	/**
+	 * Transform a local Freebase dump file. The file is memory-mapped and
+	 * decoded directly from the mapping, without going through an input
+	 * stream.
+	 *
+	 * @param f
+	 *            the (uncompressed) dump file
+	 * @param visitor
+	 *            the visitor to pass the triples to
+	 */
+	public static void transformFile(File f, ITripleVisitor visitor) {
+		QuadScanner scanner = new QuadScanner();
+		try {
+			RandomAccessFile raf = new RandomAccessFile(f, "r");
+			try {
+				FileChannel ch = raf.getChannel();
+				long size = ch.size();
+				CharsetDecoder dec = Charset.forName("UTF-8").newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+				CharBuffer cb = CharBuffer.allocate(1024 * 1024);
+				long pos = 0;
+				do {
+					MappedByteBuffer bb = ch.map(MapMode.READ_ONLY, pos, Math.min(MappedFileInputStream.WINDOW_SIZE, size - pos));
+					boolean last = pos + bb.limit() == size;
+					while (true) {
+						CoderResult cr = dec.decode(bb, cb, last);
+						cb.flip();
+						scanner.transformLines(cb, visitor);
+						cb = QuadScanner.compact(cb);
+						if (cr.isUnderflow()) break;
+					}
+					pos += bb.position();
+					if (last) {
+						dec.flush(cb);
+						cb.flip();
+						scanner.transformRest(cb, visitor);
+					}
+				} while (pos < size);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			log.error("", e);
+		}
+	}
 
-		String[] splits = assertion.split(fieldSeparator.toString());
-		if (splits.length < 3 || splits.length > 4) {
-			if (log.isDebugEnabled()) log.debug("Malformed (" + splits.length + " tuples): " + assertion);
-			return;
-		}
-
-		String predicate = convertId(splits[1].substring(1, splits[1].length()));
-		IRDFObject trs = new URIResourceRDFObject(freebaseNsPrefix + convertId(splits[0].substring(1, splits[0].length())));
-		IRDFObject trp = new URIResourceRDFObject(freebaseNsPrefix + predicate);
-		IRDFObject tro;
-		if (splits.length == 3)
-			tro = new URIResourceRDFObject(freebaseNsPrefix + convertId(splits[2].substring(1, splits[2].length())));
-		else {
-			String to = splits[2];
-			String val = splits[3];
-			if (to.length() == 0)
-				tro = new LiteralRDFObject(val);
-			else if (isItKeyTypeAssertion(predicate)) {
-				to = convertId(to.substring(1, splits[2].length()));
-				if (to.startsWith(BAD_ISBN)) {
-					val = to.substring(BAD_ISBN.length());
-					to = "soft.isbn";
-				}
-				tro = new LiteralRDFObject(val, null, freebaseNsPrefix + to);
-			} else if (to.contains(DEFAULT_LANG_REGEX)) {
-				to = to.replace(DEFAULT_LANG_REGEX, "");
-				tro = new LiteralRDFObject(val, LocaleUtil.parseLocaleString(to));
-			} else {
-				if (log.isDebugEnabled()) log.debug("Couldn't understand quad: " + assertion);
-				return;
+	private static final class WorkerState {
+		final QuadScanner scanner = new QuadScanner();
+		final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		CharBuffer cb = CharBuffer.allocate(1024 * 1024);
+	}
+
+	private static final ThreadLocal<WorkerState> workerState = new ThreadLocal<WorkerState>() {
+
+		@Override
+		protected WorkerState initialValue() {
+			return new WorkerState();
+		}
+
+	};
+
+	/**
+	 * Transform a chunk of complete UTF-8 encoded lines
+	 */
+	static List<ITriple> transformChunk(LineChunk chunk) {
+		RDFIOMetrics.IListener metrics = RDFIOMetrics.getListener();
+		long start = metrics == null ? 0 : System.nanoTime();
+		WorkerState s = workerState.get();
+		ByteBuffer bb = chunk.data.duplicate();
+		if (s.cb.capacity() < bb.remaining()) s.cb = CharBuffer.allocate(bb.remaining());
+		CharBuffer cb = s.cb;
+		cb.clear();
+		s.decoder.reset();
+		s.decoder.decode(bb, cb, true);
+		s.decoder.flush(cb);
+		cb.flip();
+		final List<ITriple> ret = new ArrayList<ITriple>(chunk.length() / 64);
+		s.scanner.transformRest(cb, new ITripleVisitor() {
+
+			@Override
+			public void visit(ITriple t) {
+				ret.add(t);
+			}
+
+		});
+		if (metrics != null) metrics.stageTime(RDFIOMetrics.Stage.PARSE, System.nanoTime() - start);
+		return ret;
+	}
+
+	/**
+	 * Transform a UTF-8 encoded Freebase dump in parallel. The input is read
+	 * in batches of lines, which are decoded and transformed on a worker pool.
+	 * The triples are passed to the visitor on the calling thread. The number
+	 * of batches in flight is bounded, so a slow visitor slows down reading
+	 * instead of letting transformed batches pile up.
+	 *
+	 * @param in
+	 *            the stream to read from
+	 * @param visitor
+	 *            the visitor to pass the triples to
+	 * @param threads
+	 *            the number of worker threads, zero or less for one per
+	 *            processor
+	 * @param ordered
+	 *            whether triples need to be passed in input order
+	 */
+	public static void transformData(InputStream in, ITripleVisitor visitor, int threads, boolean ordered) {
+		transformData(LineChunker.forStream(in, ParallelNTuplesParser.DEFAULT_CHUNK_SIZE), visitor, threads, ordered);
+	}
+
+	/**
+	 * Transform a local Freebase dump file in parallel, handing slices of the
+	 * memory-mapped file to the workers
+	 *
+	 * @see #transformData(InputStream, ITripleVisitor, int, boolean)
+	 */
+	public static void transformFile(File f, ITripleVisitor visitor, int threads, boolean ordered) {
+		try {
+			transformData(LineChunker.forFile(f, ParallelNTuplesParser.DEFAULT_CHUNK_SIZE), visitor, threads, ordered);
+		} catch (IOException e) {
+			log.error("", e);
+		}
+	}
+
+	private static void transformData(LineChunker chunker, final ITripleVisitor visitor, int threads, boolean ordered) {
+		transformData(chunker, visitor, threads, ordered, null);
+	}
+
+	/**
+	 * @param listener
+	 *            notified after the triples of each chunk have been passed to
+	 *            the visitor, or <code>null</code>. Requires ordered delivery.
+	 */
+	static void transformData(LineChunker chunker, final ITripleVisitor visitor, int threads, boolean ordered, final LineChunker.IChunkListener listener) {
+		if (listener != null && !ordered) throw new IllegalArgumentException("Chunk listeners need ordered delivery");
+		if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = ChunkPipeline.newThreadPool(threads, "rdfio-freebase");
+		final ArrayDeque<Long> ends = new ArrayDeque<Long>();
+		ChunkPipeline<List<ITriple>> pipeline = new ChunkPipeline<List<ITriple>>(executor, 2 * threads, ordered, new ChunkPipeline.IResultHandler<List<ITriple>>() {
+
+			@Override
+			public void handle(List<ITriple> result) {
+				for (ITriple t : result)
+					visitor.visit(t);
+				if (listener != null) listener.chunkHandled(ends.poll(), result.size());
+			}
+
+		});
+		try {
+			LineChunk c;
+			while ((c = chunker.next()) != null) {
+				final LineChunk chunk = c;
+				if (listener != null) ends.add(chunk.offset + chunk.length());
+				pipeline.submit(new Callable<List<ITriple>>() {
+
+					@Override
+					public List<ITriple> call() {
+						return transformChunk(chunk);
+					}
+
+				});
+			}
+			pipeline.finish();
+		} catch (IOException e) {
+			log.error("", e);
+		} finally {
+			pipeline.cancel();
+			executor.shutdownNow();
+			try {
+				chunker.close();
+			} catch (IOException e) {
+				log.error("", e);
 			}
 		}
-		visitor.visit(new Triple(trs, trp, tro));
+	}
+
+	private static void transformQuad(String assertion, ITripleVisitor visitor) {
+		if (assertion == null) throw new NullPointerException();
+		new QuadScanner().transformQuad(assertion.toCharArray(), 0, assertion.length(), visitor);
 	}
 
 	public static void main(String[] args) throws Exception {
@@ -116,4 +559,4 @@ public class FreebaseParser {
 		FreebaseParser.transformQuad("/m/026jl_d\t/type/object/name\t/guid/9202a8c04000641f8000000004684bec\t\"2004-11-22\"", v);
 
 	}
-}
\ No newline at end of file
+}
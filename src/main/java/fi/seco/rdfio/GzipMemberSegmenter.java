@@ -0,0 +1,258 @@
+package fi.seco.rdfio;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import fi.seco.rdfio.ParallelDecompressingInputStream.ISegmenter;
+import fi.seco.rdfio.ParallelDecompressingInputStream.Segment;
+
+/**
+ * Splits a multi-member gzip stream (as produced by e.g. pigz or by
+ * concatenating gzip files) at member boundaries. Candidate boundaries are
+ * found by looking for the gzip member header, and verified by decoding: a
+ * segment that does not decode into complete members with matching trailers
+ * is merged with the next one. If no member boundary is found within the
+ * target segment size (as for an ordinary single member gzip file), the rest
+ * of the source is decoded sequentially. A segment decoding to more than
+ * {@link #MAX_DECODED} bytes is only verified in parallel, and then decoded
+ * sequentially as it is read.
+ */
+final class GzipMemberSegmenter implements ISegmenter {
+
+	/** The maximum size of a segment decoded in memory */
+	static final int MAX_DECODED = 64 * 1024 * 1024;
+
+	static final class MemberSegment extends Segment {
+		final byte[] data;
+		final int length;
+		final boolean last;
+		/** set when the segment is valid but too large to decode in memory */
+		private volatile boolean streamed;
+
+		MemberSegment(byte[] data, int length, boolean last) {
+			this.data = data;
+			this.length = length;
+			this.last = last;
+		}
+
+		@Override
+		public byte[] decode() {
+			try {
+				byte[] d = decodeMembers(data, length, last, MAX_DECODED);
+				if (d == null) streamed = true;
+				return d;
+			} catch (DataFormatException e) {
+				return null;
+			} catch (RuntimeException e) {
+				return null;
+			}
+		}
+
+		@Override
+		public Segment merge(Segment next) throws IOException {
+			if (next instanceof MemberSegment) {
+				MemberSegment n = (MemberSegment) next;
+				byte[] m = new byte[length + n.length];
+				System.arraycopy(data, 0, m, 0, length);
+				System.arraycopy(n.data, 0, m, length, n.length);
+				return new MemberSegment(m, m.length, n.last);
+			}
+			if (next instanceof TailSegment) return new TailSegment(new SequenceInputStream(new ByteArrayInputStream(data, 0, length), ((TailSegment) next).raw));
+			throw new IOException("Corrupt gzip data");
+		}
+
+		@Override
+		public boolean isTail() {
+			return streamed;
+		}
+
+		@Override
+		public InputStream getStream() {
+			try {
+				return new ReadAheadInputStream(new GZIPInputStream(new ByteArrayInputStream(data, 0, length), 65536));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	static final class TailSegment extends Segment {
+		final InputStream raw;
+
+		TailSegment(InputStream raw) {
+			this.raw = raw;
+		}
+
+		@Override
+		public byte[] decode() {
+			return null;
+		}
+
+		@Override
+		public boolean isTail() {
+			return true;
+		}
+
+		@Override
+		public InputStream getStream() {
+			try {
+				return new ReadAheadInputStream(new GZIPInputStream(raw, 65536));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static boolean isHeader(byte[] b, int i, int length) {
+		return i + 10 <= length && b[i] == 0x1f && (b[i + 1] & 0xFF) == 0x8b && b[i + 2] == 8 && (b[i + 3] & 0xE0) == 0;
+	}
+
+	private static int skipZeroTerminated(byte[] b, int i, int length) throws DataFormatException {
+		while (i < length && b[i] != 0)
+			i++;
+		if (i == length) throw new DataFormatException("Truncated gzip header");
+		return i + 1;
+	}
+
+	/**
+	 * Decode a sequence of complete gzip members
+	 *
+	 * @param last
+	 *            whether the data ends the source, in which case trailing
+	 *            garbage after the last member is ignored like
+	 *            {@link GZIPInputStream} does
+	 * @param max
+	 *            the maximum number of bytes to decode into memory. Past it,
+	 *            the members are still decoded to verify them, but the output
+	 *            is dropped.
+	 * @return the decoded data, or <code>null</code> if it is larger than
+	 *         <code>max</code>
+	 */
+	static byte[] decodeMembers(byte[] b, int length, boolean last, int max) throws DataFormatException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(4L * length, max));
+		long total = 0;
+		byte[] buf = new byte[65536];
+		Inflater inf = new Inflater(true);
+		CRC32 crc = new CRC32();
+		try {
+			int i = 0;
+			while (i < length) {
+				if (!isHeader(b, i, length)) {
+					if (last && i > 0) break;
+					throw new DataFormatException("Not a gzip member header");
+				}
+				int flg = b[i + 3];
+				i += 10;
+				if ((flg & 4) != 0) {
+					if (i + 2 > length) throw new DataFormatException("Truncated gzip header");
+					i += 2 + ((b[i] & 0xFF) | ((b[i + 1] & 0xFF) << 8));
+				}
+				if ((flg & 8) != 0) i = skipZeroTerminated(b, i, length);
+				if ((flg & 16) != 0) i = skipZeroTerminated(b, i, length);
+				if ((flg & 2) != 0) i += 2;
+				if (i > length) throw new DataFormatException("Truncated gzip header");
+				inf.reset();
+				crc.reset();
+				inf.setInput(b, i, length - i);
+				long size = 0;
+				while (!inf.finished()) {
+					int r = inf.inflate(buf);
+					if (r == 0 && (inf.needsInput() || inf.needsDictionary())) throw new DataFormatException("Truncated gzip member");
+					crc.update(buf, 0, r);
+					if (out != null && total + r > max) out = null;
+					if (out != null) out.write(buf, 0, r);
+					size += r;
+					total += r;
+				}
+				i = length - inf.getRemaining();
+				if (i + 8 > length) throw new DataFormatException("Truncated gzip trailer");
+				long storedCrc = readInt(b, i);
+				long storedSize = readInt(b, i + 4);
+				if (storedCrc != crc.getValue() || storedSize != (size & 0xFFFFFFFFL)) throw new DataFormatException("gzip trailer mismatch");
+				i += 8;
+			}
+		} finally {
+			inf.end();
+		}
+		return out == null ? null : out.toByteArray();
+	}
+
+	private static long readInt(byte[] b, int i) {
+		return ((b[i] & 0xFFL) | ((b[i + 1] & 0xFFL) << 8) | ((b[i + 2] & 0xFFL) << 16) | ((b[i + 3] & 0xFFL) << 24));
+	}
+
+	private final InputStream in;
+	private final int targetSize;
+	private byte[] buf;
+	private int bufLength;
+	private int scanPos = 1;
+	/** the last member header found before the target size, or 0 */
+	private int lastHeader;
+	private boolean eof;
+	private boolean tail;
+
+	/**
+	 * @param in
+	 *            the gzip source
+	 * @param targetSize
+	 *            the size of segments to aim for. Consecutive small members
+	 *            are collected into a single segment up to this size, and
+	 *            segments never exceed twice this size.
+	 */
+	public GzipMemberSegmenter(InputStream in, int targetSize) {
+		this.in = in;
+		this.targetSize = targetSize;
+		this.buf = new byte[targetSize * 2];
+	}
+
+	private MemberSegment cut(int end, boolean last) {
+		byte[] d = new byte[end];
+		System.arraycopy(buf, 0, d, 0, end);
+		System.arraycopy(buf, end, buf, 0, bufLength - end);
+		bufLength -= end;
+		scanPos = 1;
+		lastHeader = 0;
+		return new MemberSegment(d, end, last);
+	}
+
+	@Override
+	public Segment next() throws IOException {
+		if (tail) return null;
+		while (true) {
+			for (int s = scanPos; s + 10 <= bufLength; s++)
+				if (isHeader(buf, s, bufLength)) {
+					if (s >= targetSize) return cut(s, false);
+					lastHeader = s;
+				}
+			scanPos = Math.max(scanPos, bufLength - 9);
+			if (lastHeader == 0 && bufLength >= targetSize + 10) {
+				// a member larger than the target, such as a single member file
+				tail = true;
+				return new TailSegment(new SequenceInputStream(new ByteArrayInputStream(buf, 0, bufLength), in));
+			}
+			if (eof) {
+				if (bufLength == 0) return null;
+				return cut(bufLength, true);
+			}
+			// the members before the target size, the next one being too large
+			if (bufLength == buf.length) return cut(lastHeader, false);
+			int r = in.read(buf, bufLength, buf.length - bufLength);
+			if (r == -1)
+				eof = true;
+			else bufLength += r;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+}
@@ -0,0 +1,229 @@
+package fi.seco.rdfio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Splits input into chunks of roughly a given size, each ending at a newline
+ * boundary (or the end of input), so that line based formats can be parsed
+ * chunk by chunk independently.
+ */
+abstract class LineChunker {
+
+	/**
+	 * A chunk of complete lines
+	 */
+	static final class LineChunk {
+		/** the data of the chunk, from position to limit */
+		public final ByteBuffer data;
+		/** the offset of the first byte of the chunk in the input */
+		public final long offset;
+
+		public LineChunk(ByteBuffer data, long offset) {
+			this.data = data;
+			this.offset = offset;
+		}
+
+		/**
+		 * @return an input stream over the chunk data. Does not consume the
+		 *         chunk, so can be called multiple times.
+		 */
+		public InputStream getInputStream() {
+			return new ByteBufferInputStream(data.duplicate());
+		}
+
+		public int length() {
+			return data.remaining();
+		}
+	}
+
+	/**
+	 * Notified after the results of each chunk have been handled, in input
+	 * order, on the thread handling them
+	 */
+	interface IChunkListener {
+		/**
+		 * @param end
+		 *            the offset in the input right after the chunk
+		 * @param count
+		 *            the number of results the chunk produced
+		 */
+		public void chunkHandled(long end, int count);
+	}
+
+	/**
+	 * @return a chunker reading from a stream, copying the data into heap
+	 *         buffers
+	 */
+	public static LineChunker forStream(InputStream in, int chunkSize) {
+		return forStream(in, 0, chunkSize);
+	}
+
+	/**
+	 * @param offset
+	 *            the offset in the whole input the stream starts at, used for
+	 *            the chunk offsets
+	 * @return a chunker reading from a stream, copying the data into heap
+	 *         buffers
+	 */
+	public static LineChunker forStream(InputStream in, long offset, int chunkSize) {
+		return new StreamLineChunker(in, offset, chunkSize);
+	}
+
+	/**
+	 * @return a chunker handing out slices of a memory-mapped local file,
+	 *         without copying
+	 * @throws IOException
+	 */
+	public static LineChunker forFile(File f, int chunkSize) throws IOException {
+		return forFile(f, 0, chunkSize);
+	}
+
+	/**
+	 * @param offset
+	 *            the offset in the file to start from, which must be at a line
+	 *            boundary
+	 * @return a chunker handing out slices of a memory-mapped local file,
+	 *         without copying
+	 * @throws IOException
+	 */
+	public static LineChunker forFile(File f, long offset, int chunkSize) throws IOException {
+		return new MappedLineChunker(f, offset, chunkSize);
+	}
+
+	/**
+	 * @return the next chunk of lines, or <code>null</code> at the end of
+	 *         input
+	 * @throws IOException
+	 */
+	public abstract LineChunk next() throws IOException;
+
+	public abstract void close() throws IOException;
+
+	private static final class StreamLineChunker extends LineChunker {
+
+		private final InputStream in;
+		private final int chunkSize;
+		private byte[] carry = new byte[0];
+		private int carryLength;
+		private long offset;
+		private boolean eof;
+
+		StreamLineChunker(InputStream in, long offset, int chunkSize) {
+			this.in = in;
+			this.offset = offset;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public LineChunk next() throws IOException {
+			if (eof && carryLength == 0) return null;
+			byte[] buf = new byte[Math.max(chunkSize, carryLength * 2)];
+			System.arraycopy(carry, 0, buf, 0, carryLength);
+			int len = carryLength;
+			int scanFrom = carryLength;
+			carryLength = 0;
+			int lastNewline = -1;
+			while (true) {
+				while (!eof && len < buf.length) {
+					int r = in.read(buf, len, buf.length - len);
+					if (r == -1)
+						eof = true;
+					else len += r;
+				}
+				for (int i = len - 1; i >= scanFrom; i--)
+					if (buf[i] == '\n') {
+						lastNewline = i;
+						break;
+					}
+				if (lastNewline != -1 || eof) break;
+				// a single line longer than the buffer, grow and continue
+				scanFrom = len;
+				byte[] nbuf = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, nbuf, 0, len);
+				buf = nbuf;
+			}
+			int end = eof ? len : lastNewline + 1;
+			if (end < len) {
+				carryLength = len - end;
+				if (carry.length < carryLength) carry = new byte[Math.max(carryLength, 8192)];
+				System.arraycopy(buf, end, carry, 0, carryLength);
+			}
+			if (end == 0) return null;
+			LineChunk c = new LineChunk(ByteBuffer.wrap(buf, 0, end), offset);
+			offset += end;
+			return c;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+	private static final class MappedLineChunker extends LineChunker {
+
+		private final RandomAccessFile raf;
+		private final FileChannel channel;
+		private final long size;
+		private final int chunkSize;
+		private MappedByteBuffer window;
+		private long windowStart;
+		private long offset;
+
+		MappedLineChunker(File f, long offset, int chunkSize) throws IOException {
+			this.raf = new RandomAccessFile(f, "r");
+			this.channel = raf.getChannel();
+			this.size = channel.size();
+			this.offset = offset;
+			this.chunkSize = chunkSize;
+		}
+
+		@Override
+		public LineChunk next() throws IOException {
+			if (offset >= size) return null;
+			if (window == null || offset + chunkSize > windowStart + window.limit() && windowStart + window.limit() < size) {
+				windowStart = offset;
+				window = channel.map(MapMode.READ_ONLY, windowStart, Math.min(MappedFileInputStream.WINDOW_SIZE, size - windowStart));
+			}
+			int start = (int) (offset - windowStart);
+			int limit = window.limit();
+			int end = Math.min(start + chunkSize, limit);
+			if (end < limit || windowStart + limit < size) {
+				int i = end - 1;
+				while (i >= start && window.get(i) != '\n')
+					i--;
+				if (i >= start)
+					end = i + 1;
+				else {
+					// a line longer than the chunk size, extend to its end
+					i = end;
+					while (i < limit && window.get(i) != '\n')
+						i++;
+					if (i == limit && windowStart + limit < size) throw new IOException("Line longer than " + MappedFileInputStream.WINDOW_SIZE + " bytes at offset " + offset);
+					end = Math.min(i + 1, limit);
+				}
+			}
+			ByteBuffer slice = window.duplicate();
+			slice.limit(end);
+			slice.position(start);
+			LineChunk c = new LineChunk(slice.slice(), offset);
+			offset = windowStart + end;
+			return c;
+		}
+
+		@Override
+		public void close() throws IOException {
+			raf.close();
+		}
+
+	}
+
+}
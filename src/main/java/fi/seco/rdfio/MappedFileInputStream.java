@@ -0,0 +1,101 @@
+package fi.seco.rdfio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * An input stream over a memory-mapped local file. The file is mapped in
+ * large windows, so reads are plain bulk copies out of the page cache without
+ * per-call system call overhead, and the OS handles read-ahead.
+ */
+final class MappedFileInputStream extends InputStream {
+
+	/** The size of the windows the file is mapped in */
+	static final long WINDOW_SIZE = 1L << 30;
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long size;
+	private long windowStart;
+	private MappedByteBuffer window;
+
+	public MappedFileInputStream(File f) throws IOException {
+		this(f, 0);
+	}
+
+	/**
+	 * @param f
+	 *            the file to read
+	 * @param position
+	 *            the position in the file to start reading at
+	 * @throws IOException
+	 */
+	public MappedFileInputStream(File f, long position) throws IOException {
+		this.raf = new RandomAccessFile(f, "r");
+		this.channel = raf.getChannel();
+		this.size = channel.size();
+		map(Math.min(position, size));
+	}
+
+	private void map(long start) throws IOException {
+		windowStart = start;
+		window = channel.map(MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+	}
+
+	private boolean ensure() throws IOException {
+		if (window.hasRemaining()) return true;
+		long next = windowStart + window.limit();
+		if (next >= size) return false;
+		map(next);
+		return true;
+	}
+
+	/**
+	 * @return the current position in the file
+	 */
+	public long position() {
+		return windowStart + window.position();
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!ensure()) return -1;
+		return window.get() & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!ensure()) return -1;
+		int n = Math.min(len, window.remaining());
+		window.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) return 0;
+		long pos = position();
+		long target = Math.min(size, pos + n);
+		if (target < windowStart + window.limit())
+			window.position((int) (target - windowStart));
+		else map(target);
+		return target - pos;
+	}
+
+	@Override
+	public int available() {
+		return (int) Math.min(Integer.MAX_VALUE, size - position());
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+}
@@ -0,0 +1,368 @@
+package fi.seco.rdfio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.jena.riot.Lang;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.RDFParseException;
+
+import fi.seco.rdfio.LineChunker.LineChunk;
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
+import fi.seco.rdfio.RDFReader.IRDFHandler;
+import fi.seco.rdfobject.IQuad;
+import fi.seco.rdfobject.URIResourceRDFObject;
+
+/**
+ * Reads many files into a single RDF handler concurrently, for sources split
+ * into a large number of part files. Each file is parsed as by
+ * {@link RDFReader#read(String, IRDFHandler, RDFObjectCache)}, with its
+ * format and compression detected from its name and its url as the default
+ * graph, by a task on a work stealing {@link ForkJoinPool}. Compressed files
+ * are decompressed on one thread each, as the files are already read in
+ * parallel. Large local uncompressed N-Triples and N-Quads files are further
+ * split into chunks parsed as tasks of their own, so that a few big files
+ * among many small ones don't leave threads idle.
+ * <p>
+ * The handler is called from the pool threads, one call at a time. Quads of
+ * a file are passed in order relative to its metadata, but files and chunks
+ * are interleaved.
+ */
+public class MultiFileRDFReader {
+
+	/** Files larger than this are split into chunks where the format allows */
+	public static final long DEFAULT_SPLIT_SIZE = 4L * ParallelNTuplesParser.DEFAULT_CHUNK_SIZE;
+
+	/**
+	 * Serializes the calls of the parse tasks into the handler
+	 */
+	private static final class SynchronizedHandler implements IRDFBatchHandler {
+
+		private final Object lock;
+		private final IRDFHandler handler;
+
+		SynchronizedHandler(Object lock, IRDFHandler handler) {
+			this.lock = lock;
+			this.handler = handler;
+		}
+
+		@Override
+		public void visit(IQuad q) {
+			synchronized (lock) {
+				handler.visit(q);
+			}
+		}
+
+		@Override
+		public void visit(IQuad[] quads, int count) {
+			synchronized (lock) {
+				if (handler instanceof IRDFBatchHandler)
+					((IRDFBatchHandler) handler).visit(quads, count);
+				else for (int i = 0; i < count; i++)
+					handler.visit(quads[i]);
+			}
+		}
+
+		@Override
+		public void setNameSpace(String prefix, String ns) {
+			synchronized (lock) {
+				handler.setNameSpace(prefix, ns);
+			}
+		}
+
+		@Override
+		public void setBaseIRI(String baseIRI) {
+			synchronized (lock) {
+				handler.setBaseIRI(baseIRI);
+			}
+		}
+
+		@Override
+		public void comment(String comment) {
+			synchronized (lock) {
+				handler.comment(comment);
+			}
+		}
+
+	}
+
+	/**
+	 * The state shared by the tasks of a read
+	 */
+	private static final class Ingestion {
+		final IRDFHandler handler;
+		final Object lock = new Object();
+		final RDFObjectCache cache;
+		final long splitSize;
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+
+		Ingestion(IRDFHandler handler, RDFObjectCache cache, long splitSize) {
+			this.handler = handler;
+			this.cache = cache;
+			this.splitSize = splitSize;
+		}
+
+		void fail(Exception e) {
+			failure.compareAndSet(null, e);
+		}
+
+		boolean failed() {
+			return failure.get() != null;
+		}
+	}
+
+	private static final class FileTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Ingestion in;
+		private final String url;
+
+		FileTask(Ingestion in, String url) {
+			this.in = in;
+			this.url = url;
+		}
+
+		@Override
+		protected void compute() {
+			if (in.failed()) return;
+			try {
+				File f = CompressedInputStreams.toLocalFile(url);
+				Lang lang = RDFReader.getLang(url);
+				if (f != null && f.length() > in.splitSize && !CompressedInputStreams.isCompressed(url) && ParallelNTuplesParser.canParse(lang))
+					split(f, lang);
+				else if (CompressedInputStreams.isCompressed(url))
+					readCompressed();
+				else RDFReader.read(url, new SynchronizedHandler(in.lock, in.handler), in.cache);
+			} catch (Exception e) {
+				in.fail(e);
+			}
+		}
+
+		/**
+		 * Read a compressed file, decompressing it on a single thread as the
+		 * files are already read in parallel, so that many part files don't
+		 * start a decompression pool each
+		 */
+		private void readCompressed() throws IOException, RDFParseException, RDFHandlerException {
+			InputStream is = CompressedInputStreams.open(url, 1);
+			try {
+				RDFReader.read(is, RDFReader.getFormat(url), new URIResourceRDFObject(url), url, new SynchronizedHandler(in.lock, in.handler), in.cache);
+			} finally {
+				is.close();
+			}
+		}
+
+		private void split(File f, Lang lang) throws IOException {
+			RDFIOMetrics.IListener metrics = RDFIOMetrics.getListener();
+			long start = System.nanoTime();
+			// metered per file like the other reads, but under the shared lock
+			IRDFHandler mh = RDFIOMetrics.wrap(in.handler, metrics);
+			IRDFBatchHandler sink = new SynchronizedHandler(in.lock, mh);
+			URIResourceRDFObject dg = new URIResourceRDFObject(url);
+			LineChunker chunker = LineChunker.forFile(f, ParallelNTuplesParser.DEFAULT_CHUNK_SIZE);
+			try {
+				List<ChunkTask> tasks = new ArrayList<ChunkTask>();
+				LineChunk c;
+				while ((c = chunker.next()) != null) {
+					ChunkTask t = new ChunkTask(in, c, lang, dg, sink);
+					t.fork();
+					tasks.add(t);
+				}
+				for (ChunkTask t : tasks)
+					t.join();
+			} finally {
+				chunker.close();
+				if (metrics != null) {
+					metrics.bytesRead(f.length());
+					RDFIOMetrics.readFinished(metrics, url, start, null, mh, true);
+				}
+			}
+		}
+
+	}
+
+	private static final class ChunkTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Ingestion in;
+		private final LineChunk chunk;
+		private final Lang lang;
+		private final URIResourceRDFObject dg;
+		private final IRDFBatchHandler sink;
+
+		ChunkTask(Ingestion in, LineChunk chunk, Lang lang, URIResourceRDFObject dg, IRDFBatchHandler sink) {
+			this.in = in;
+			this.chunk = chunk;
+			this.lang = lang;
+			this.dg = dg;
+			this.sink = sink;
+		}
+
+		@Override
+		protected void compute() {
+			if (in.failed()) return;
+			try {
+				List<IQuad> quads = ParallelNTuplesParser.parseChunk(chunk, lang, dg, in.cache);
+				if (!quads.isEmpty()) sink.visit(quads.toArray(new IQuad[quads.size()]), quads.size());
+			} catch (Exception e) {
+				in.fail(e);
+			}
+		}
+
+	}
+
+	/**
+	 * @see #read(List, IRDFHandler, int, RDFObjectCache, long)
+	 */
+	public static void read(List<String> urls, IRDFHandler handler, int threads) throws IOException, RDFParseException, RDFHandlerException {
+		read(urls, handler, threads, null, DEFAULT_SPLIT_SIZE);
+	}
+
+	/**
+	 * Parse files concurrently, passing all quads and metadata to a single
+	 * handler. Local files are started largest first. Stops at the first
+	 * failure and rethrows it once the running tasks have finished.
+	 *
+	 * @param urls
+	 *            the files to read, see {@link #listSources(String)}
+	 * @param handler
+	 *            the handler to pass quads and metadata to. Called from
+	 *            multiple threads, but never concurrently.
+	 * @param threads
+	 *            the number of threads to parse with, zero or less for one
+	 *            per processor
+	 * @param cache
+	 *            a term cache shared by all parse tasks, or <code>null</code>
+	 * @param splitSize
+	 *            the size above which local N-Triples and N-Quads files are
+	 *            split into chunks parsed concurrently
+	 */
+	public static void read(List<String> urls, IRDFHandler handler, int threads, RDFObjectCache cache, long splitSize) throws IOException, RDFParseException, RDFHandlerException {
+		final Ingestion in = new Ingestion(handler, cache, splitSize);
+		final List<FileTask> tasks = new ArrayList<FileTask>(urls.size());
+		for (String url : bySizeDescending(urls))
+			tasks.add(new FileTask(in, url));
+		ForkJoinPool pool = new ForkJoinPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+		try {
+			pool.invoke(new RecursiveAction() {
+
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute() {
+					invokeAll(tasks);
+				}
+
+			});
+		} finally {
+			pool.shutdownNow();
+		}
+		Exception e = in.failure.get();
+		if (e == null) return;
+		if (e instanceof IOException) throw (IOException) e;
+		if (e instanceof RDFParseException) throw (RDFParseException) e;
+		if (e instanceof RDFHandlerException) throw (RDFHandlerException) e;
+		if (e instanceof RuntimeException) throw (RuntimeException) e;
+		throw new RuntimeException(e);
+	}
+
+	/**
+	 * @return the urls with local files ordered by size, largest first,
+	 *         followed by the others in their original order
+	 */
+	private static List<String> bySizeDescending(final List<String> urls) {
+		final long[] sizes = new long[urls.size()];
+		Integer[] order = new Integer[sizes.length];
+		for (int i = 0; i < sizes.length; i++) {
+			File f = CompressedInputStreams.toLocalFile(urls.get(i));
+			sizes[i] = f != null ? f.length() : -1;
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer a, Integer b) {
+				if (sizes[a] != sizes[b]) return sizes[a] > sizes[b] ? -1 : 1;
+				return a - b;
+			}
+
+		});
+		List<String> ret = new ArrayList<String>(sizes.length);
+		for (Integer i : order)
+			ret.add(urls.get(i));
+		return ret;
+	}
+
+	/**
+	 * List the readable files in a directory (recursively), or matching a
+	 * glob pattern such as <code>/data/part-*.nt.gz</code> or
+	 * <code>/data/**&#47;*.nq</code>. Anything else is taken to be the url of
+	 * a single file. Local paths can be given as <code>file:</code> urls or
+	 * plain paths. Shard manifests of {@link ShardedRDFWriter} are left out,
+	 * as their shards are listed themselves.
+	 *
+	 * @return the urls of the files found, sorted
+	 */
+	public static List<String> listSources(String location) throws IOException {
+		File f = location.startsWith("file:") ? CompressedInputStreams.toLocalFile(location) : location.contains("://") ? null : new File(location);
+		if (f == null) return Collections.singletonList(location);
+		final List<String> ret = new ArrayList<String>();
+		String path = f.getAbsolutePath();
+		int glob = indexOfGlob(path);
+		Path root;
+		final PathMatcher matcher;
+		if (glob != -1) {
+			root = new File(path.substring(0, path.lastIndexOf(File.separatorChar, glob) + 1)).toPath();
+			matcher = FileSystems.getDefault().getPathMatcher("glob:" + path);
+		} else if (f.isDirectory()) {
+			root = f.toPath();
+			matcher = null;
+		} else return Collections.singletonList(location.startsWith("file:") ? location : f.toURI().toString());
+		if (!Files.isDirectory(root)) return ret;
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+				String name = file.getFileName().toString();
+				if (name.startsWith(".") || ShardedRDFWriter.isManifest(name) || !RDFReader.canRead(name)) return FileVisitResult.CONTINUE;
+				if (matcher == null || matcher.matches(file.toAbsolutePath())) ret.add(file.toUri().toString());
+				return FileVisitResult.CONTINUE;
+			}
+
+		});
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private static int indexOfGlob(String path) {
+		for (int i = 0; i < path.length(); i++)
+			switch (path.charAt(i)) {
+			case '*':
+			case '?':
+			case '[':
+			case '{':
+				return i;
+			}
+		return -1;
+	}
+
+}
@@ -0,0 +1,294 @@
+package fi.seco.rdfio;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
+import fi.seco.rdfio.RDFWriter.IRDFWriter;
+import fi.seco.rdfobject.IQuad;
+import fi.seco.rdfobject.IRDFObject;
+
+/**
+ * A streaming N-Triples / N-Quads writer serializing {@link IRDFObject}s
+ * directly into a reusable byte buffer, which is written out through a
+ * channel in large chunks. Strings consisting of printable ASCII needing no
+ * escapes are copied as is. Otherwise, characters that must be escaped are,
+ * and other non-ASCII characters are written as UTF-8. In N-Quads, quads in
+ * the default graph are written without a graph.
+ */
+class NTuplesWriter implements IRDFWriter, IRDFBatchHandler {
+
+	/** The size of the output buffer */
+	public static final int BUFFER_SIZE = 256 * 1024;
+
+	private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+	private static final String DEFAULT_GRAPH = "urn:x-arq:DefaultGraph";
+	private static final String DEFAULT_GRAPH_NODE = "urn:x-arq:DefaultGraphNode";
+
+	private final OutputStream output;
+	private final WritableByteChannel channel;
+	private final boolean quads;
+	private byte[] buf = new byte[BUFFER_SIZE];
+	private int pos;
+
+	/**
+	 * @param output
+	 *            the stream to write to
+	 * @param quads
+	 *            <code>true</code> to write N-Quads, <code>false</code> for
+	 *            N-Triples
+	 */
+	public NTuplesWriter(OutputStream output, boolean quads) {
+		this.output = output;
+		this.channel = output instanceof FileOutputStream ? ((FileOutputStream) output).getChannel() : Channels.newChannel(output);
+		this.quads = quads;
+	}
+
+	private void flushBuffer() {
+		try {
+			ByteBuffer b = ByteBuffer.wrap(buf, 0, pos);
+			while (b.hasRemaining())
+				channel.write(b);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		pos = 0;
+	}
+
+	private void ensure(int n) {
+		if (pos + n <= buf.length) return;
+		flushBuffer();
+		if (n > buf.length) buf = new byte[n];
+	}
+
+	private void put(char c) {
+		buf[pos++] = (byte) c;
+	}
+
+	@Override
+	public void setNameSpace(String prefix, String ns) {}
+
+	@Override
+	public void setBaseIRI(String baseIRI) {}
+
+	@Override
+	public void comment(String comment) {
+		ensure(comment.length() * 3 + 3);
+		put('#');
+		put(' ');
+		// comments end at the line end, so fold any line breaks into spaces
+		writeUTF8(comment.replace('\n', ' ').replace('\r', ' '));
+		put('\n');
+	}
+
+	@Override
+	public void endProlog() {}
+
+	@Override
+	public void visit(IQuad q) {
+		// write() only reserves room for its own term, which it may fill
+		write(q.getSubject());
+		ensure(1);
+		put(' ');
+		write(q.getProperty());
+		ensure(1);
+		put(' ');
+		write(q.getObject());
+		if (quads) {
+			IRDFObject g = q.getGraph();
+			if (g != null && !isDefaultGraph(g)) {
+				ensure(1);
+				put(' ');
+				write(g);
+			}
+		}
+		ensure(3);
+		put(' ');
+		put('.');
+		put('\n');
+	}
+
+	@Override
+	public void visit(IQuad[] quads, int count) {
+		for (int i = 0; i < count; i++)
+			visit(quads[i]);
+	}
+
+	private static boolean isDefaultGraph(IRDFObject g) {
+		if (!g.isURIResource()) return false;
+		String uri = g.getURI();
+		return DEFAULT_GRAPH.equals(uri) || DEFAULT_GRAPH_NODE.equals(uri);
+	}
+
+	private void write(IRDFObject o) {
+		if (o.isLiteral()) {
+			String v = o.getValue();
+			ensure(v.length() * 6 + 3);
+			put('"');
+			writeLiteralValue(v);
+			put('"');
+			Locale l = o.getLang();
+			String dt = o.getDatatype();
+			if (l != null) {
+				String lang = l.toString().replace('_', '-');
+				ensure(lang.length() * 6 + 1);
+				put('@');
+				writeLang(lang);
+			} else if (dt != null) {
+				ensure(dt.length() * 6 + 4);
+				put('^');
+				put('^');
+				put('<');
+				writeIRI(dt);
+				put('>');
+			}
+		} else if (o.isBlankNode()) {
+			String label = BNodeLabelEncoder.encode(o.getURI());
+			ensure(label.length() + 2);
+			put('_');
+			put(':');
+			writeBNodeLabel(label);
+		} else {
+			String uri = o.getURI();
+			ensure(uri.length() * 6 + 2);
+			put('<');
+			writeIRI(uri);
+			put('>');
+		}
+	}
+
+	private static boolean isPlainIRIChar(char c) {
+		return c > 0x20 && c < 0x7F && c != '<' && c != '>' && c != '"' && c != '{' && c != '}' && c != '|' && c != '^' && c != '`' && c != '\\';
+	}
+
+	private void writeIRI(String s) {
+		int n = s.length();
+		int i = 0;
+		// fast path, copy the plain ASCII prefix as is
+		while (i < n && isPlainIRIChar(s.charAt(i)))
+			buf[pos++] = (byte) s.charAt(i++);
+		for (; i < n; i++) {
+			char c = s.charAt(i);
+			if (isPlainIRIChar(c))
+				buf[pos++] = (byte) c;
+			else if (c < 0x80)
+				writeUEscape(c);
+			else i = writeUTF8Char(s, i);
+		}
+	}
+
+	private void writeLiteralValue(String s) {
+		int n = s.length();
+		int i = 0;
+		// fast path, copy the printable ASCII prefix as is
+		for (char c; i < n && (c = s.charAt(i)) >= 0x20 && c < 0x7F && c != '"' && c != '\\'; i++)
+			buf[pos++] = (byte) c;
+		for (; i < n; i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '"':
+				put('\\');
+				put('"');
+				break;
+			case '\\':
+				put('\\');
+				put('\\');
+				break;
+			case '\n':
+				put('\\');
+				put('n');
+				break;
+			case '\r':
+				put('\\');
+				put('r');
+				break;
+			case '\t':
+				put('\\');
+				put('t');
+				break;
+			default:
+				if (c < 0x20 || c == 0x7F)
+					writeUEscape(c);
+				else if (c < 0x80)
+					buf[pos++] = (byte) c;
+				else i = writeUTF8Char(s, i);
+			}
+		}
+	}
+
+	private void writeLang(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-')
+				buf[pos++] = (byte) c;
+		}
+	}
+
+	/**
+	 * Copy a label encoded by {@link BNodeLabelEncoder}, which is plain ASCII
+	 */
+	private void writeBNodeLabel(String s) {
+		for (int i = 0; i < s.length(); i++)
+			buf[pos++] = (byte) s.charAt(i);
+	}
+
+	private void writeUEscape(char c) {
+		buf[pos++] = '\\';
+		buf[pos++] = 'u';
+		buf[pos++] = HEX[(c >> 12) & 0xF];
+		buf[pos++] = HEX[(c >> 8) & 0xF];
+		buf[pos++] = HEX[(c >> 4) & 0xF];
+		buf[pos++] = HEX[c & 0xF];
+	}
+
+	private void writeUTF8(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80)
+				buf[pos++] = (byte) c;
+			else i = writeUTF8Char(s, i);
+		}
+	}
+
+	/**
+	 * Write the non-ASCII character at i as UTF-8
+	 *
+	 * @return the index of the last char consumed
+	 */
+	private int writeUTF8Char(String s, int i) {
+		char c = s.charAt(i);
+		if (c < 0x800) {
+			buf[pos++] = (byte) (0xC0 | (c >> 6));
+			buf[pos++] = (byte) (0x80 | (c & 0x3F));
+		} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+			int cp = Character.toCodePoint(c, s.charAt(++i));
+			buf[pos++] = (byte) (0xF0 | (cp >> 18));
+			buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+			buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+			buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+		} else if (Character.isSurrogate(c))
+			buf[pos++] = '?';
+		else {
+			buf[pos++] = (byte) (0xE0 | (c >> 12));
+			buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buf[pos++] = (byte) (0x80 | (c & 0x3F));
+		}
+		return i;
+	}
+
+	@Override
+	public void close() {
+		flushBuffer();
+		try {
+			output.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
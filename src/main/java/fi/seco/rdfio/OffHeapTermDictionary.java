@@ -0,0 +1,237 @@
+package fi.seco.rdfio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import fi.seco.rdfobject.IRDFObject;
+
+/**
+ * A dictionary assigning dense ids (starting from 1) to RDF terms, with
+ * {@link #NO_TERM} standing for a missing term, such as no graph. The terms
+ * are stored serialized with {@link RDFObjectCodec} in direct byte buffer
+ * pages outside the Java heap. The hash index and the id to location table
+ * are flat primitive arrays, so the dictionary adds no per-term objects for
+ * the garbage collector to trace. Not thread safe.
+ */
+final class OffHeapTermDictionary {
+
+	/** The id of a missing (<code>null</code>) term */
+	public static final long NO_TERM = 0;
+
+	/** The default size of the direct buffer pages */
+	public static final int DEFAULT_PAGE_SIZE = 16 * 1024 * 1024;
+
+	private final RDFObjectCodec codec = new RDFObjectCodec();
+	private final int pageSize;
+	private final List<ByteBuffer> pages = new ArrayList<ByteBuffer>();
+	private ByteBuffer page;
+	private long storedBytes;
+
+	/** page index in the high, offset in the low 32 bits, by id */
+	private long[] locations = new long[1024];
+	/** hash of the serialized term, by id */
+	private int[] hashes = new int[1024];
+	/** open addressing table of ids, 0 for an empty slot */
+	private int[] table = new int[2048];
+	private int mask = table.length - 1;
+	private int size;
+
+	public OffHeapTermDictionary() {
+		this(DEFAULT_PAGE_SIZE);
+	}
+
+	public OffHeapTermDictionary(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	private static int hash(byte[] b, int len) {
+		int h = len;
+		for (int i = 0; i < len; i++)
+			h = 31 * h + b[i];
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static int getVarInt(ByteBuffer p, int off) {
+		int v = 0;
+		int shift = 0;
+		while (true) {
+			byte x = p.get(off++);
+			v |= (x & 0x7F) << shift;
+			if (x >= 0) return v;
+			shift += 7;
+		}
+	}
+
+	private static int varIntSize(int v) {
+		int n = 1;
+		while ((v & ~0x7F) != 0) {
+			v >>>= 7;
+			n++;
+		}
+		return n;
+	}
+
+	private boolean matches(int id, byte[] b, int len) {
+		long loc = locations[id];
+		ByteBuffer p = pages.get((int) (loc >>> 32));
+		int off = (int) loc;
+		int stored = getVarInt(p, off);
+		if (stored != len) return false;
+		off += varIntSize(stored);
+		for (int i = 0; i < len; i++)
+			if (p.get(off + i) != b[i]) return false;
+		return true;
+	}
+
+	private int find(byte[] b, int len, int h) {
+		for (int i = h & mask;; i = (i + 1) & mask) {
+			int id = table[i];
+			if (id == 0) return -(i + 1);
+			if (hashes[id] == h && matches(id, b, len)) return id;
+		}
+	}
+
+	/**
+	 * @return the id of the term, or 0 if it is not in the dictionary
+	 */
+	public long getId(IRDFObject o) {
+		if (o == null) return NO_TERM;
+		int len = codec.encode(o);
+		byte[] b = codec.buffer();
+		int id = find(b, len, hash(b, len));
+		return id > 0 ? id : 0;
+	}
+
+	/**
+	 * @return the id of the term, adding it to the dictionary if needed, or
+	 *         {@link #NO_TERM} for <code>null</code>
+	 */
+	public long getOrAddId(IRDFObject o) {
+		if (o == null) return NO_TERM;
+		int len = codec.encode(o);
+		byte[] b = codec.buffer();
+		int h = hash(b, len);
+		int slot = find(b, len, h);
+		if (slot > 0) return slot;
+		int id = ++size;
+		if (id == locations.length) {
+			locations = Arrays.copyOf(locations, id * 2);
+			hashes = Arrays.copyOf(hashes, id * 2);
+		}
+		locations[id] = store(b, len);
+		hashes[id] = h;
+		table[-slot - 1] = id;
+		if (size * 2 > table.length) rehash();
+		return id;
+	}
+
+	private long store(byte[] b, int len) {
+		int need = len + 5;
+		if (page == null || page.remaining() < need) {
+			page = ByteBuffer.allocateDirect(Math.max(pageSize, need));
+			pages.add(page);
+		}
+		long loc = ((long) (pages.size() - 1) << 32) | page.position();
+		int v = len;
+		while ((v & ~0x7F) != 0) {
+			page.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		page.put((byte) v);
+		page.put(b, 0, len);
+		storedBytes += len;
+		return loc;
+	}
+
+	private void rehash() {
+		int[] ntable = new int[table.length * 2];
+		int nmask = ntable.length - 1;
+		for (int id = 1; id <= size; id++) {
+			int i = hashes[id] & nmask;
+			while (ntable[i] != 0)
+				i = (i + 1) & nmask;
+			ntable[i] = id;
+		}
+		table = ntable;
+		mask = nmask;
+	}
+
+	/**
+	 * @return the term with the id, or <code>null</code> for {@link #NO_TERM}
+	 */
+	public IRDFObject get(long id) {
+		if (id == NO_TERM) return null;
+		if (id <= 0 || id > size) throw new IllegalArgumentException("Unknown id " + id);
+		long loc = locations[(int) id];
+		ByteBuffer p = pages.get((int) (loc >>> 32)).duplicate();
+		p.position((int) loc);
+		RDFObjectCodec.getVarInt(p);
+		return RDFObjectCodec.decode(p);
+	}
+
+	/**
+	 * @return a buffer holding the serialized form of the term with the id
+	 *         between its position and limit
+	 */
+	ByteBuffer getEncoded(long id) {
+		long loc = locations[(int) id];
+		ByteBuffer p = pages.get((int) (loc >>> 32)).duplicate();
+		int len = getVarInt(p, (int) loc);
+		p.position((int) loc + varIntSize(len));
+		p.limit(p.position() + len);
+		return p;
+	}
+
+	/**
+	 * Compare the serialized forms of two terms as unsigned bytes
+	 */
+	int compare(long a, long b) {
+		long la = locations[(int) a];
+		long lb = locations[(int) b];
+		ByteBuffer pa = pages.get((int) (la >>> 32));
+		ByteBuffer pb = pages.get((int) (lb >>> 32));
+		int na = getVarInt(pa, (int) la);
+		int nb = getVarInt(pb, (int) lb);
+		int oa = (int) la + varIntSize(na);
+		int ob = (int) lb + varIntSize(nb);
+		int n = Math.min(na, nb);
+		for (int i = 0; i < n; i++) {
+			int c = (pa.get(oa + i) & 0xFF) - (pb.get(ob + i) & 0xFF);
+			if (c != 0) return c;
+		}
+		return na - nb;
+	}
+
+	/**
+	 * @return the number of terms in the dictionary
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of bytes taken by the serialized terms
+	 */
+	public long getStoredBytes() {
+		return storedBytes;
+	}
+
+	/**
+	 * Release the pages and index. The dictionary can't be used afterwards.
+	 */
+	public void close() {
+		pages.clear();
+		page = null;
+		locations = null;
+		hashes = null;
+		table = null;
+	}
+
+}
@@ -0,0 +1,141 @@
+package fi.seco.rdfio;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * An output stream compressing fixed size blocks of data in parallel. Each
+ * block is compressed independently into a complete compressed stream (a gzip
+ * member, a bzip2 stream or an xz stream), and the results are written out in
+ * order. Standard decompressors read such concatenations as a single stream.
+ */
+final class ParallelCompressingOutputStream extends OutputStream {
+
+	/**
+	 * Compresses a block of data into a self-contained compressed stream
+	 */
+	interface IBlockCompressor {
+		public byte[] compress(byte[] data, int length) throws IOException;
+	}
+
+	private final OutputStream out;
+	private final IBlockCompressor compressor;
+	private final ExecutorService executor;
+	private final ChunkPipeline<byte[]> pipeline;
+	private final int blockSize;
+	private byte[] block;
+	private int length;
+	private boolean submitted;
+	private boolean closed;
+
+	/**
+	 * @param out
+	 *            the stream to write the compressed data to
+	 * @param compressor
+	 *            the compressor for blocks
+	 * @param blockSize
+	 *            the amount of uncompressed data per block
+	 * @param threads
+	 *            the number of compressing threads, zero or less for one per
+	 *            processor
+	 */
+	public ParallelCompressingOutputStream(final OutputStream out, IBlockCompressor compressor, int blockSize, int threads) {
+		if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+		this.out = out;
+		this.compressor = compressor;
+		this.blockSize = blockSize;
+		this.block = new byte[blockSize];
+		this.executor = ChunkPipeline.newThreadPool(threads, "rdfio-compress");
+		this.pipeline = new ChunkPipeline<byte[]>(executor, 2 * threads, true, new ChunkPipeline.IResultHandler<byte[]>() {
+
+			@Override
+			public void handle(byte[] result) {
+				try {
+					out.write(result);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+		});
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (length == blockSize) submit();
+		block[length++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (length == blockSize) submit();
+			int n = Math.min(len, blockSize - length);
+			System.arraycopy(b, off, block, length, n);
+			length += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	private void submit() throws IOException {
+		if (closed) throw new IOException("Stream closed");
+		final byte[] data = block;
+		final int len = length;
+		block = new byte[blockSize];
+		length = 0;
+		submitted = true;
+		try {
+			pipeline.submit(new Callable<byte[]>() {
+
+				@Override
+				public byte[] call() throws IOException {
+					return compressor.compress(data, len);
+				}
+
+			});
+		} catch (RuntimeException e) {
+			throw unwrap(e);
+		}
+	}
+
+	private static IOException unwrap(RuntimeException e) {
+		if (e.getCause() instanceof IOException) return (IOException) e.getCause();
+		throw e;
+	}
+
+	/**
+	 * Compresses and writes out all complete blocks. The partially filled
+	 * block is kept, so that flushing does not produce tiny blocks.
+	 */
+	@Override
+	public void flush() throws IOException {
+		try {
+			pipeline.finish();
+		} catch (RuntimeException e) {
+			throw unwrap(e);
+		}
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		try {
+			// an empty input still needs one valid compressed stream
+			if (length > 0 || !submitted) submit();
+			pipeline.finish();
+		} catch (RuntimeException e) {
+			throw unwrap(e);
+		} finally {
+			closed = true;
+			pipeline.cancel();
+			executor.shutdownNow();
+			block = null;
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,259 @@
+package fi.seco.rdfio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * An input stream decompressing independently decodable segments (bzip2
+ * blocks, gzip members, xz blocks) of a compressed source in parallel. A
+ * producer thread splits the source into segments and submits them for
+ * decoding to a worker pool, while reads consume the decoded segments in
+ * order. Splitting may produce false boundaries, in which case a segment does
+ * not decode on its own and is merged with the following one.
+ */
+final class ParallelDecompressingInputStream extends InputStream {
+
+	/**
+	 * A segment of compressed data
+	 */
+	static abstract class Segment {
+
+		/**
+		 * @return the decoded data of this segment, or <code>null</code> if
+		 *         the segment could not be decoded on its own
+		 */
+		public abstract byte[] decode();
+
+		/**
+		 * @return a segment covering the compressed data of this segment
+		 *         followed by that of the next one
+		 * @throws IOException
+		 *             if the segments cannot be merged
+		 */
+		public Segment merge(Segment next) throws IOException {
+			throw new IOException("Corrupt compressed data");
+		}
+
+		/**
+		 * @return <code>true</code> if this segment is to be decoded
+		 *         sequentially from {@link #getStream()}, as it covers the
+		 *         rest of the source or is too large to decode in memory
+		 */
+		public boolean isTail() {
+			return false;
+		}
+
+		/**
+		 * @return for a tail segment, a stream to read the decoded data from.
+		 *         Once it ends, reading continues from the next segment.
+		 */
+		public InputStream getStream() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Splits a compressed source into segments
+	 */
+	interface ISegmenter {
+		/**
+		 * @return the next segment, or <code>null</code> at the end of the
+		 *         source
+		 * @throws IOException
+		 */
+		public Segment next() throws IOException;
+
+		public void close() throws IOException;
+	}
+
+	private static final class Decoded {
+		final Segment segment;
+		final byte[] data;
+
+		Decoded(Segment segment, byte[] data) {
+			this.segment = segment;
+			this.data = data;
+		}
+	}
+
+	private static final Future<Decoded> END = completed(null);
+
+	private static Future<Decoded> completed(Decoded d) {
+		final Decoded r = d;
+		FutureTask<Decoded> f = new FutureTask<Decoded>(new Callable<Decoded>() {
+
+			@Override
+			public Decoded call() {
+				return r;
+			}
+
+		});
+		f.run();
+		return f;
+	}
+
+	private final ISegmenter segmenter;
+	private final ExecutorService executor;
+	private final BlockingQueue<Future<Decoded>> queue;
+	private final Thread producer;
+	private volatile boolean closed;
+	private boolean eof;
+	private byte[] current;
+	private int pos;
+	private InputStream stream;
+
+	/**
+	 * @param segmenter
+	 *            the splitter of the compressed source
+	 * @param executor
+	 *            the executor to decode segments on. Shut down when the
+	 *            stream is closed.
+	 * @param maxPending
+	 *            the maximum number of segments being decoded or waiting to
+	 *            be read
+	 */
+	public ParallelDecompressingInputStream(ISegmenter segmenter, ExecutorService executor, int maxPending) {
+		this.segmenter = segmenter;
+		this.executor = executor;
+		this.queue = new ArrayBlockingQueue<Future<Decoded>>(Math.max(1, maxPending));
+		this.producer = new Thread("rdfio-segmenter") {
+
+			@Override
+			public void run() {
+				produce();
+			}
+
+		};
+		producer.setDaemon(true);
+		producer.start();
+	}
+
+	private static Callable<Decoded> decodeTask(final Segment s) {
+		return new Callable<Decoded>() {
+
+			@Override
+			public Decoded call() {
+				return new Decoded(s, s.decode());
+			}
+
+		};
+	}
+
+	private void produce() {
+		try {
+			Segment s;
+			while (!closed && (s = segmenter.next()) != null)
+				if (s.isTail())
+					queue.put(completed(new Decoded(s, null)));
+				else queue.put(executor.submit(decodeTask(s)));
+			queue.put(END);
+		} catch (InterruptedException e) {
+			return;
+		} catch (final Exception e) {
+			FutureTask<Decoded> f = new FutureTask<Decoded>(new Callable<Decoded>() {
+
+				@Override
+				public Decoded call() throws Exception {
+					throw e;
+				}
+
+			});
+			f.run();
+			try {
+				queue.put(f);
+			} catch (InterruptedException e2) {}
+		}
+	}
+
+	private Decoded take() throws IOException {
+		try {
+			return queue.take().get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private boolean fill() throws IOException {
+		while (!eof && stream == null && (current == null || pos == current.length)) {
+			Decoded d = take();
+			if (d == null) {
+				eof = true;
+				break;
+			}
+			while (d.data == null && !d.segment.isTail()) {
+				Decoded n = take();
+				if (n == null) throw new IOException("Corrupt or truncated compressed data");
+				Segment m = d.segment.merge(n.segment);
+				d = new Decoded(m, m.isTail() ? null : m.decode());
+			}
+			if (d.data != null) {
+				current = d.data;
+				pos = 0;
+			} else stream = d.segment.getStream();
+		}
+		return !eof;
+	}
+
+	private void endStream() throws IOException {
+		stream.close();
+		stream = null;
+		current = null;
+	}
+
+	@Override
+	public int read() throws IOException {
+		while (fill()) {
+			if (stream != null) {
+				int r = stream.read();
+				if (r != -1) return r;
+				endStream();
+			} else if (pos < current.length) return current[pos++] & 0xFF;
+		}
+		return -1;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		while (fill()) {
+			if (stream != null) {
+				int r = stream.read(b, off, len);
+				if (r != -1) return r;
+				endStream();
+				continue;
+			}
+			int n = Math.min(len, current.length - pos);
+			System.arraycopy(current, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+		return -1;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (stream != null) return stream.available();
+		return current == null ? 0 : current.length - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		producer.interrupt();
+		executor.shutdownNow();
+		if (stream != null) stream.close();
+		segmenter.close();
+	}
+
+}
@@ -0,0 +1,239 @@
+package fi.seco.rdfio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.lang.LabelToNode;
+import org.apache.jena.riot.lang.LangNQuads;
+import org.apache.jena.riot.lang.LangNTriples;
+import org.apache.jena.riot.lang.LangNTuple;
+import org.apache.jena.riot.system.IRIResolver;
+import org.apache.jena.riot.system.ParserProfileBase;
+import org.apache.jena.riot.system.PrefixMapStd;
+import org.apache.jena.riot.system.Prologue;
+import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.apache.jena.riot.tokens.Tokenizer;
+import org.apache.jena.riot.tokens.TokenizerFactory;
+
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+import fi.seco.rdfio.LineChunker.LineChunk;
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
+import fi.seco.rdfobject.IQuad;
+import fi.seco.rdfobject.IQuadVisitor;
+import fi.seco.rdfobject.IRDFObject;
+
+/**
+ * A parallel parser for the line based N-Triples and N-Quads formats. Splits
+ * the input into chunks at line boundaries, parses the chunks on a worker pool
+ * and delivers the resulting quads to a handler on the calling thread, either
+ * in input order or in the order the chunks complete. Blank node labels are
+ * used as given, so they stay consistent across chunks.
+ */
+public class ParallelNTuplesParser {
+
+	/** The default size of the chunks the input is split into */
+	public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+	/**
+	 * @param lang
+	 *            the language to check
+	 * @return <code>true</code> if the language can be parsed by this parser
+	 */
+	public static boolean canParse(Lang lang) {
+		return RDFLanguages.NTRIPLES.equals(lang) || RDFLanguages.NQUADS.equals(lang);
+	}
+
+	/**
+	 * Parse N-Triples or N-Quads in parallel
+	 *
+	 * @param in
+	 *            the input to parse
+	 * @param lang
+	 *            either {@link RDFLanguages#NTRIPLES} or
+	 *            {@link RDFLanguages#NQUADS}
+	 * @param dg
+	 *            the graph to use for triples and default graph quads
+	 * @param handler
+	 *            the handler to pass quads to. Only called from the calling
+	 *            thread.
+	 * @param threads
+	 *            the number of worker threads to use, zero or less for one per
+	 *            processor
+	 * @param ordered
+	 *            whether to deliver quads in input order
+	 * @throws IOException
+	 */
+	public static void parse(InputStream in, Lang lang, IRDFObject dg, IQuadVisitor handler, int threads,
+			boolean ordered) throws IOException {
+		parse(in, lang, dg, handler, threads, ordered, DEFAULT_CHUNK_SIZE);
+	}
+
+	public static void parse(InputStream in, Lang lang, IRDFObject dg, IQuadVisitor handler, int threads,
+			boolean ordered, int chunkSize) throws IOException {
+		parse(in, lang, dg, handler, threads, ordered, chunkSize, null);
+	}
+
+	/**
+	 * @param cache
+	 *            a term cache shared by the parser threads, or
+	 *            <code>null</code> to not cache terms
+	 * @see #parse(InputStream, Lang, IRDFObject, IQuadVisitor, int, boolean)
+	 */
+	public static void parse(InputStream in, Lang lang, IRDFObject dg, IQuadVisitor handler, int threads,
+			boolean ordered, int chunkSize, RDFObjectCache cache) throws IOException {
+		parse(LineChunker.forStream(in, chunkSize), lang, dg, handler, threads, ordered, cache);
+	}
+
+	/**
+	 * Parse a local uncompressed N-Triples or N-Quads file in parallel. The
+	 * file is memory-mapped and the chunks handed to the parsers are slices of
+	 * the mapping, so the data is not copied into intermediate buffers.
+	 *
+	 * @see #parse(InputStream, Lang, IRDFObject, IQuadVisitor, int, boolean)
+	 */
+	public static void parse(File f, Lang lang, IRDFObject dg, IQuadVisitor handler, int threads, boolean ordered) throws IOException {
+		parse(f, lang, dg, handler, threads, ordered, null);
+	}
+
+	/**
+	 * @param cache
+	 *            a term cache shared by the parser threads, or
+	 *            <code>null</code> to not cache terms
+	 * @see #parse(File, Lang, IRDFObject, IQuadVisitor, int, boolean)
+	 */
+	public static void parse(File f, Lang lang, IRDFObject dg, IQuadVisitor handler, int threads, boolean ordered,
+			RDFObjectCache cache) throws IOException {
+		parse(LineChunker.forFile(f, DEFAULT_CHUNK_SIZE), lang, dg, handler, threads, ordered, cache);
+	}
+
+	private static void parse(LineChunker chunker, Lang lang, IRDFObject dg, IQuadVisitor handler, int threads,
+			boolean ordered, RDFObjectCache cache) throws IOException {
+		parse(chunker, lang, dg, handler, threads, ordered, cache, null);
+	}
+
+	/**
+	 * @param listener
+	 *            notified after the quads of each chunk have been passed to
+	 *            the handler, or <code>null</code>. Requires ordered delivery.
+	 */
+	static void parse(LineChunker chunker, Lang lang, IRDFObject dg, IQuadVisitor handler, int threads,
+			boolean ordered, RDFObjectCache cache, LineChunker.IChunkListener listener) throws IOException {
+		if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = ChunkPipeline.newThreadPool(threads, "rdfio-ntuples");
+		try {
+			parse(chunker, lang, dg, handler, executor, 2 * threads, ordered, cache, listener);
+		} finally {
+			executor.shutdownNow();
+			chunker.close();
+		}
+	}
+
+	static void parse(LineChunker chunker, final Lang lang, final IRDFObject dg, final IQuadVisitor handler,
+			ExecutorService executor, int maxInFlight, boolean ordered, final RDFObjectCache cache, final LineChunker.IChunkListener listener) throws IOException {
+		if (!canParse(lang)) throw new IllegalArgumentException("Not a line based format: " + lang);
+		if (listener != null && !ordered) throw new IllegalArgumentException("Chunk listeners need ordered delivery");
+		final ChunkPipeline.IResultHandler<List<IQuad>> deliver = handler instanceof IRDFBatchHandler ? new ChunkPipeline.IResultHandler<List<IQuad>>() {
+
+			private IQuad[] batch = new IQuad[0];
+
+			@Override
+			public void handle(List<IQuad> result) {
+				// parsed chunks are already batches, hand them over as such
+				if (result.isEmpty()) return;
+				batch = result.toArray(batch);
+				((IRDFBatchHandler) handler).visit(batch, result.size());
+			}
+
+		} : new ChunkPipeline.IResultHandler<List<IQuad>>() {
+
+			@Override
+			public void handle(List<IQuad> result) {
+				for (IQuad q : result)
+					handler.visit(q);
+			}
+
+		};
+		final ArrayDeque<Long> ends = new ArrayDeque<Long>();
+		ChunkPipeline<List<IQuad>> pipeline = new ChunkPipeline<List<IQuad>>(executor, maxInFlight, ordered, listener == null ? deliver : new ChunkPipeline.IResultHandler<List<IQuad>>() {
+
+			@Override
+			public void handle(List<IQuad> result) {
+				deliver.handle(result);
+				listener.chunkHandled(ends.poll(), result.size());
+			}
+
+		});
+		try {
+			LineChunk c;
+			while ((c = chunker.next()) != null) {
+				final LineChunk chunk = c;
+				if (listener != null) ends.add(chunk.offset + chunk.length());
+				pipeline.submit(new Callable<List<IQuad>>() {
+
+					@Override
+					public List<IQuad> call() {
+						return parseChunk(chunk, lang, dg, cache);
+					}
+
+				});
+			}
+			pipeline.finish();
+		} finally {
+			pipeline.cancel();
+		}
+	}
+
+	static ParserProfileBase createProfile() {
+		// IRIs are used as given, but a resolver is still needed for relative ones
+		return new ParserProfileBase(new Prologue(new PrefixMapStd(), IRIResolver.createNoResolve()), RDFIOMetrics.ERROR_HANDLER, LabelToNode.createUseLabelAsGiven());
+	}
+
+	static List<IQuad> parseChunk(LineChunk chunk, Lang lang, final IRDFObject dg, final RDFObjectCache cache) {
+		final RDFIOMetrics.IListener metrics = RDFIOMetrics.getListener();
+		long start = metrics == null ? 0 : System.nanoTime();
+		// time spent converting terms, only measured with metrics on
+		final long[] convert = new long[1];
+		final List<IQuad> ret = new ArrayList<IQuad>(chunk.length() / 100);
+		StreamRDF sink = new StreamRDFBase() {
+
+			@Override
+			public void triple(Triple t) {
+				long s = metrics == null ? 0 : System.nanoTime();
+				ret.add(new fi.seco.rdfobject.Quad(RDFObjectCache.get(cache, t.getSubject()), RDFObjectCache.get(cache, t.getPredicate()), RDFObjectCache.get(cache, t.getObject()), dg));
+				if (metrics != null) convert[0] += System.nanoTime() - s;
+			}
+
+			@Override
+			public void quad(Quad q) {
+				long s = metrics == null ? 0 : System.nanoTime();
+				ret.add(new fi.seco.rdfobject.Quad(RDFObjectCache.get(cache, q.getSubject()), RDFObjectCache.get(cache, q.getPredicate()), RDFObjectCache.get(cache, q.getObject()), q.isDefaultGraph() ? dg : RDFObjectCache.get(cache, q.getGraph())));
+				if (metrics != null) convert[0] += System.nanoTime() - s;
+			}
+
+		};
+		Tokenizer tokenizer = TokenizerFactory.makeTokenizerUTF8(chunk.getInputStream());
+		LangNTuple<?> parser;
+		if (RDFLanguages.NQUADS.equals(lang))
+			parser = new LangNQuads(tokenizer, createProfile(), sink);
+		else parser = new LangNTriples(tokenizer, createProfile(), sink);
+		parser.setSkipOnBadTerm(true);
+		parser.parse();
+		if (metrics != null) {
+			metrics.stageTime(RDFIOMetrics.Stage.PARSE, System.nanoTime() - start - convert[0]);
+			metrics.stageTime(RDFIOMetrics.Stage.CONVERT, convert[0]);
+		}
+		return ret;
+	}
+
+}
@@ -0,0 +1,82 @@
+package fi.seco.rdfio;
+
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
+import fi.seco.rdfio.RDFReader.IRDFHandler;
+import fi.seco.rdfobject.IQuad;
+
+/**
+ * Collects quads passed one at a time into a reusable array and hands them to
+ * a batch handler when full. Metadata calls flush pending quads first, so the
+ * handler sees quads and metadata in the original order.
+ */
+public final class QuadBatcher implements IRDFHandler {
+
+	/** The default number of quads collected before flushing */
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+
+	private final IRDFBatchHandler handler;
+	private final IQuad[] batch;
+	private int count;
+
+	public QuadBatcher(IRDFBatchHandler handler) {
+		this(handler, DEFAULT_BATCH_SIZE);
+	}
+
+	public QuadBatcher(IRDFBatchHandler handler, int batchSize) {
+		this.handler = handler;
+		this.batch = new IQuad[batchSize];
+	}
+
+	/**
+	 * @return a batcher for the handler if it accepts batches, otherwise the
+	 *         handler itself
+	 */
+	public static IRDFHandler wrap(IRDFHandler handler) {
+		if (handler instanceof IRDFBatchHandler) return new QuadBatcher((IRDFBatchHandler) handler);
+		return handler;
+	}
+
+	/**
+	 * Flush the handler if it is a batcher
+	 */
+	public static void flush(IRDFHandler handler) {
+		if (handler instanceof QuadBatcher) ((QuadBatcher) handler).flush();
+	}
+
+	@Override
+	public void visit(IQuad q) {
+		batch[count++] = q;
+		if (count == batch.length) flush();
+	}
+
+	/**
+	 * Pass all pending quads to the handler
+	 */
+	public void flush() {
+		if (count == 0) return;
+		int c = count;
+		count = 0;
+		handler.visit(batch, c);
+		for (int i = 0; i < c; i++)
+			batch[i] = null;
+	}
+
+	@Override
+	public void setNameSpace(String prefix, String ns) {
+		flush();
+		handler.setNameSpace(prefix, ns);
+	}
+
+	@Override
+	public void setBaseIRI(String baseIRI) {
+		flush();
+		handler.setBaseIRI(baseIRI);
+	}
+
+	@Override
+	public void comment(String comment) {
+		flush();
+		handler.comment(comment);
+	}
+
+}
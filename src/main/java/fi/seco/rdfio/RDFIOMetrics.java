@@ -0,0 +1,560 @@
+package fi.seco.rdfio;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.jena.riot.system.ErrorHandler;
+import org.apache.jena.riot.system.ErrorHandlerFactory;
+
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
+import fi.seco.rdfio.RDFReader.IRDFHandler;
+import fi.seco.rdfio.RDFWriter.IRDFWriter;
+import fi.seco.rdfobject.IQuad;
+
+/**
+ * Throughput and stage timing metrics for {@link RDFReader} and
+ * {@link RDFWriter}. Metrics are reported to a single, globally installed
+ * {@link IListener}. While no listener is installed, readers and writers are
+ * not instrumented at all, so the only cost is a check for the listener when
+ * a read starts or a writer is created. Reads and writers started before a
+ * listener is installed stay uninstrumented.
+ */
+public final class RDFIOMetrics {
+
+	/**
+	 * The stages time is reported for
+	 */
+	public static enum Stage {
+		/**
+		 * Reading and decompressing the input, on the thread consuming the
+		 * input. Not measured for memory-mapped local files, where the reads
+		 * happen as page faults while parsing.
+		 */
+		INPUT,
+		/**
+		 * Tokenizing and parsing. For parallel parsers the sum over the
+		 * parser threads, for others the time of a read not spent in the
+		 * other stages.
+		 */
+		PARSE,
+		/**
+		 * Converting parsed terms into IRDFObjects, where it can be measured
+		 * apart from {@link #PARSE} (the parallel N-Triples and N-Quads
+		 * parser)
+		 */
+		CONVERT,
+		/** Passing quads to the handler of a read */
+		HANDLE,
+		/** Passing quads and metadata to a writer */
+		WRITE,
+		/** Closing a writer, which writes out anything it has buffered */
+		CLOSE
+	}
+
+	/**
+	 * Receives metrics. Called concurrently from parser threads, so
+	 * implementations must be thread safe. Counts are reported as increments.
+	 */
+	public interface IListener {
+		/**
+		 * Bytes read from a source, after decompression
+		 */
+		public void bytesRead(long bytes);
+
+		/**
+		 * Quads passed to the handler of a read
+		 */
+		public void quadsRead(long quads);
+
+		/**
+		 * A bad term or line reported by a parser, which either skipped it or
+		 * passed it on as is
+		 *
+		 * @param message
+		 *            the parser's description of the problem
+		 */
+		public void badTerm(String message);
+
+		/**
+		 * Time spent in a stage
+		 */
+		public void stageTime(Stage stage, long nanos);
+
+		/**
+		 * Quads passed to a writer
+		 */
+		public void quadsWritten(long quads);
+
+		/**
+		 * Quads a grouping writer (TriG, TriX) held back until it was closed
+		 */
+		public void bufferedQuads(long quads);
+
+		/**
+		 * A read of a source finished, successfully or not
+		 *
+		 * @param nanos
+		 *            the wall clock time of the read
+		 */
+		public void readFinished(String source, long nanos);
+	}
+
+	/**
+	 * A listener summing up all metrics reported to it
+	 */
+	public static class Totals implements IListener {
+
+		private final AtomicLong bytesRead = new AtomicLong();
+		private final AtomicLong quadsRead = new AtomicLong();
+		private final AtomicLong badTerms = new AtomicLong();
+		private final AtomicLong quadsWritten = new AtomicLong();
+		private final AtomicLong bufferedQuads = new AtomicLong();
+		private final AtomicLong readNanos = new AtomicLong();
+		private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+
+		@Override
+		public void bytesRead(long bytes) {
+			bytesRead.addAndGet(bytes);
+		}
+
+		@Override
+		public void quadsRead(long quads) {
+			quadsRead.addAndGet(quads);
+		}
+
+		@Override
+		public void badTerm(String message) {
+			badTerms.incrementAndGet();
+		}
+
+		@Override
+		public void stageTime(Stage stage, long nanos) {
+			stageNanos.addAndGet(stage.ordinal(), nanos);
+		}
+
+		@Override
+		public void quadsWritten(long quads) {
+			quadsWritten.addAndGet(quads);
+		}
+
+		@Override
+		public void bufferedQuads(long quads) {
+			bufferedQuads.addAndGet(quads);
+		}
+
+		@Override
+		public void readFinished(String source, long nanos) {
+			readNanos.addAndGet(nanos);
+		}
+
+		public long getBytesRead() {
+			return bytesRead.get();
+		}
+
+		public long getQuadsRead() {
+			return quadsRead.get();
+		}
+
+		public long getBadTerms() {
+			return badTerms.get();
+		}
+
+		public long getQuadsWritten() {
+			return quadsWritten.get();
+		}
+
+		public long getBufferedQuads() {
+			return bufferedQuads.get();
+		}
+
+		/**
+		 * @return the summed wall clock time of finished reads
+		 */
+		public long getReadNanos() {
+			return readNanos.get();
+		}
+
+		public long getStageNanos(Stage stage) {
+			return stageNanos.get(stage.ordinal());
+		}
+
+		/**
+		 * @return the quads read per second of finished reads
+		 */
+		public double getQuadsPerSecond() {
+			long nanos = readNanos.get();
+			return nanos == 0 ? 0 : quadsRead.get() * 1e9 / nanos;
+		}
+
+		/**
+		 * @return the bytes read per second of finished reads
+		 */
+		public double getBytesPerSecond() {
+			long nanos = readNanos.get();
+			return nanos == 0 ? 0 : bytesRead.get() * 1e9 / nanos;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(getQuadsRead()).append(" quads (").append((long) getQuadsPerSecond()).append("/s), ");
+			sb.append(getBytesRead()).append(" bytes (").append((long) getBytesPerSecond()).append("/s) read, ");
+			sb.append(getBadTerms()).append(" bad terms, ");
+			sb.append(getQuadsWritten()).append(" quads written, ");
+			sb.append(getBufferedQuads()).append(" buffered");
+			for (Stage s : Stage.values())
+				sb.append(", ").append(s).append(' ').append(getStageNanos(s) / 1000000).append("ms");
+			return sb.toString();
+		}
+
+	}
+
+	private static volatile IListener listener;
+
+	private RDFIOMetrics() {}
+
+	/**
+	 * Install the listener to report metrics to
+	 *
+	 * @param l
+	 *            the listener, or <code>null</code> to turn metrics off
+	 */
+	public static void setListener(IListener l) {
+		listener = l;
+	}
+
+	/**
+	 * @return the installed listener, or <code>null</code> if metrics are off
+	 */
+	public static IListener getListener() {
+		return listener;
+	}
+
+	/** Report counts to the listener at least this often */
+	private static final int REPORT_INTERVAL = 1024 * 1024;
+
+	/**
+	 * Counts the bytes read and the time spent reading
+	 */
+	static final class MeteredInputStream extends FilterInputStream {
+
+		private final IListener l;
+		private long bytes;
+		private long nanos;
+		private long totalNanos;
+
+		MeteredInputStream(InputStream in, IListener l) {
+			super(in);
+			this.l = l;
+		}
+
+		private int count(int n, long start) {
+			long t = System.nanoTime() - start;
+			nanos += t;
+			totalNanos += t;
+			if (n > 0) bytes += n;
+			if (n < 0 || bytes >= REPORT_INTERVAL) report();
+			return n;
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int b = in.read();
+			count(b == -1 ? -1 : 1, start);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			long start = System.nanoTime();
+			return count(in.read(b, off, len), start);
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long start = System.nanoTime();
+			long s = in.skip(n);
+			count(0, start);
+			bytes += s;
+			return s;
+		}
+
+		void report() {
+			if (bytes > 0) l.bytesRead(bytes);
+			if (nanos > 0) l.stageTime(Stage.INPUT, nanos);
+			bytes = 0;
+			nanos = 0;
+		}
+
+		long getNanos() {
+			return totalNanos;
+		}
+
+		@Override
+		public void close() throws IOException {
+			report();
+			super.close();
+		}
+
+	}
+
+	/**
+	 * Counts the quads passed to a handler and the time it takes
+	 */
+	static class MeteredHandler implements IRDFHandler {
+
+		final IRDFHandler h;
+		final IListener l;
+		long quads;
+		long nanos;
+		long totalNanos;
+
+		MeteredHandler(IRDFHandler h, IListener l) {
+			this.h = h;
+			this.l = l;
+		}
+
+		final void count(int n, long start) {
+			long t = System.nanoTime() - start;
+			nanos += t;
+			totalNanos += t;
+			quads += n;
+			if (quads >= QuadBatcher.DEFAULT_BATCH_SIZE) report();
+		}
+
+		@Override
+		public void visit(IQuad q) {
+			long start = System.nanoTime();
+			h.visit(q);
+			count(1, start);
+		}
+
+		@Override
+		public void setNameSpace(String prefix, String ns) {
+			h.setNameSpace(prefix, ns);
+		}
+
+		@Override
+		public void setBaseIRI(String baseIRI) {
+			h.setBaseIRI(baseIRI);
+		}
+
+		@Override
+		public void comment(String comment) {
+			h.comment(comment);
+		}
+
+		void report() {
+			if (quads > 0) l.quadsRead(quads);
+			if (nanos > 0) l.stageTime(Stage.HANDLE, nanos);
+			quads = 0;
+			nanos = 0;
+		}
+
+	}
+
+	static final class MeteredBatchHandler extends MeteredHandler implements IRDFBatchHandler {
+
+		MeteredBatchHandler(IRDFBatchHandler h, IListener l) {
+			super(h, l);
+		}
+
+		@Override
+		public void visit(IQuad[] quads, int count) {
+			long start = System.nanoTime();
+			((IRDFBatchHandler) h).visit(quads, count);
+			count(count, start);
+		}
+
+	}
+
+	/**
+	 * Times a writer and counts the quads passed to it
+	 */
+	static final class MeteredWriter implements IRDFWriter, IRDFBatchHandler {
+
+		private final IRDFWriter w;
+		private final IListener l;
+		private long quads;
+		private long nanos;
+
+		MeteredWriter(IRDFWriter w, IListener l) {
+			this.w = w;
+			this.l = l;
+		}
+
+		private void count(int n, long start) {
+			nanos += System.nanoTime() - start;
+			quads += n;
+			if (quads >= QuadBatcher.DEFAULT_BATCH_SIZE) report();
+		}
+
+		private void report() {
+			if (quads > 0) l.quadsWritten(quads);
+			if (nanos > 0) l.stageTime(Stage.WRITE, nanos);
+			quads = 0;
+			nanos = 0;
+		}
+
+		@Override
+		public void visit(IQuad q) {
+			long start = System.nanoTime();
+			w.visit(q);
+			count(1, start);
+		}
+
+		@Override
+		public void visit(IQuad[] quads, int count) {
+			long start = System.nanoTime();
+			if (w instanceof IRDFBatchHandler)
+				((IRDFBatchHandler) w).visit(quads, count);
+			else for (int i = 0; i < count; i++)
+				w.visit(quads[i]);
+			count(count, start);
+		}
+
+		@Override
+		public void setNameSpace(String prefix, String ns) {
+			long start = System.nanoTime();
+			w.setNameSpace(prefix, ns);
+			count(0, start);
+		}
+
+		@Override
+		public void setBaseIRI(String baseIRI) {
+			long start = System.nanoTime();
+			w.setBaseIRI(baseIRI);
+			count(0, start);
+		}
+
+		@Override
+		public void comment(String comment) {
+			long start = System.nanoTime();
+			w.comment(comment);
+			count(0, start);
+		}
+
+		@Override
+		public void endProlog() {
+			long start = System.nanoTime();
+			w.endProlog();
+			count(0, start);
+		}
+
+		@Override
+		public void close() {
+			report();
+			long start = System.nanoTime();
+			try {
+				w.close();
+			} finally {
+				l.stageTime(Stage.CLOSE, System.nanoTime() - start);
+			}
+		}
+
+	}
+
+	/**
+	 * @return the stream counting bytes read to the listener, or the stream
+	 *         itself if the listener is <code>null</code>
+	 */
+	static InputStream wrap(InputStream in, IListener l) {
+		return l == null ? in : new MeteredInputStream(in, l);
+	}
+
+	/**
+	 * @return the handler counting quads to the listener, or the handler
+	 *         itself if the listener is <code>null</code>. Accepts batches if
+	 *         the handler does.
+	 */
+	static IRDFHandler wrap(IRDFHandler h, IListener l) {
+		if (l == null) return h;
+		if (h instanceof IRDFBatchHandler) return new MeteredBatchHandler((IRDFBatchHandler) h, l);
+		return new MeteredHandler(h, l);
+	}
+
+	/**
+	 * @return the writer timed and counted to the listener, or the writer
+	 *         itself if the listener is <code>null</code>
+	 */
+	static IRDFWriter wrap(IRDFWriter w, IListener l) {
+		return l == null || w == null ? w : new MeteredWriter(w, l);
+	}
+
+	/**
+	 * Report the end of a read, flushing the counts of its wrappers
+	 *
+	 * @param in
+	 *            the input stream of the read as returned by
+	 *            {@link #wrap(InputStream, IListener)}, or <code>null</code>
+	 * @param h
+	 *            the handler of the read as returned by
+	 *            {@link #wrap(IRDFHandler, IListener)}
+	 * @param parallel
+	 *            whether parsing was timed separately on parser threads. If
+	 *            not, the time of the read not spent on input or in the
+	 *            handler is reported as {@link Stage#PARSE}.
+	 */
+	static void readFinished(IListener l, String source, long start, InputStream in, IRDFHandler h, boolean parallel) {
+		long nanos = System.nanoTime() - start;
+		long other = 0;
+		if (in instanceof MeteredInputStream) {
+			((MeteredInputStream) in).report();
+			other += ((MeteredInputStream) in).getNanos();
+		}
+		if (h instanceof MeteredHandler) {
+			((MeteredHandler) h).report();
+			other += ((MeteredHandler) h).totalNanos;
+		}
+		if (!parallel && nanos > other) l.stageTime(Stage.PARSE, nanos - other);
+		l.readFinished(source, nanos);
+	}
+
+	/**
+	 * Report the quads a grouping writer buffered, if metrics are on
+	 */
+	static void bufferedQuads(long quads) {
+		IListener l = listener;
+		if (l != null) l.bufferedQuads(quads);
+	}
+
+	/**
+	 * Report a bad line or term, if metrics are on
+	 */
+	static void badTerm(String message) {
+		IListener l = listener;
+		if (l != null) l.badTerm(message);
+	}
+
+	/**
+	 * An error handler logging like
+	 * {@link ErrorHandlerFactory#errorHandlerWarn} and reporting the
+	 * recoverable problems, which RIOT raises on bad terms, as bad terms. The
+	 * listener is only looked up when there is something to report.
+	 */
+	static final ErrorHandler ERROR_HANDLER = new ErrorHandler() {
+
+		@Override
+		public void warning(String message, long line, long col) {
+			badTerm(message);
+			ErrorHandlerFactory.errorHandlerWarn.warning(message, line, col);
+		}
+
+		@Override
+		public void error(String message, long line, long col) {
+			badTerm(message);
+			ErrorHandlerFactory.errorHandlerWarn.error(message, line, col);
+		}
+
+		@Override
+		public void fatal(String message, long line, long col) {
+			ErrorHandlerFactory.errorHandlerWarn.fatal(message, line, col);
+		}
+
+	};
+
+}
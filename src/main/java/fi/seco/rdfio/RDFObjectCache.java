@@ -0,0 +1,205 @@
+package fi.seco.rdfio;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openrdf.model.Literal;
+import org.openrdf.model.Value;
+
+import com.hp.hpl.jena.graph.Node;
+
+import fi.seco.rdfobject.IRDFObject;
+import fi.seco.rdfobject.jena.JenaRDFObjectUtil;
+import fi.seco.rdfobject.openrdf.OpenRDFRDFObjectUtil;
+
+/**
+ * A bounded interning cache for converting parser terms (Jena {@link Node}s
+ * and Sesame {@link Value}s) into {@link IRDFObject}s, so that repeated terms
+ * resolve to a shared instance. Split into independently locked stripes, each
+ * evicting its least recently used entries, so it can be shared by parallel
+ * parsers. Long literals are not cached.
+ */
+public class RDFObjectCache {
+
+	/** The default maximum number of cached terms */
+	public static final int DEFAULT_CAPACITY = 65536;
+
+	/** Literals with a longer lexical form are converted without caching */
+	public static final int MAX_LITERAL_LENGTH = 256;
+
+	private static final class Stripe extends LinkedHashMap<Object, IRDFObject> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+		long hits;
+		long misses;
+		long evictions;
+
+		Stripe(int capacity) {
+			super(Math.min(capacity, 1024) * 4 / 3 + 1, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Object, IRDFObject> eldest) {
+			if (size() <= capacity) return false;
+			evictions++;
+			return true;
+		}
+
+	}
+
+	private final Stripe[] stripes;
+	private final int mask;
+
+	public RDFObjectCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity
+	 *            the maximum number of terms to keep
+	 */
+	public RDFObjectCache(int capacity) {
+		int n = Integer.highestOneBit(Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4, capacity / 64)));
+		stripes = new Stripe[n];
+		for (int i = 0; i < n; i++)
+			stripes[i] = new Stripe(Math.max(1, capacity / n));
+		mask = n - 1;
+	}
+
+	private Stripe stripe(Object key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return stripes[h & mask];
+	}
+
+	/**
+	 * @return the shared instance for the node
+	 */
+	public IRDFObject get(Node n) {
+		if (n.isLiteral() && n.getLiteralLexicalForm().length() > MAX_LITERAL_LENGTH)
+			return JenaRDFObjectUtil.getRDFObjectForNode(n);
+		Stripe s = stripe(n);
+		synchronized (s) {
+			IRDFObject o = s.get(n);
+			if (o != null) {
+				s.hits++;
+				return o;
+			}
+			s.misses++;
+			o = JenaRDFObjectUtil.getRDFObjectForNode(n);
+			s.put(n, o);
+			return o;
+		}
+	}
+
+	/**
+	 * @return the shared instance for the value
+	 */
+	public IRDFObject get(Value v) {
+		if (v instanceof Literal && ((Literal) v).getLabel().length() > MAX_LITERAL_LENGTH)
+			return OpenRDFRDFObjectUtil.getRDFObjectForValue(v);
+		Stripe s = stripe(v);
+		synchronized (s) {
+			IRDFObject o = s.get(v);
+			if (o != null) {
+				s.hits++;
+				return o;
+			}
+			s.misses++;
+			o = OpenRDFRDFObjectUtil.getRDFObjectForValue(v);
+			s.put(v, o);
+			return o;
+		}
+	}
+
+	/**
+	 * @return the shared instance equal to the term, for parsers that build
+	 *         their terms directly
+	 */
+	public IRDFObject intern(IRDFObject t) {
+		if (t.isLiteral() && t.getValue().length() > MAX_LITERAL_LENGTH) return t;
+		Stripe s = stripe(t);
+		synchronized (s) {
+			IRDFObject o = s.get(t);
+			if (o != null) {
+				s.hits++;
+				return o;
+			}
+			s.misses++;
+			s.put(t, t);
+			return t;
+		}
+	}
+
+	static IRDFObject get(RDFObjectCache cache, Node n) {
+		return cache != null ? cache.get(n) : JenaRDFObjectUtil.getRDFObjectForNode(n);
+	}
+
+	static IRDFObject get(RDFObjectCache cache, Value v) {
+		return cache != null ? cache.get(v) : OpenRDFRDFObjectUtil.getRDFObjectForValue(v);
+	}
+
+	public long getHits() {
+		long ret = 0;
+		for (Stripe s : stripes)
+			synchronized (s) {
+				ret += s.hits;
+			}
+		return ret;
+	}
+
+	public long getMisses() {
+		long ret = 0;
+		for (Stripe s : stripes)
+			synchronized (s) {
+				ret += s.misses;
+			}
+		return ret;
+	}
+
+	public long getEvictions() {
+		long ret = 0;
+		for (Stripe s : stripes)
+			synchronized (s) {
+				ret += s.evictions;
+			}
+		return ret;
+	}
+
+	/**
+	 * @return the fraction of lookups served from the cache
+	 */
+	public double getHitRatio() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	public int size() {
+		int ret = 0;
+		for (Stripe s : stripes)
+			synchronized (s) {
+				ret += s.size();
+			}
+		return ret;
+	}
+
+	public void clear() {
+		for (Stripe s : stripes)
+			synchronized (s) {
+				s.clear();
+				s.hits = 0;
+				s.misses = 0;
+				s.evictions = 0;
+			}
+	}
+
+	@Override
+	public String toString() {
+		return "RDFObjectCache[size=" + size() + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + "]";
+	}
+
+}
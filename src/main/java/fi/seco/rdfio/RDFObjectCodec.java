@@ -0,0 +1,163 @@
+package fi.seco.rdfio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+import fi.seco.rdfobject.BNodeResourceRDFObject;
+import fi.seco.rdfobject.IRDFObject;
+import fi.seco.rdfobject.LiteralRDFObject;
+import fi.seco.rdfobject.URIResourceRDFObject;
+import fi.seco.util.LocaleUtil;
+
+/**
+ * Serializes {@link IRDFObject}s into a compact byte form: a kind byte
+ * followed by varint length prefixed UTF-8 strings (the URI or blank node
+ * label, or a literal's value, language and datatype). Equal terms always
+ * encode to equal bytes, so the encoding can be used as a key. Instances hold
+ * a reusable scratch buffer and are not thread safe.
+ */
+final class RDFObjectCodec {
+
+	static final byte URI = 0;
+	static final byte BNODE = 1;
+	static final byte LITERAL = 2;
+	static final byte LANG_LITERAL = 3;
+	static final byte TYPED_LITERAL = 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private byte[] buf = new byte[256];
+	private int length;
+
+	/**
+	 * Encode a term into the scratch buffer
+	 *
+	 * @return the length of the encoding
+	 * @see #buffer()
+	 */
+	public int encode(IRDFObject o) {
+		length = 0;
+		if (o.isLiteral()) {
+			Locale l = o.getLang();
+			String dt = o.getDatatype();
+			if (l != null) {
+				put(LANG_LITERAL);
+				putString(o.getValue());
+				putString(l.toString());
+			} else if (dt != null) {
+				put(TYPED_LITERAL);
+				putString(o.getValue());
+				putString(dt);
+			} else {
+				put(LITERAL);
+				putString(o.getValue());
+			}
+		} else if (o.isBlankNode()) {
+			put(BNODE);
+			putString(o.getURI());
+		} else {
+			put(URI);
+			putString(o.getURI());
+		}
+		return length;
+	}
+
+	/**
+	 * @return the scratch buffer holding the last encoding
+	 */
+	public byte[] buffer() {
+		return buf;
+	}
+
+	/**
+	 * @return a copy of the encoding of the term
+	 */
+	public byte[] toBytes(IRDFObject o) {
+		return Arrays.copyOf(buf, encode(o));
+	}
+
+	private void ensure(int n) {
+		if (length + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + n));
+	}
+
+	private void put(byte b) {
+		ensure(1);
+		buf[length++] = b;
+	}
+
+	private void putString(String s) {
+		int n = s.length();
+		boolean ascii = true;
+		for (int i = 0; i < n && ascii; i++)
+			if (s.charAt(i) >= 0x80) ascii = false;
+		if (ascii) {
+			ensure(5 + n);
+			putVarInt(n);
+			for (int i = 0; i < n; i++)
+				buf[length++] = (byte) s.charAt(i);
+		} else {
+			byte[] b = s.getBytes(UTF8);
+			ensure(5 + b.length);
+			putVarInt(b.length);
+			System.arraycopy(b, 0, buf, length, b.length);
+			length += b.length;
+		}
+	}
+
+	private void putVarInt(int v) {
+		while ((v & ~0x7F) != 0) {
+			buf[length++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[length++] = (byte) v;
+	}
+
+	/**
+	 * Decode a term from a buffer, starting at its position. Advances the
+	 * position past the term.
+	 */
+	public static IRDFObject decode(ByteBuffer b) {
+		byte kind = b.get();
+		String s = getString(b);
+		switch (kind) {
+		case URI:
+			return new URIResourceRDFObject(s);
+		case BNODE:
+			return new BNodeResourceRDFObject(s);
+		case LITERAL:
+			return new LiteralRDFObject(s);
+		case LANG_LITERAL:
+			return new LiteralRDFObject(s, LocaleUtil.parseLocaleString(getString(b)));
+		case TYPED_LITERAL:
+			return new LiteralRDFObject(s, null, getString(b));
+		default:
+			throw new IllegalArgumentException("Unknown term kind " + kind);
+		}
+	}
+
+	static int getVarInt(ByteBuffer b) {
+		int v = 0;
+		int shift = 0;
+		while (true) {
+			byte x = b.get();
+			v |= (x & 0x7F) << shift;
+			if (x >= 0) return v;
+			shift += 7;
+		}
+	}
+
+	private static String getString(ByteBuffer b) {
+		int n = getVarInt(b);
+		if (b.hasArray()) {
+			String s = new String(b.array(), b.arrayOffset() + b.position(), n, UTF8);
+			b.position(b.position() + n);
+			return s;
+		}
+		byte[] tmp = new byte[n];
+		b.get(tmp);
+		return new String(tmp, UTF8);
+	}
+
+}
@@ -1,15 +1,12 @@
 package fi.seco.rdfio;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.net.URL;
 import java.util.Map;
-import java.util.zip.GZIPInputStream;
 
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
-import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
 import org.apache.jena.iri.IRI;
 import org.apache.jena.riot.Lang;
 import org.apache.jena.riot.RDFLanguages;
@@ -17,7 +14,6 @@ import org.apache.jena.riot.RiotReader;
 import org.apache.jena.riot.lang.LabelToNode;
 import org.apache.jena.riot.lang.LangNTuple;
 import org.apache.jena.riot.lang.LangRIOT;
-import org.apache.jena.riot.system.ErrorHandlerFactory;
 import org.apache.jena.riot.system.ParserProfileBase;
 import org.apache.jena.riot.system.PrefixMap;
 import org.apache.jena.riot.system.PrefixMapStd;
@@ -44,7 +40,6 @@ import fi.seco.rdfobject.IRDFObject;
 import fi.seco.rdfobject.ITriple;
 import fi.seco.rdfobject.ITripleVisitor;
 import fi.seco.rdfobject.URIResourceRDFObject;
-import fi.seco.rdfobject.jena.JenaRDFObjectUtil;
 import fi.seco.rdfobject.model.IRDFObjectQuadModel;
 import fi.seco.rdfobject.model.IRDFObjectTripleModel;
 import fi.seco.rdfobject.openrdf.OpenRDFRDFObjectUtil;
@@ -53,8 +48,12 @@ import fi.seco.rdfobject.openrdf.OpenRDFRDFObjectUtil;
  * An utility class for reading RDF. Uses efficient streaming parsers where
  * possible. Combines readers from Sesame and Jena with custom readers for the
  * Freebase dump format and Sindice DE tar format. Can read at least RDF/XML,
- * turtle, N3, n-triples, n-quads, trix, trig, rdf-json, binary, Freebase dump
- * and Sindice DE tar. Also supports gzip and bzip2 compressed sources.
+ * turtle, N3, n-triples, n-quads, trix, trig, rdf-json, binary, dictionary
+ * encoded binary (see {@link DictionaryRDFParser}), Freebase dump and Sindice
+ * DE tar. Also supports gzip, bzip2 and xz compressed sources,
+ * decompressing them in parallel where the format allows, and the shard
+ * manifests of {@link ShardedRDFWriter}, reading the shards in order as if
+ * they were a single file.
  * 
  * @author jiemakel
  * 
@@ -65,6 +64,24 @@ public class RDFReader {
 
 	static {
 		RDFParserRegistry.getInstance(); // for initialization of formats;
+		RDFFormat.register(DictionaryRDFParser.FORMAT);
+		// so that the custom formats are known by extension before first use
+		RDFFormat.register(RDFFormats.FREEBASE_QUADS);
+		RDFFormat.register(RDFFormats.SINDICE_DE_TAR);
+	}
+
+	private static volatile boolean streamingRDFXML = true;
+
+	/**
+	 * Choose the parser for RDF/XML
+	 *
+	 * @param streaming
+	 *            <code>true</code> (the default) for
+	 *            {@link StreamingRDFXMLParser}, <code>false</code> for the
+	 *            Sesame parser
+	 */
+	public static void setStreamingRDFXML(boolean streaming) {
+		streamingRDFXML = streaming;
 	}
 
 	/**
@@ -96,21 +113,42 @@ public class RDFReader {
 
 	}
 
+	/**
+	 * A handler that can receive quads in batches. The readers pass quads to
+	 * such handlers through {@link #visit(IQuad[], int)}, collecting them with
+	 * a {@link QuadBatcher} where the parser produces them one at a time.
+	 * Metadata calls are only made between batches, in their original order
+	 * relative to the quads.
+	 */
+	public interface IRDFBatchHandler extends IRDFHandler {
+		/**
+		 * A batch of quads encountered while processing RDF
+		 * 
+		 * @param quads
+		 *            an array holding the quads. Reused by the caller after
+		 *            this method returns, so must not be retained.
+		 * @param count
+		 *            the number of quads in the array, starting from index 0
+		 */
+		public void visit(IQuad[] quads, int count);
+	}
+
 	static RDFFormat getFormat(String url) {
+		// a shard manifest is read as its shards
+		if (ShardedRDFWriter.isManifest(url)) url = url.substring(0, url.length() - ShardedRDFWriter.MANIFEST_EXTENSION.length());
 		return RDFFormat.forFileName(url);
 	}
 
 	static Lang getLang(String url) {
-		return RDFLanguages.filenameToLang(url);
+		Lang lang = RDFLanguages.filenameToLang(url);
+		// Jena only looks through .gz
+		if (lang == null && CompressedInputStreams.isCompressed(url)) lang = RDFLanguages.filenameToLang(url.substring(0, url.lastIndexOf('.')));
+		return lang;
 	}
 
 	static InputStream getInputStreamFromURL(String s) {
 		try {
-			if (s.endsWith(".xz")) return new XZCompressorInputStream(new URL(s).openStream());
-			if (s.endsWith(".gz")) return new GZIPInputStream(new URL(s).openStream());
-			if (s.endsWith(".bz2"))
-				return new BZip2CompressorInputStream(new URL(s).openStream());
-			else return new URL(s).openStream();
+			return CompressedInputStreams.open(s, 0);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -155,18 +193,293 @@ public class RDFReader {
 	 * @throws RDFParseException
 	 */
 	public static void read(String url, final IRDFHandler handler) throws IOException, RDFParseException, RDFHandlerException {
-		read(getInputStreamFromURL(url), getFormat(url), new URIResourceRDFObject(url), url, handler);
+		read(url, handler, (RDFObjectCache) null);
+	}
+
+	/**
+	 * Parse a file, streaming quads and metadata to an RDF handler, resolving
+	 * parsed terms through a cache so that repeated terms share a single
+	 * instance
+	 *
+	 * @param cache
+	 *            the term cache to use, or <code>null</code> for none
+	 * @see #read(String, IRDFHandler)
+	 */
+	public static void read(String url, final IRDFHandler handler, RDFObjectCache cache) throws IOException, RDFParseException, RDFHandlerException {
+		if (ShardedRDFWriter.isManifest(url)) {
+			for (String shard : ShardedRDFWriter.getShards(url))
+				read(shard, getGraphReplacingHandler(new URIResourceRDFObject(shard), new URIResourceRDFObject(url), handler), cache);
+			return;
+		}
+		RDFIOMetrics.IListener metrics = RDFIOMetrics.getListener();
+		long start = System.nanoTime();
+		IRDFHandler mh = RDFIOMetrics.wrap(handler, metrics);
+		InputStream is = null;
+		try {
+			File f = CompressedInputStreams.toLocalFile(url);
+			if (f != null && !CompressedInputStreams.isCompressed(url) && RDFFormats.FREEBASE_QUADS.equals(getFormat(url))) {
+				IRDFHandler h = QuadBatcher.wrap(mh);
+				try {
+					FreebaseParser.transformFile(f, getGraphSettingVisitor(new URIResourceRDFObject(url), h));
+				} finally {
+					QuadBatcher.flush(h);
+				}
+				if (metrics != null) metrics.bytesRead(f.length());
+			} else {
+				is = RDFIOMetrics.wrap(getInputStreamFromURL(url), metrics);
+				readSerial(is, getFormat(url), new URIResourceRDFObject(url), url, mh, cache);
+			}
+		} finally {
+			if (metrics != null) RDFIOMetrics.readFinished(metrics, url, start, is, mh, false);
+			if (is != null) is.close();
+		}
+	}
+
+	/**
+	 * Parse a file, passing quads and metadata to an RDF handler running on a
+	 * separate thread, so that parsing and handling overlap. The parser and
+	 * the handler are connected by a bounded {@link AsyncRDFHandler}. Returns
+	 * once the handler has processed everything.
+	 *
+	 * @param capacity
+	 *            the number of quads that can be buffered between the parser
+	 *            and the handler
+	 * @param waitStrategy
+	 *            how the threads wait for each other
+	 * @see #read(String, IRDFHandler)
+	 */
+	public static void readAsync(String url, IRDFHandler handler, int capacity, AsyncRDFHandler.WaitStrategy waitStrategy) throws IOException, RDFParseException, RDFHandlerException {
+		AsyncRDFHandler h = new AsyncRDFHandler(handler, capacity, waitStrategy);
+		boolean ok = false;
+		try {
+			read(url, h);
+			ok = true;
+		} finally {
+			if (!ok) h.abort(null);
+		}
+		h.close();
+	}
+
+	/**
+	 * Parse a file, streaming quads and metadata to an RDF handler. Line based
+	 * formats (n-triples, n-quads) are split into chunks and parsed in
+	 * parallel, as are Freebase dumps and the entities of Sindice DE tars.
+	 * Other formats are parsed as in {@link #read(String, IRDFHandler)}.
+	 * The handler is only ever called from the calling thread.
+	 *
+	 * @param url
+	 *            the location of the file to read
+	 * @param handler
+	 *            the RDF handler to pass quads and metadata to
+	 * @param threads
+	 *            the number of parser threads to use, zero or less for one per
+	 *            processor
+	 * @param ordered
+	 *            whether quads need to be delivered in input order. Unordered
+	 *            delivery allows for better throughput.
+	 * @throws IOException
+	 * @throws RDFHandlerException
+	 * @throws RDFParseException
+	 */
+	public static void read(String url, final IRDFHandler handler, int threads, boolean ordered) throws IOException, RDFParseException, RDFHandlerException {
+		read(url, handler, threads, ordered, null);
+	}
+
+	/**
+	 * @param cache
+	 *            a term cache shared by the parser threads, or
+	 *            <code>null</code> for none
+	 * @see #read(String, IRDFHandler, int, boolean)
+	 */
+	public static void read(String url, final IRDFHandler handler, int threads, boolean ordered, RDFObjectCache cache) throws IOException, RDFParseException, RDFHandlerException {
+		if (ShardedRDFWriter.isManifest(url)) {
+			for (String shard : ShardedRDFWriter.getShards(url))
+				read(shard, getGraphReplacingHandler(new URIResourceRDFObject(shard), new URIResourceRDFObject(url), handler), threads, ordered, cache);
+			return;
+		}
+		RDFIOMetrics.IListener metrics = RDFIOMetrics.getListener();
+		long start = System.nanoTime();
+		IRDFHandler mh = RDFIOMetrics.wrap(handler, metrics);
+		InputStream is = null;
+		Lang lang = getLang(url);
+		RDFFormat type = getFormat(url);
+		try {
+			File f = CompressedInputStreams.toLocalFile(url);
+			if (f != null && !CompressedInputStreams.isCompressed(url) && isParallel(type, lang)) {
+				if (ParallelNTuplesParser.canParse(lang))
+					ParallelNTuplesParser.parse(f, lang, new URIResourceRDFObject(url), mh, threads, ordered, cache);
+				else if (RDFFormats.FREEBASE_QUADS.equals(type)) {
+					IRDFHandler h = QuadBatcher.wrap(mh);
+					try {
+						FreebaseParser.transformFile(f, getGraphSettingVisitor(new URIResourceRDFObject(url), h), threads, ordered);
+					} finally {
+						QuadBatcher.flush(h);
+					}
+				} else SindiceDETarParser.parse(f, mh, threads, ordered, cache);
+				if (metrics != null) metrics.bytesRead(f.length());
+			} else {
+				is = RDFIOMetrics.wrap(getInputStreamFromURL(url), metrics);
+				readParallel(is, type, new URIResourceRDFObject(url), url, mh, threads, ordered, cache);
+			}
+		} finally {
+			if (metrics != null) RDFIOMetrics.readFinished(metrics, url, start, is, mh, isParallel(type, lang));
+			if (is != null) is.close();
+		}
+	}
+
+	/**
+	 * @return whether the format is parsed in parallel by
+	 *         {@link #read(String, IRDFHandler, int, boolean)}
+	 */
+	private static boolean isParallel(RDFFormat type, Lang lang) {
+		return ParallelNTuplesParser.canParse(lang) || RDFFormats.FREEBASE_QUADS.equals(type) || RDFFormats.SINDICE_DE_TAR.equals(type);
+	}
+
+	/**
+	 * Parse a line based file (n-triples, n-quads or a Freebase dump) in
+	 * parallel like {@link #read(String, IRDFHandler, int, boolean)}, in input
+	 * order, periodically reporting checkpoints the read can later be resumed
+	 * from. Resuming seeks to the checkpoint where the source allows it (see
+	 * {@link CompressedInputStreams#open(String, long, int)}), and passes
+	 * only the quads after it to the handler.
+	 *
+	 * @param from
+	 *            the checkpoint to resume from, or {@link ReadCheckpoint#START}
+	 * @param interval
+	 *            the minimum number of input bytes between checkpoints. The
+	 *            last checkpoint is always reported on return.
+	 * @param listener
+	 *            the listener to report checkpoints to, for example
+	 *            {@link ReadCheckpoint#toFile(File)}
+	 * @throws IllegalArgumentException
+	 *             if the format is not line based
+	 */
+	public static void readResumable(String url, final IRDFHandler handler, int threads, ReadCheckpoint from,
+			final long interval, final ReadCheckpoint.IListener listener) throws IOException {
+		Lang lang = getLang(url);
+		boolean freebase = RDFFormats.FREEBASE_QUADS.equals(getFormat(url));
+		if (!ParallelNTuplesParser.canParse(lang) && !freebase) throw new IllegalArgumentException("Resumable reads need a line based format: " + url);
+		RDFIOMetrics.IListener metrics = RDFIOMetrics.getListener();
+		long start = System.nanoTime();
+		File f = CompressedInputStreams.toLocalFile(url);
+		InputStream is = null;
+		LineChunker chunker;
+		if (f != null && !CompressedInputStreams.isCompressed(url))
+			chunker = LineChunker.forFile(f, from.offset, ParallelNTuplesParser.DEFAULT_CHUNK_SIZE);
+		else {
+			is = RDFIOMetrics.wrap(CompressedInputStreams.open(url, from.offset, threads), metrics);
+			chunker = LineChunker.forStream(is, from.offset, ParallelNTuplesParser.DEFAULT_CHUNK_SIZE);
+		}
+		IRDFObject dg = new URIResourceRDFObject(url);
+		IRDFHandler mh = RDFIOMetrics.wrap(handler, metrics);
+		final IRDFHandler h = freebase ? QuadBatcher.wrap(mh) : mh;
+		// the offset and quad count handled so far, and the offset last reported
+		final long[] state = { from.offset, from.quads, from.offset };
+		LineChunker.IChunkListener l = new LineChunker.IChunkListener() {
+
+			@Override
+			public void chunkHandled(long end, int count) {
+				state[0] = end;
+				state[1] += count;
+				if (end - state[2] >= interval) {
+					state[2] = end;
+					QuadBatcher.flush(h);
+					listener.checkpoint(new ReadCheckpoint(end, state[1]));
+				}
+			}
+
+		};
+		try {
+			if (freebase)
+				FreebaseParser.transformData(chunker, getGraphSettingVisitor(dg, h), threads, true, l);
+			else ParallelNTuplesParser.parse(chunker, lang, dg, h, threads, true, null, l);
+			QuadBatcher.flush(h);
+			listener.checkpoint(new ReadCheckpoint(state[0], state[1]));
+		} finally {
+			if (metrics != null) {
+				if (is == null) metrics.bytesRead(state[0] - from.offset);
+				RDFIOMetrics.readFinished(metrics, url, start, is, mh, true);
+			}
+		}
+	}
+
+	public static void read(InputStream is, RDFFormat type, final IRDFObject dg, String baseURI,
+			final IRDFHandler handler, int threads, boolean ordered) throws IOException, RDFParseException, RDFHandlerException {
+		read(is, type, dg, baseURI, handler, threads, ordered, null);
+	}
+
+	public static void read(InputStream is, RDFFormat type, final IRDFObject dg, String baseURI,
+			final IRDFHandler handler, int threads, boolean ordered, RDFObjectCache cache) throws IOException, RDFParseException, RDFHandlerException {
+		RDFIOMetrics.IListener metrics = RDFIOMetrics.getListener();
+		long start = System.nanoTime();
+		IRDFHandler mh = RDFIOMetrics.wrap(handler, metrics);
+		is = RDFIOMetrics.wrap(is, metrics);
+		try {
+			readParallel(is, type, dg, baseURI, mh, threads, ordered, cache);
+		} finally {
+			if (metrics != null) RDFIOMetrics.readFinished(metrics, baseURI, start, is, mh, isParallel(type, RDFLanguages.nameToLang(type.getName())));
+		}
+	}
+
+	private static void readParallel(InputStream is, RDFFormat type, final IRDFObject dg, String baseURI,
+			final IRDFHandler handler, int threads, boolean ordered, RDFObjectCache cache) throws IOException, RDFParseException, RDFHandlerException {
+		Lang lang = RDFLanguages.nameToLang(type.getName());
+		if (ParallelNTuplesParser.canParse(lang))
+			ParallelNTuplesParser.parse(is, lang, dg, handler, threads, ordered, ParallelNTuplesParser.DEFAULT_CHUNK_SIZE, cache);
+		else if (RDFFormats.FREEBASE_QUADS.equals(type)) {
+			IRDFHandler h = QuadBatcher.wrap(handler);
+			try {
+				FreebaseParser.transformData(is, getGraphSettingVisitor(dg, h), threads, ordered);
+			} finally {
+				QuadBatcher.flush(h);
+			}
+		} else if (RDFFormats.SINDICE_DE_TAR.equals(type))
+			SindiceDETarParser.parse(is, handler, threads, ordered, cache);
+		else readSerial(is, type, dg, baseURI, handler, cache);
 	}
 
 	public static void read(InputStream is, RDFFormat type, final IRDFObject dg, String baseURI,
 			final IRDFHandler handler) throws IOException, RDFParseException, RDFHandlerException {
+		read(is, type, dg, baseURI, handler, null);
+	}
+
+	public static void read(InputStream is, RDFFormat type, final IRDFObject dg, String baseURI,
+			final IRDFHandler handler, final RDFObjectCache cache) throws IOException, RDFParseException, RDFHandlerException {
+		RDFIOMetrics.IListener metrics = RDFIOMetrics.getListener();
+		long start = System.nanoTime();
+		IRDFHandler mh = RDFIOMetrics.wrap(handler, metrics);
+		is = RDFIOMetrics.wrap(is, metrics);
+		try {
+			readSerial(is, type, dg, baseURI, mh, cache);
+		} finally {
+			if (metrics != null) RDFIOMetrics.readFinished(metrics, baseURI, start, is, mh, false);
+		}
+	}
+
+	private static void readSerial(InputStream is, RDFFormat type, final IRDFObject dg, String baseURI,
+			final IRDFHandler handler, final RDFObjectCache cache) throws IOException, RDFParseException, RDFHandlerException {
+		IRDFHandler h = QuadBatcher.wrap(handler);
+		try {
+			parse(is, type, dg, baseURI, h, cache);
+		} finally {
+			QuadBatcher.flush(h);
+		}
+	}
+
+	private static void parse(InputStream is, RDFFormat type, final IRDFObject dg, String baseURI,
+			final IRDFHandler handler, final RDFObjectCache cache) throws IOException, RDFParseException, RDFHandlerException {
 		Lang lang = RDFLanguages.nameToLang(type.getName());
 		if (lang != null && !RDFLanguages.RDFXML.equals(lang)) {// openrdf parsers throw a fit if ttl lname starts with a number. RIOT seems faster also on at least NTRIPLES. But RIOT's RDF/XML parser is too strict
 			LangRIOT parser = RiotReader.createParser(is, lang, baseURI, new StreamRDFBase() {
 
 				@Override
 				public void triple(Triple t) {
-					handler.visit(new fi.seco.rdfobject.Quad(JenaRDFObjectUtil.getRDFObjectForNode(t.getSubject()), JenaRDFObjectUtil.getRDFObjectForNode(t.getPredicate()), JenaRDFObjectUtil.getRDFObjectForNode(t.getObject()), dg));
+					handler.visit(new fi.seco.rdfobject.Quad(RDFObjectCache.get(cache, t.getSubject()), RDFObjectCache.get(cache, t.getPredicate()), RDFObjectCache.get(cache, t.getObject()), dg));
+				}
+
+				@Override
+				public void quad(com.hp.hpl.jena.sparql.core.Quad q) {
+					handler.visit(new fi.seco.rdfobject.Quad(RDFObjectCache.get(cache, q.getSubject()), RDFObjectCache.get(cache, q.getPredicate()), RDFObjectCache.get(cache, q.getObject()), q.isDefaultGraph() ? dg : RDFObjectCache.get(cache, q.getGraph())));
 				}
 
 				@Override
@@ -181,7 +494,7 @@ public class RDFReader {
 
 			});
 			if (parser instanceof LangNTuple<?>) ((LangNTuple<?>) parser).setSkipOnBadTerm(true);
-			parser.setProfile(new ParserProfileBase(parser.getProfile().getPrologue(), ErrorHandlerFactory.errorHandlerWarn, LabelToNode.createUseLabelAsGiven()));
+			parser.setProfile(new ParserProfileBase(parser.getProfile().getPrologue(), RDFIOMetrics.ERROR_HANDLER, LabelToNode.createUseLabelAsGiven()));
 			parser.getProfile().getPrologue().setPrefixMapping(new PrefixMapStd(parser.getProfile().getPrologue().getPrefixMap()) {
 				@Override
 				public void add(String prefix, String iriString) {
@@ -204,16 +517,13 @@ public class RDFReader {
 			});
 			parser.parse();
 		} else if (RDFFormats.SINDICE_DE_TAR.equals(type))
-			SindiceDETarParser.parse(is, handler);
+			SindiceDETarParser.parse(is, handler, cache);
+		else if (DictionaryRDFParser.FORMAT.equals(type))
+			DictionaryRDFParser.parse(is, dg, handler);
 		else if (RDFFormats.FREEBASE_QUADS.equals(type))
-			FreebaseParser.transformData(new BufferedReader(new InputStreamReader(is)), new ITripleVisitor() {
-
-				@Override
-				public void visit(ITriple t) {
-					handler.visit(new fi.seco.rdfobject.Quad(t.getSubject(), t.getProperty(), t.getObject(), dg));
-				}
-
-			});
+			FreebaseParser.transformData(new BufferedReader(new InputStreamReader(is)), getGraphSettingVisitor(dg, handler));
+		else if (RDFFormat.RDFXML.equals(type) && streamingRDFXML)
+			StreamingRDFXMLParser.parse(is, baseURI, dg, handler, cache);
 		else {
 			RDFParser p = Rio.createParser(type);
 			p.setStopAtFirstError(false);
@@ -231,7 +541,9 @@ public class RDFReader {
 
 					@Override
 					public void handleStatement(Statement st) {
-						handler.visit(OpenRDFRDFObjectUtil.getQuadForStatement(st));
+						if (cache == null || st.getContext() == null)
+							handler.visit(OpenRDFRDFObjectUtil.getQuadForStatement(st));
+						else handler.visit(new fi.seco.rdfobject.Quad(cache.get(st.getSubject()), cache.get(st.getPredicate()), cache.get(st.getObject()), cache.get(st.getContext())));
 					}
 
 					@Override
@@ -249,7 +561,7 @@ public class RDFReader {
 
 				@Override
 				public void handleStatement(Statement st) {
-					handler.visit(new fi.seco.rdfobject.Quad(OpenRDFRDFObjectUtil.getRDFObjectForValue(st.getSubject()), OpenRDFRDFObjectUtil.getRDFObjectForValue(st.getPredicate()), OpenRDFRDFObjectUtil.getRDFObjectForValue(st.getObject()), dg));
+					handler.visit(new fi.seco.rdfobject.Quad(RDFObjectCache.get(cache, st.getSubject()), RDFObjectCache.get(cache, st.getPredicate()), RDFObjectCache.get(cache, st.getObject()), dg));
 				}
 
 				@Override
@@ -261,17 +573,88 @@ public class RDFReader {
 		}
 	}
 
+	private static ITripleVisitor getGraphSettingVisitor(final IRDFObject dg, final IQuadVisitor handler) {
+		return new ITripleVisitor() {
+
+			@Override
+			public void visit(ITriple t) {
+				handler.visit(new fi.seco.rdfobject.Quad(t.getSubject(), t.getProperty(), t.getObject(), dg));
+			}
+
+		};
+	}
+
+	/**
+	 * @return a handler passing quads on with one graph replaced by another,
+	 *         for reading the shards of a manifest as a single source
+	 */
+	private static IRDFHandler getGraphReplacingHandler(final IRDFObject from, final IRDFObject to, final IRDFHandler handler) {
+		return new IRDFBatchHandler() {
+
+			private IQuad[] batch = new IQuad[0];
+
+			private IQuad replace(IQuad q) {
+				return from.equals(q.getGraph()) ? new fi.seco.rdfobject.Quad(q.getSubject(), q.getProperty(), q.getObject(), to) : q;
+			}
+
+			@Override
+			public void visit(IQuad q) {
+				handler.visit(replace(q));
+			}
+
+			@Override
+			public void visit(IQuad[] quads, int count) {
+				if (!(handler instanceof IRDFBatchHandler)) {
+					for (int i = 0; i < count; i++)
+						handler.visit(replace(quads[i]));
+					return;
+				}
+				if (batch.length < count) batch = new IQuad[count];
+				for (int i = 0; i < count; i++)
+					batch[i] = replace(quads[i]);
+				((IRDFBatchHandler) handler).visit(batch, count);
+			}
+
+			@Override
+			public void setNameSpace(String prefix, String ns) {
+				handler.setNameSpace(prefix, ns);
+			}
+
+			@Override
+			public void setBaseIRI(String baseIRI) {
+				handler.setBaseIRI(baseIRI);
+			}
+
+			@Override
+			public void comment(String comment) {
+				handler.comment(comment);
+			}
+
+		};
+	}
+
+	/**
+	 * @return a handler adding quads to the model one at a time
+	 * @see BulkModelInserter
+	 */
 	public static IRDFHandler getInserter(final IRDFObjectQuadModel m) {
-		return new IRDFHandler() {
+		return new IRDFBatchHandler() {
 
 			@Override
 			public void visit(IQuad q) {
 				m.addQuad(q);
 			}
 
+			@Override
+			public void visit(IQuad[] quads, int count) {
+				for (int i = 0; i < count; i++)
+					m.addQuad(quads[i]);
+			}
+
 			@Override
 			public void setNameSpace(String prefix, String ns) {
-				m.getPrefixMap().put(prefix, ns);
+				Map<String, String> pm = m.getPrefixMap();
+				if (!ns.equals(pm.get(prefix))) pm.put(prefix, ns);
 			}
 
 			@Override
@@ -285,17 +668,28 @@ public class RDFReader {
 		};
 	}
 
+	/**
+	 * @return a handler adding quads to the model as triples one at a time
+	 * @see BulkModelInserter
+	 */
 	public static IRDFHandler getInserter(final IRDFObjectTripleModel m) {
-		return new IRDFHandler() {
+		return new IRDFBatchHandler() {
 
 			@Override
 			public void visit(IQuad q) {
 				m.addTriple(q);
 			}
 
+			@Override
+			public void visit(IQuad[] quads, int count) {
+				for (int i = 0; i < count; i++)
+					m.addTriple(quads[i]);
+			}
+
 			@Override
 			public void setNameSpace(String prefix, String ns) {
-				m.getPrefixMap().put(prefix, ns);
+				Map<String, String> pm = m.getPrefixMap();
+				if (!ns.equals(pm.get(prefix))) pm.put(prefix, ns);
 			}
 
 			@Override
@@ -1,16 +1,12 @@
 package fi.seco.rdfio;
 
-import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
 
-import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
-import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
 import org.apache.jena.riot.RIOT;
-import org.apache.lucene.util.OpenBitSet;
 import org.openrdf.rio.RDFFormat;
 import org.openrdf.rio.RDFHandlerException;
 import org.openrdf.rio.RDFWriterRegistry;
@@ -19,10 +15,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.carrotsearch.hppc.LongArrayList;
-import com.carrotsearch.hppc.LongObjectMap;
-import com.carrotsearch.hppc.LongObjectOpenHashMap;
-import com.carrotsearch.hppc.ObjectLongMap;
-import com.carrotsearch.hppc.ObjectLongOpenHashMap;
 import com.carrotsearch.hppc.cursors.LongCursor;
 import com.carrotsearch.hppc.procedures.LongObjectProcedure;
 import com.hp.hpl.jena.rdf.model.Model;
@@ -31,6 +23,7 @@ import com.hp.hpl.jena.rdf.model.ModelFactory;
 import fi.seco.collections.map.primitive.AEnsuredLongObjectHashMap;
 import fi.seco.collections.map.primitive.EnsuredLongObjectHashMap;
 import fi.seco.collections.map.primitive.IEnsuredLongObjectMap;
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
 import fi.seco.rdfio.RDFReader.IRDFHandler;
 import fi.seco.rdfobject.IQuad;
 import fi.seco.rdfobject.IRDFObject;
@@ -44,8 +37,8 @@ import fi.seco.rdfobject.openrdf.OpenRDFRDFObjectUtil;
 
 /**
  * A utility class for writing RDF. Uses efficient streaming writers when
- * possible. Can write at least turtle, n3, RDF/XML, trig, trix, n-triples and
- * n-quads.
+ * possible. Can write at least turtle, n3, RDF/XML, trig, trix, n-triples,
+ * n-quads and dictionary encoded binary (see {@link DictionaryRDFParser}).
  * 
  * @author jiemakel
  * 
@@ -79,28 +72,18 @@ public class RDFWriter {
 		public void close();
 	}
 
-	private static void recursivelyProcessSubject(long g, long s, LongObjectMap<LongArrayList> triples,
-			LongObjectMap<IRDFObject> idObjectMap, OpenBitSet oc2, org.openrdf.rio.RDFWriter w) throws RDFHandlerException {
-		IRDFObject so = idObjectMap.get(s);
-		LongArrayList tmp = triples.get(s);
-		Iterator<LongCursor> tli = tmp.iterator();
-		for (int k = tmp.size(); k > 0; k -= 3) {
-			long p = tli.next().value;
-			long o = tli.next().value;
-			w.handleStatement(OpenRDFRDFObjectUtil.getStatementForQuad(so, idObjectMap.get(p), idObjectMap.get(o), idObjectMap.get(g)));
-			if (!oc2.get(o) && triples.containsKey(o)) recursivelyProcessSubject(g, o, triples, idObjectMap, oc2, w);
-		}
-	}
+	/**
+	 * Base class for the writers returned by this class, which all also accept
+	 * quads in batches
+	 */
+	private static abstract class ABatchRDFWriter implements IRDFWriter, IRDFBatchHandler {
 
-	private static final long getId(IRDFObject oo, long[] lid, LongObjectMap<IRDFObject> idObjectMap,
-			ObjectLongMap<IRDFObject> objectIdMap) {
-		long o = objectIdMap.get(oo);
-		if (o == 0) {
-			o = lid[0]++;
-			objectIdMap.put(oo, o);
-			idObjectMap.put(o, oo);
+		@Override
+		public void visit(IQuad[] quads, int count) {
+			for (int i = 0; i < count; i++)
+				visit(quads[i]);
 		}
-		return o;
+
 	}
 
 	public static void write(IRDFObjectQuadModel m, IRDFWriter w) {
@@ -132,21 +115,50 @@ public class RDFWriter {
 	 *            the format to write
 	 * @param pretty
 	 *            a request a pretty writer, if it makes sense for the format.
-	 *            This usually turns off streaming. Pretty writers are available
-	 *            for turtle, n3, RDF/XML, trig and trix.
+	 *            Pretty writers are available for turtle, n3, RDF/XML, trig
+	 *            and trix. Turtle and n3 are grouped within a bounded window,
+	 *            with blank nodes written by label (see
+	 *            {@link StreamingTurtleWriter} for inlining them), for the
+	 *            others this turns off streaming.
 	 * @return an RDF writer for writing the specified format
 	 */
 	public static IRDFWriter getWriter(final OutputStream output, final RDFFormat type, boolean pretty) {
-		if (pretty) if (RDFFormat.N3.equals(type) || RDFFormat.TURTLE.equals(type) || RDFFormat.RDFXML.equals(type)) {
-			//Requested N3 or TURTLE & pretty writer, Jena does it best
+		return getWriter(output, type, pretty, 0, null);
+	}
+
+	/**
+	 * Returns an RDF writer that can be used to write out triples or quads,
+	 * bounding the memory used by the grouping TriG and TriX writers
+	 * 
+	 * @param maxBufferedQuads
+	 *            the number of quads the TriG and TriX writers keep in memory
+	 *            before spilling sorted runs to disk, zero or less to keep
+	 *            everything in memory
+	 * @param tmpDir
+	 *            the directory to spill to, or <code>null</code> for the system
+	 *            default. Also used by the dictionary encoded binary writer.
+	 * @see #getWriter(OutputStream, RDFFormat, boolean)
+	 */
+	public static IRDFWriter getWriter(final OutputStream output, final RDFFormat type, boolean pretty,
+			int maxBufferedQuads, File tmpDir) {
+		return RDFIOMetrics.wrap(createWriter(output, type, pretty, maxBufferedQuads, tmpDir), RDFIOMetrics.getListener());
+	}
+
+	private static IRDFWriter createWriter(final OutputStream output, final RDFFormat type, boolean pretty,
+			int maxBufferedQuads, File tmpDir) {
+		if (maxBufferedQuads > 0 && (RDFFormat.TRIG.equals(type) || RDFFormat.TRIX.equals(type)))
+			return new SpillingGroupedRDFWriter(output, type, maxBufferedQuads, tmpDir);
+		if (DictionaryRDFParser.FORMAT.equals(type))
+			return new DictionaryRDFWriter(output, DictionaryRDFWriter.DEFAULT_BLOCK_SIZE, tmpDir);
+		if (RDFFormat.NTRIPLES.equals(type) || RDFFormat.NQUADS.equals(type))
+			return new NTuplesWriter(output, RDFFormat.NQUADS.equals(type));
+		if (pretty && (RDFFormat.N3.equals(type) || RDFFormat.TURTLE.equals(type)))
+			return new StreamingTurtleWriter(output, StreamingTurtleWriter.DEFAULT_WINDOW_SIZE);
+		if (pretty) if (RDFFormat.RDFXML.equals(type)) {
+			//Requested pretty RDF/XML, Jena does it best
 			final Model m = ModelFactory.createDefaultModel();
-			final String format;
-			if (RDFFormat.N3.equals(type))
-				format = "N3";
-			else if (RDFFormat.TURTLE.equals(type))
-				format = "TURTLE";
-			else format = "RDF/XML-ABBREV";
-			return new IRDFWriter() {
+			final String format = "RDF/XML-ABBREV";
+			return new ABatchRDFWriter() {
 
 				@Override
 				public void setNameSpace(String prefix, String ns) {
@@ -167,88 +179,28 @@ public class RDFWriter {
 				}
 
 				@Override
-				public void endProlog() {}
-
-				@Override
-				public void close() {
-					m.write(output, format);
-					try {
-						output.close();
-					} catch (IOException e) {
-						throw new RuntimeException(e);
-					}
+				public void visit(IQuad[] quads, int count) {
+					for (int i = 0; i < count; i++)
+						m.add(JenaRDFObjectUtil.getJenaStatementForTriple(quads[i]));
 				}
 
-			};
-		} /*else if (RDFFormat.RDFXML.equals(type)) { // by st,with oc
-			final org.openrdf.rio.RDFWriter w = Rio.createWriter(type, output);
-			final LongObjectMap<IRDFObject> idObjectMap = new LongObjectOpenHashMap<IRDFObject>();
-			final TObjectLongMap<IRDFObject> objectIdMap = new TObjectLongHashMap<IRDFObject>();
-			final IEnsuredLongObjectMap<LongArrayList> stMap = new EnsuredLongObjectHashMap<LongArrayList>(LongArrayList.class);
-			final long[] lid = new long[] { 1 };
-			final OpenBitSet oc1 = new OpenBitSet();
-			final OpenBitSet oc2 = new OpenBitSet();
-			return new IRDFWriter() {
-
 				@Override
-				public void setNameSpace(String prefix, String ns) {
-					try {
-						w.handleNamespace(prefix, ns);
-					} catch (RDFHandlerException e) {
-						throw new RuntimeException(e);
-					}
-				}
-
-				@Override
-				public void comment(String comment) {
-					try {
-						w.handleComment(comment);
-					} catch (RDFHandlerException e) {
-						throw new RuntimeException(e);
-					}
-				}
-
-				@Override
-				public void visit(IQuad q) {
-					long s = getId(q.getSubject(), lid, idObjectMap, objectIdMap);
-					long p = getId(q.getProperty(), lid, idObjectMap, objectIdMap);
-					long o = getId(q.getObject(), lid, idObjectMap, objectIdMap);
-					if (oc1.get(o))
-						oc2.set(o);
-					else oc1.set(o);
-					LongArrayList tmp = stMap.ensure(s);
-					tmp.add(p);
-					tmp.add(o);
-				}
-
-				@Override
-				public void endProlog() {
-					try {
-						w.startRDF();
-					} catch (RDFHandlerException e) {
-						throw new RuntimeException(e);
-					}
-				}
+				public void endProlog() {}
 
 				@Override
 				public void close() {
+					m.write(output, format);
 					try {
-						for (long s : stMap.keys())
-							if (oc2.get(s) || !oc1.get(s)) recursivelyProcessSubject(0, s, stMap, idObjectMap, oc2, w);
-						w.endRDF();
 						output.close();
-					} catch (RDFHandlerException e) {
-						throw new RuntimeException(e);
 					} catch (IOException e) {
 						throw new RuntimeException(e);
 					}
 				}
 
 			};
-			}*/else if (RDFFormat.TRIG.equals(type)) { // by gst
+		} else if (RDFFormat.TRIG.equals(type)) { // by gst
 			final org.openrdf.rio.RDFWriter w = Rio.createWriter(type, output);
-			final LongObjectMap<IRDFObject> idObjectMap = new LongObjectOpenHashMap<IRDFObject>();
-			final ObjectLongMap<IRDFObject> objectIdMap = new ObjectLongOpenHashMap<IRDFObject>();
+			final OffHeapTermDictionary dictionary = new OffHeapTermDictionary();
 			final IEnsuredLongObjectMap<IEnsuredLongObjectMap<LongArrayList>> gstMap = new AEnsuredLongObjectHashMap<IEnsuredLongObjectMap<LongArrayList>>() {
 
 				@Override
@@ -257,8 +209,9 @@ public class RDFWriter {
 				}
 
 			};
-			final long[] lid = new long[] { 1 };
-			return new IRDFWriter() {
+			return new ABatchRDFWriter() {
+
+				private long buffered;
 
 				@Override
 				public void setNameSpace(String prefix, String ns) {
@@ -289,13 +242,37 @@ public class RDFWriter {
 
 				@Override
 				public void visit(IQuad q) {
-					long s = getId(q.getSubject(), lid, idObjectMap, objectIdMap);
-					long p = getId(q.getProperty(), lid, idObjectMap, objectIdMap);
-					long o = getId(q.getObject(), lid, idObjectMap, objectIdMap);
-					long g = getId(q.getGraph(), lid, idObjectMap, objectIdMap);
+					long s = dictionary.getOrAddId(q.getSubject());
+					long p = dictionary.getOrAddId(q.getProperty());
+					long o = dictionary.getOrAddId(q.getObject());
+					long g = dictionary.getOrAddId(q.getGraph());
 					LongArrayList tmp = gstMap.ensure(g).ensure(s);
 					tmp.add(p);
 					tmp.add(o);
+					buffered++;
+				}
+
+				@Override
+				public void visit(IQuad[] quads, int count) {
+					IRDFObject lastGraph = null;
+					IEnsuredLongObjectMap<LongArrayList> stMap = null;
+					// a null graph is valid, so it can't mark the start
+					boolean first = true;
+					for (int i = 0; i < count; i++) {
+						IQuad q = quads[i];
+						if (first || q.getGraph() != lastGraph) {
+							first = false;
+							lastGraph = q.getGraph();
+							stMap = gstMap.ensure(dictionary.getOrAddId(lastGraph));
+						}
+						long s = dictionary.getOrAddId(q.getSubject());
+						long p = dictionary.getOrAddId(q.getProperty());
+						long o = dictionary.getOrAddId(q.getObject());
+						LongArrayList tmp = stMap.ensure(s);
+						tmp.add(p);
+						tmp.add(o);
+					}
+					buffered += count;
 				}
 
 				@Override
@@ -309,19 +286,21 @@ public class RDFWriter {
 
 				@Override
 				public void close() {
+					RDFIOMetrics.bufferedQuads(buffered);
 					try {
-						for (final LongCursor g : gstMap.keys())
+						for (final LongCursor g : gstMap.keys()) {
+							final IRDFObject go = dictionary.get(g.value);
 							gstMap.get(g.value).forEach(new LongObjectProcedure<LongArrayList>() {
 
 								@Override
 								public void apply(long s, LongArrayList st2) {
-									IRDFObject so = idObjectMap.get(s);
+									IRDFObject so = dictionary.get(s);
 									Iterator<LongCursor> sti2 = st2.iterator();
 									for (int j = st2.size(); j > 0; j -= 2) {
 										long p = sti2.next().value;
 										long o = sti2.next().value;
 										try {
-											w.handleStatement(OpenRDFRDFObjectUtil.getStatementForQuad(so, idObjectMap.get(p), idObjectMap.get(o), idObjectMap.get(g.value)));
+											w.handleStatement(OpenRDFRDFObjectUtil.getStatementForQuad(so, dictionary.get(p), dictionary.get(o), go));
 										} catch (RDFHandlerException e) {
 											throw new RuntimeException(e);
 										}
@@ -329,8 +308,10 @@ public class RDFWriter {
 								}
 
 							});
+						}
 						w.endRDF();
 						output.close();
+						dictionary.close();
 					} catch (RDFHandlerException e) {
 						throw new RuntimeException(e);
 					} catch (IOException e) {
@@ -341,11 +322,11 @@ public class RDFWriter {
 			};
 		} else if (RDFFormat.TRIX.equals(type)) { // by g
 			final org.openrdf.rio.RDFWriter w = Rio.createWriter(type, output);
-			final LongObjectMap<IRDFObject> idObjectMap = new LongObjectOpenHashMap<IRDFObject>();
-			final ObjectLongMap<IRDFObject> objectIdMap = new ObjectLongOpenHashMap<IRDFObject>();
+			final OffHeapTermDictionary dictionary = new OffHeapTermDictionary();
 			final IEnsuredLongObjectMap<LongArrayList> gtMap = new EnsuredLongObjectHashMap<LongArrayList>(LongArrayList.class);
-			final long[] lid = new long[] { 1 };
-			return new IRDFWriter() {
+			return new ABatchRDFWriter() {
+
+				private long buffered;
 
 				@Override
 				public void setNameSpace(String prefix, String ns) {
@@ -376,14 +357,38 @@ public class RDFWriter {
 
 				@Override
 				public void visit(IQuad q) {
-					long s = getId(q.getSubject(), lid, idObjectMap, objectIdMap);
-					long p = getId(q.getProperty(), lid, idObjectMap, objectIdMap);
-					long o = getId(q.getObject(), lid, idObjectMap, objectIdMap);
-					long g = getId(q.getGraph(), lid, idObjectMap, objectIdMap);
+					long s = dictionary.getOrAddId(q.getSubject());
+					long p = dictionary.getOrAddId(q.getProperty());
+					long o = dictionary.getOrAddId(q.getObject());
+					long g = dictionary.getOrAddId(q.getGraph());
 					LongArrayList tmp = gtMap.ensure(g);
 					tmp.add(s);
 					tmp.add(p);
 					tmp.add(o);
+					buffered++;
+				}
+
+				@Override
+				public void visit(IQuad[] quads, int count) {
+					IRDFObject lastGraph = null;
+					LongArrayList tmp = null;
+					// a null graph is valid, so it can't mark the start
+					boolean first = true;
+					for (int i = 0; i < count; i++) {
+						IQuad q = quads[i];
+						if (first || q.getGraph() != lastGraph) {
+							first = false;
+							lastGraph = q.getGraph();
+							tmp = gtMap.ensure(dictionary.getOrAddId(lastGraph));
+						}
+						long s = dictionary.getOrAddId(q.getSubject());
+						long p = dictionary.getOrAddId(q.getProperty());
+						long o = dictionary.getOrAddId(q.getObject());
+						tmp.add(s);
+						tmp.add(p);
+						tmp.add(o);
+					}
+					buffered += count;
 				}
 
 				@Override
@@ -397,19 +402,20 @@ public class RDFWriter {
 
 				@Override
 				public void close() {
+					RDFIOMetrics.bufferedQuads(buffered);
 					try {
 						gtMap.forEach(new LongObjectProcedure<LongArrayList>() {
 
 							@Override
 							public void apply(long g, LongArrayList st2) {
-								IRDFObject go = idObjectMap.get(g);
+								IRDFObject go = dictionary.get(g);
 								Iterator<LongCursor> sti2 = st2.iterator();
 								for (int j = st2.size(); j > 0; j -= 3) {
 									long s = sti2.next().value;
 									long p = sti2.next().value;
 									long o = sti2.next().value;
 									try {
-										w.handleStatement(OpenRDFRDFObjectUtil.getStatementForQuad(idObjectMap.get(s), idObjectMap.get(p), idObjectMap.get(o), go));
+										w.handleStatement(OpenRDFRDFObjectUtil.getStatementForQuad(dictionary.get(s), dictionary.get(p), dictionary.get(o), go));
 									} catch (RDFHandlerException e) {
 										throw new RuntimeException(e);
 									}
@@ -418,6 +424,7 @@ public class RDFWriter {
 						});
 						w.endRDF();
 						output.close();
+						dictionary.close();
 					} catch (RDFHandlerException e) {
 						throw new RuntimeException(e);
 					} catch (IOException e) {
@@ -429,7 +436,7 @@ public class RDFWriter {
 		}
 		if (type != null) {
 			final org.openrdf.rio.RDFWriter w = Rio.createWriter(type, output);
-			return new IRDFWriter() {
+			return new ABatchRDFWriter() {
 
 				@Override
 				public void setNameSpace(String prefix, String ns) {
@@ -467,6 +474,16 @@ public class RDFWriter {
 					}
 				}
 
+				@Override
+				public void visit(IQuad[] quads, int count) {
+					try {
+						for (int i = 0; i < count; i++)
+							w.handleStatement(OpenRDFRDFObjectUtil.getStatementForQuad(quads[i]));
+					} catch (RDFHandlerException e) {
+						throw new RuntimeException(e);
+					}
+				}
+
 				@Override
 				public void endProlog() {
 					try {
@@ -494,20 +511,101 @@ public class RDFWriter {
 		return null;
 	}
 
+	/**
+	 * @return the file name with an infix inserted before its format (and
+	 *         compression) extension, as in <code>dump.infix.nq.gz</code>
+	 */
+	static String withInfix(String filename, String infix) {
+		String suffix = CompressedInputStreams.isCompressed(filename) ? filename.substring(filename.lastIndexOf('.')) : "";
+		String base = filename.substring(0, filename.length() - suffix.length());
+		int i = base.lastIndexOf('.');
+		if (i < Math.max(base.lastIndexOf('/'), base.lastIndexOf(File.separatorChar))) i = -1;
+		if (i == -1) return base + "." + infix + suffix;
+		return base.substring(0, i) + "." + infix + base.substring(i) + suffix;
+	}
+
+	/**
+	 * Returns a writer for N-Triples or N-Quads sorted by one or more key
+	 * orders, with duplicates removed (see {@link SortedNTuplesWriter}). With
+	 * several key orders, each is written to its own file, named with the
+	 * key order inserted before the extension, as in
+	 * <code>dump.gspo.nq.gz</code>.
+	 * 
+	 * @param maxBufferedQuads
+	 *            the number of quads to keep in memory while sorting
+	 * @param tmpDir
+	 *            the directory to spill to, or <code>null</code> for the system
+	 *            default
+	 * @param compressionThreads
+	 *            the number of threads to compress each file with, zero or
+	 *            less for one per processor
+	 * @param orders
+	 *            the key orders to write
+	 * @throws IllegalArgumentException
+	 *             if the file is not N-Triples or N-Quads
+	 */
+	public static IRDFWriter getSortedWriter(final String filename, int maxBufferedQuads, File tmpDir,
+			int compressionThreads, SortedNTuplesWriter.KeyOrder... orders) {
+		RDFFormat type = RDFReader.getFormat(filename);
+		if (!RDFFormat.NTRIPLES.equals(type) && !RDFFormat.NQUADS.equals(type)) throw new IllegalArgumentException("Sorted output needs N-Triples or N-Quads: " + filename);
+		OutputStream[] outputs = new OutputStream[orders.length];
+		String name = filename;
+		try {
+			for (int i = 0; i < orders.length; i++) {
+				if (orders.length > 1) name = withInfix(filename, orders[i].name().toLowerCase());
+				outputs[i] = CompressedOutputStreams.create(name, compressionThreads);
+			}
+		} catch (IOException e) {
+			log.error("Couldn't write model to file " + name, e);
+			for (OutputStream o : outputs)
+				if (o != null) try {
+					o.close();
+				} catch (IOException e2) {
+					log.error("", e2);
+				}
+			return null;
+		}
+		return RDFIOMetrics.wrap(new SortedNTuplesWriter(outputs, orders, RDFFormat.NQUADS.equals(type), maxBufferedQuads, tmpDir), RDFIOMetrics.getListener());
+	}
+
 	public static IRDFWriter getWriter(final String filename, boolean pretty) {
+		return getWriter(filename, pretty, 0, null, 0);
+	}
+
+	/**
+	 * Returns an RDF writer for a file. Files with a .gz, .bz2 or .xz extension
+	 * are compressed in parallel.
+	 * 
+	 * @param compressionThreads
+	 *            the number of threads to compress with, zero or less for one
+	 *            per processor
+	 * @see #getWriter(String, boolean)
+	 */
+	public static IRDFWriter getWriter(final String filename, boolean pretty, int compressionThreads) {
+		return getWriter(filename, pretty, 0, null, compressionThreads);
+	}
+
+	/**
+	 * @see #getWriter(OutputStream, RDFFormat, boolean, int, File)
+	 */
+	public static IRDFWriter getWriter(final String filename, boolean pretty, int maxBufferedQuads, File tmpDir) {
+		return getWriter(filename, pretty, maxBufferedQuads, tmpDir, 0);
+	}
+
+	/**
+	 * @see #getWriter(OutputStream, RDFFormat, boolean, int, File)
+	 * @see #getWriter(String, boolean, int)
+	 */
+	public static IRDFWriter getWriter(final String filename, boolean pretty, int maxBufferedQuads, File tmpDir,
+			int compressionThreads) {
 		RDFFormat type = RDFReader.getFormat(filename);
 		OutputStream fo;
 		try {
-			fo = new FileOutputStream(filename);
-			if (filename.endsWith(".gz"))
-				fo = new GZIPOutputStream(fo);
-			else if (filename.endsWith(".bz2"))
-				fo = new BZip2CompressorOutputStream(fo);
-			else if (filename.endsWith(".xz")) fo = new XZCompressorOutputStream(fo);
+			fo = CompressedOutputStreams.create(filename, compressionThreads);
 		} catch (IOException e) {
 			log.error("Couldn't write model to file " + filename, e);
 			return null;
 		}
-		return getWriter(fo, type, pretty);
+		return getWriter(fo, type, pretty, maxBufferedQuads, tmpDir);
 	}
 }
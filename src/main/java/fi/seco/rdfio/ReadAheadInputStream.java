@@ -0,0 +1,126 @@
+package fi.seco.rdfio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An input stream that reads its source on a separate thread into a bounded
+ * queue of buffers. Used to run decompression as its own pipeline stage, so
+ * that it does not share a thread with parsing.
+ */
+final class ReadAheadInputStream extends InputStream {
+
+	private static final byte[] EOF = new byte[0];
+
+	private final InputStream source;
+	private final BlockingQueue<byte[]> queue;
+	private final Thread reader;
+	private volatile IOException error;
+	private volatile boolean closed;
+	private byte[] current;
+	private int pos;
+	private int length;
+
+	public ReadAheadInputStream(InputStream source) {
+		this(source, 1024 * 1024, 8);
+	}
+
+	/**
+	 * @param source
+	 *            the stream to read from
+	 * @param bufferSize
+	 *            the size of the buffers to read into
+	 * @param buffers
+	 *            the maximum number of filled buffers to queue
+	 */
+	public ReadAheadInputStream(final InputStream source, final int bufferSize, int buffers) {
+		this.source = source;
+		this.queue = new ArrayBlockingQueue<byte[]>(buffers);
+		this.reader = new Thread("rdfio-readahead") {
+
+			@Override
+			public void run() {
+				try {
+					while (!closed) {
+						byte[] buf = new byte[bufferSize];
+						int len = 0;
+						int r = 0;
+						while (len < bufferSize && (r = source.read(buf, len, bufferSize - len)) != -1)
+							len += r;
+						if (len > 0) {
+							if (len < bufferSize) {
+								byte[] tmp = new byte[len];
+								System.arraycopy(buf, 0, tmp, 0, len);
+								buf = tmp;
+							}
+							queue.put(buf);
+						}
+						if (r == -1) break;
+					}
+				} catch (IOException e) {
+					error = e;
+				} catch (InterruptedException e) {
+					return;
+				} catch (RuntimeException e) {
+					error = new IOException(e);
+				}
+				try {
+					queue.put(EOF);
+				} catch (InterruptedException e) {}
+			}
+
+		};
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private boolean fill() throws IOException {
+		if (current == EOF) return false;
+		while (current == null || pos == length) {
+			try {
+				current = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			pos = 0;
+			length = current.length;
+			if (current == EOF) {
+				if (error != null) throw error;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) return -1;
+		return current[pos++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (!fill()) return -1;
+		int n = Math.min(len, length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return current == null || current == EOF ? 0 : length - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		reader.interrupt();
+		source.close();
+	}
+
+}
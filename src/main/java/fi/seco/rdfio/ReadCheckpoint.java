@@ -0,0 +1,99 @@
+package fi.seco.rdfio;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * A point in a resumable read (see
+ * {@link RDFReader#readResumable(String, RDFReader.IRDFHandler, int, ReadCheckpoint, long, ReadCheckpoint.IListener)}
+ * ): the offset of a line boundary in the (decompressed) input, and the
+ * number of quads delivered before it. All quads parsed from before the
+ * offset have been passed to the handler, and none from after it.
+ */
+public final class ReadCheckpoint {
+
+	/**
+	 * Receives checkpoints during a resumable read. Called on the thread
+	 * calling the handler, right after the quads before the checkpoint have
+	 * been passed to it, so handlers can persist their own state in step.
+	 */
+	public interface IListener {
+		public void checkpoint(ReadCheckpoint checkpoint);
+	}
+
+	/** The start of the input */
+	public static final ReadCheckpoint START = new ReadCheckpoint(0, 0);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** the offset in the decompressed input to continue from */
+	public final long offset;
+	/** the number of quads delivered before the offset */
+	public final long quads;
+
+	public ReadCheckpoint(long offset, long quads) {
+		this.offset = offset;
+		this.quads = quads;
+	}
+
+	/**
+	 * @return the checkpoint saved in a file, or {@link #START} if the file
+	 *         doesn't exist
+	 * @throws IOException
+	 *             if the file is not a saved checkpoint
+	 * @see #save(File)
+	 */
+	public static ReadCheckpoint load(File f) throws IOException {
+		if (!f.exists()) return START;
+		BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(f), UTF8));
+		try {
+			String line = r.readLine();
+			String[] s = line == null ? null : line.trim().split(" ");
+			if (s == null || s.length != 2) throw new IOException("Malformed checkpoint file " + f);
+			try {
+				return new ReadCheckpoint(Long.parseLong(s[0]), Long.parseLong(s[1]));
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed checkpoint file " + f, e);
+			}
+		} finally {
+			r.close();
+		}
+	}
+
+	/**
+	 * Save the checkpoint in a file, forcing it to disk and replacing the file
+	 * in one atomic move, so that a crash leaves either the old or the new
+	 * checkpoint
+	 */
+	public void save(File f) throws IOException {
+		AtomicFiles.write(f, offset + " " + quads + "\n");
+	}
+
+	/**
+	 * @return a listener saving each checkpoint into a file
+	 */
+	public static IListener toFile(final File f) {
+		return new IListener() {
+
+			@Override
+			public void checkpoint(ReadCheckpoint checkpoint) {
+				try {
+					checkpoint.save(f);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "offset " + offset + ", " + quads + " quads";
+	}
+
+}
@@ -0,0 +1,303 @@
+package fi.seco.rdfio;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openrdf.rio.RDFFormat;
+
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
+import fi.seco.rdfio.RDFReader.IRDFHandler;
+import fi.seco.rdfio.RDFWriter.IRDFWriter;
+import fi.seco.rdfobject.IQuad;
+import fi.seco.rdfobject.IRDFObject;
+
+/**
+ * An RDF writer that hash partitions quads by subject or graph across a
+ * number of shard files, each written by its own {@link IRDFWriter} on its
+ * own thread (see {@link AsyncRDFHandler}), compressed per its extension.
+ * Namespaces are written to every shard. On close, a manifest listing the
+ * shards is written next to them, which {@link RDFReader} reads back as a
+ * single source.
+ * <p>
+ * For a manifest <code>dump.nq.gz.shards</code>, the shards are named
+ * <code>dump.00000.nq.gz</code>, <code>dump.00001.nq.gz</code> etc. The
+ * partition of a term only depends on its string form, so the same term
+ * always ends up in the same shard across exports. Partitioning by graph
+ * keeps each graph in a single shard, which is only useful with quad formats.
+ * Quads without a graph then all go to the first shard.
+ */
+public class ShardedRDFWriter implements IRDFWriter, IRDFBatchHandler {
+
+	/** The extension of shard manifests */
+	public static final String MANIFEST_EXTENSION = ".shards";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * What quads are partitioned by
+	 */
+	public static enum Partitioning {
+		SUBJECT {
+			@Override
+			IRDFObject key(IQuad q) {
+				return q.getSubject();
+			}
+		},
+		GRAPH {
+			@Override
+			IRDFObject key(IQuad q) {
+				return q.getGraph();
+			}
+		};
+
+		abstract IRDFObject key(IQuad q);
+	}
+
+	private final File manifest;
+	private final Partitioning partitioning;
+	private final String[] names;
+	private final IRDFWriter[] writers;
+	private final AsyncRDFHandler[] handlers;
+	private final long[] counts;
+	private boolean started;
+	private boolean closed;
+
+	/**
+	 * @param manifest
+	 *            the manifest file, the name of which without
+	 *            {@link #MANIFEST_EXTENSION} determines the format and
+	 *            compression of the shards
+	 * @param shards
+	 *            the number of shards
+	 * @see #ShardedRDFWriter(File, int, Partitioning, boolean, int, File, int)
+	 */
+	public ShardedRDFWriter(File manifest, int shards, Partitioning partitioning, boolean pretty) throws IOException {
+		this(manifest, shards, partitioning, pretty, 0, null, 1);
+	}
+
+	/**
+	 * @param manifest
+	 *            the manifest file, the name of which without
+	 *            {@link #MANIFEST_EXTENSION} determines the format and
+	 *            compression of the shards
+	 * @param shards
+	 *            the number of shards
+	 * @param partitioning
+	 *            what to partition quads by
+	 * @param pretty
+	 *            whether to use pretty writers for the shards
+	 * @param compressionThreads
+	 *            the number of threads compressing each shard
+	 * @see RDFWriter#getWriter(OutputStream, RDFFormat, boolean, int, File)
+	 */
+	public ShardedRDFWriter(File manifest, int shards, Partitioning partitioning, boolean pretty, int maxBufferedQuads,
+			File tmpDir, int compressionThreads) throws IOException {
+		if (shards < 1) throw new IllegalArgumentException("Need at least one shard: " + shards);
+		String name = manifest.getName();
+		if (!name.endsWith(MANIFEST_EXTENSION)) throw new IllegalArgumentException("Manifest name must end with " + MANIFEST_EXTENSION + ": " + manifest);
+		name = name.substring(0, name.length() - MANIFEST_EXTENSION.length());
+		RDFFormat type = RDFReader.getFormat(name);
+		if (type == null) throw new IllegalArgumentException("Unknown format: " + name);
+		this.manifest = manifest;
+		this.partitioning = partitioning;
+		this.names = new String[shards];
+		this.writers = new IRDFWriter[shards];
+		this.handlers = new AsyncRDFHandler[shards];
+		this.counts = new long[shards];
+		File dir = manifest.getAbsoluteFile().getParentFile();
+		try {
+			for (int j = 0; j < shards; j++) {
+				names[j] = RDFWriter.withInfix(name, String.format("%05d", j));
+				String filename = new File(dir, names[j]).getPath();
+				writers[j] = RDFWriter.getWriter(CompressedOutputStreams.create(filename, compressionThreads), type, pretty, maxBufferedQuads, tmpDir);
+			}
+		} catch (IOException e) {
+			for (int j = 0; j < shards; j++)
+				if (writers[j] != null) writers[j].close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the shard of a term, from its string form. No term, such as
+	 *         the graph of a triple, always goes to the first shard.
+	 */
+	static int partition(IRDFObject o, int shards) {
+		if (o == null) return 0;
+		String s = o.isLiteral() ? o.getValue() : o.getURI();
+		int h = s == null ? 0 : s.hashCode();
+		// spread the low bits, String.hashCode is weak in them for similar URIs
+		h *= 0x9E3779B9;
+		h ^= h >>> 16;
+		return (h & Integer.MAX_VALUE) % shards;
+	}
+
+	@Override
+	public void visit(IQuad q) {
+		if (!started) endProlog();
+		int i = partition(partitioning.key(q), handlers.length);
+		counts[i]++;
+		handlers[i].visit(q);
+	}
+
+	@Override
+	public void visit(IQuad[] quads, int count) {
+		for (int i = 0; i < count; i++)
+			visit(quads[i]);
+	}
+
+	/**
+	 * @return the handlers to pass metadata to, the writers themselves until
+	 *         the end of the prolog
+	 */
+	private IRDFHandler[] targets() {
+		return started ? handlers : writers;
+	}
+
+	@Override
+	public void setNameSpace(String prefix, String ns) {
+		for (IRDFHandler h : targets())
+			h.setNameSpace(prefix, ns);
+	}
+
+	@Override
+	public void setBaseIRI(String baseIRI) {
+		for (IRDFHandler h : targets())
+			h.setBaseIRI(baseIRI);
+	}
+
+	@Override
+	public void comment(String comment) {
+		for (IRDFHandler h : targets())
+			h.comment(comment);
+	}
+
+	/**
+	 * Ends the prolog of all shards and starts their writer threads
+	 */
+	@Override
+	public void endProlog() {
+		if (started) return;
+		for (int i = 0; i < writers.length; i++) {
+			writers[i].endProlog();
+			handlers[i] = new AsyncRDFHandler(writers[i]);
+		}
+		started = true;
+	}
+
+	/**
+	 * @return the number of quads written to each shard so far
+	 */
+	public long[] getCounts() {
+		return counts.clone();
+	}
+
+	/**
+	 * Flush and close all shards, in parallel, and write the manifest
+	 */
+	@Override
+	public void close() {
+		if (closed) return;
+		if (!started) endProlog();
+		closed = true;
+		final Throwable[] failures = new Throwable[handlers.length];
+		Thread[] closers = new Thread[handlers.length];
+		for (int i = 0; i < handlers.length; i++) {
+			final int j = i;
+			closers[i] = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						handlers[j].close();
+						writers[j].close();
+					} catch (Throwable t) {
+						failures[j] = t;
+					}
+				}
+
+			}, "rdfio-shard-closer-" + i);
+			closers[i].start();
+		}
+		boolean interrupted = false;
+		for (Thread t : closers)
+			while (t.isAlive())
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+		if (interrupted) Thread.currentThread().interrupt();
+		for (Throwable t : failures)
+			if (t != null) {
+				if (t instanceof RuntimeException) throw (RuntimeException) t;
+				if (t instanceof Error) throw (Error) t;
+				throw new RuntimeException(t);
+			}
+		try {
+			writeManifest();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Write the manifest, replacing it atomically (see
+	 * {@link AtomicFiles#write(File, String)})
+	 */
+	private void writeManifest() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("# partitioned by ").append(partitioning).append('\n');
+		for (int i = 0; i < names.length; i++)
+			sb.append(names[i]).append('\t').append(counts[i]).append('\n');
+		AtomicFiles.write(manifest, sb.toString());
+	}
+
+	/**
+	 * @return whether the url is a shard manifest
+	 */
+	public static boolean isManifest(String url) {
+		return url.endsWith(MANIFEST_EXTENSION);
+	}
+
+	/**
+	 * @return the urls of the shards listed in a manifest, in order
+	 */
+	public static List<String> getShards(String url) throws IOException {
+		URI base;
+		try {
+			base = new URI(url);
+		} catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+		List<String> ret = new ArrayList<String>();
+		InputStream is = CompressedInputStreams.open(url, 0);
+		BufferedReader r = new BufferedReader(new InputStreamReader(is, UTF8));
+		try {
+			String line;
+			while ((line = r.readLine()) != null) {
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				int i = line.lastIndexOf('\t');
+				String name = i == -1 ? line : line.substring(0, i);
+				try {
+					ret.add(base.resolve(new URI(null, null, name, null)).toString());
+				} catch (URISyntaxException e) {
+					throw new IOException(e);
+				}
+			}
+		} finally {
+			r.close();
+		}
+		return ret;
+	}
+
+}
@@ -0,0 +1,483 @@
+package fi.seco.rdfio;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+import fi.seco.rdfobject.IQuad;
+import fi.seco.rdfobject.IQuadVisitor;
+
+/**
+ * A random access index of the entities in a Sindice DE tar archive. The
+ * index is built in one pass over the archive with {@link #build(File)} and
+ * saved as a sidecar file next to it. It records, for the graph and subject
+ * of each entity, where the data of its outgoing and incoming triple entries
+ * lies in the (uncompressed) archive. Lookups binary search the index by the
+ * hash of the subject, and then read and parse only the entries of the
+ * matching entities. The archive may be an uncompressed tar or an xz
+ * compressed one, which is seeked block by block, so xz archives compressed
+ * in several blocks (like those written by {@link CompressedOutputStreams})
+ * are the ones that profit.
+ * <p>
+ * The index file holds the magic bytes <code>SDTI</code> and a version byte,
+ * then the entity records (graph and subject URIs as varint length prefixed
+ * UTF-8, followed by the varint offsets and sizes of the two triple entries),
+ * then a table of subject hash and record offset pairs sorted by hash, and
+ * finally the offset of the table and the number of entities as 8 byte
+ * longs. Instances are not thread safe.
+ */
+public final class SindiceDETarIndex {
+
+	/** The extension appended to the archive name for the index file */
+	public static final String INDEX_EXTENSION = ".idx";
+
+	private static final byte[] MAGIC = { 'S', 'D', 'T', 'I' };
+	private static final int VERSION = 1;
+	private static final int BLOCK = 512;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * An entity found in the index
+	 */
+	private static final class Entity {
+		String graphURI;
+		String subjectURI;
+		long outgoingOffset;
+		long outgoingSize;
+		long incomingOffset;
+		long incomingSize;
+	}
+
+	/**
+	 * Walks the headers of a tar stream, keeping track of the offsets of the
+	 * entry data. Handles ustar name prefixes, GNU long names and pax path
+	 * and size records.
+	 */
+	private static final class TarWalker {
+
+		private final InputStream in;
+		private final byte[] header = new byte[BLOCK];
+		private long position;
+		private long remaining;
+		String name;
+		long size;
+		long offset;
+
+		TarWalker(InputStream in) {
+			this.in = in;
+		}
+
+		private void readFully(byte[] b, int len) throws IOException {
+			for (int off = 0; off < len;) {
+				int r = in.read(b, off, len - off);
+				if (r == -1) throw new EOFException("Truncated tar archive");
+				off += r;
+			}
+			position += len;
+		}
+
+		private void skip(long n) throws IOException {
+			position += n;
+			while (n > 0) {
+				long s = in.skip(n);
+				if (s <= 0) {
+					if (in.read() == -1) throw new EOFException("Truncated tar archive");
+					s = 1;
+				}
+				n -= s;
+			}
+		}
+
+		private static String string(byte[] b, int off, int len) {
+			int end = off;
+			while (end < off + len && b[end] != 0)
+				end++;
+			return new String(b, off, end - off, UTF8);
+		}
+
+		private static long number(byte[] b, int off, int len) {
+			if ((b[off] & 0x80) != 0) {
+				// base-256, used for large sizes
+				long v = b[off] & 0x7F;
+				for (int i = 1; i < len; i++)
+					v = (v << 8) | (b[off + i] & 0xFF);
+				return v;
+			}
+			long v = 0;
+			for (int i = off; i < off + len; i++) {
+				byte c = b[i];
+				if (c >= '0' && c <= '7')
+					v = (v << 3) + c - '0';
+				else if (c == 0 || c == ' ') {
+					if (v != 0) break;
+				} else break;
+			}
+			return v;
+		}
+
+		private byte[] readData() throws IOException {
+			byte[] d = new byte[(int) size];
+			readFully(d, d.length);
+			skip(padding(size));
+			remaining = 0;
+			return d;
+		}
+
+		private static long padding(long size) {
+			return (BLOCK - size % BLOCK) % BLOCK;
+		}
+
+		/**
+		 * Advance to the next regular entry, skipping the data of the current
+		 * one if it wasn't read
+		 *
+		 * @return <code>false</code> at the end of the archive
+		 */
+		boolean next() throws IOException {
+			skip(remaining);
+			remaining = 0;
+			String longName = null;
+			long paxSize = -1;
+			while (true) {
+				int r = 0;
+				while (r < BLOCK) {
+					int n = in.read(header, r, BLOCK - r);
+					if (n == -1) {
+						if (r == 0) return false;
+						throw new EOFException("Truncated tar archive");
+					}
+					r += n;
+				}
+				position += BLOCK;
+				boolean zero = true;
+				for (int i = 0; i < BLOCK && zero; i++)
+					if (header[i] != 0) zero = false;
+				if (zero) return false;
+				size = number(header, 124, 12);
+				byte type = header[156];
+				if (type == 'L') {
+					longName = string(readData(), 0, (int) size);
+				} else if (type == 'x') {
+					// records are "<length in bytes> <key>=<value>\n"
+					byte[] pax = readData();
+					for (int i = 0; i < pax.length;) {
+						int len = 0;
+						int sp = i;
+						while (pax[sp] != ' ')
+							len = len * 10 + pax[sp++] - '0';
+						if (len <= 0) break;
+						String record = new String(pax, sp + 1, i + len - sp - 2, UTF8);
+						if (record.startsWith("path="))
+							longName = record.substring(5);
+						else if (record.startsWith("size=")) paxSize = Long.parseLong(record.substring(5));
+						i += len;
+					}
+				} else if (type == 'g' || type == 'K') {
+					skip(size + padding(size));
+				} else {
+					if (paxSize != -1) size = paxSize;
+					if (longName != null)
+						name = longName;
+					else {
+						name = string(header, 0, 100);
+						if (header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r' && header[345] != 0)
+							name = string(header, 345, 155) + '/' + name;
+					}
+					offset = position;
+					remaining = size + padding(size);
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return the data of the current entry
+		 */
+		byte[] read() throws IOException {
+			return readData();
+		}
+
+	}
+
+	private final RandomAccessFile index;
+	private final FileChannel indexChannel;
+	private final long tableOffset;
+	private final long count;
+	private final FileChannel archive;
+	private final SeekableXZInputStream xz;
+
+	/**
+	 * Open an archive for lookups using its sidecar index
+	 *
+	 * @see #build(File)
+	 */
+	public SindiceDETarIndex(File archive) throws IOException {
+		this(archive, getIndexFile(archive));
+	}
+
+	public SindiceDETarIndex(File archive, File indexFile) throws IOException {
+		checkSeekable(archive);
+		this.index = new RandomAccessFile(indexFile, "r");
+		this.indexChannel = index.getChannel();
+		byte[] magic = new byte[MAGIC.length];
+		index.readFully(magic);
+		if (!Arrays.equals(magic, MAGIC) || index.read() != VERSION) {
+			index.close();
+			throw new IOException(indexFile + " is not a Sindice DE tar index");
+		}
+		index.seek(index.length() - 16);
+		this.tableOffset = index.readLong();
+		this.count = index.readLong();
+		if (archive.getName().endsWith(".xz")) {
+			this.xz = new SeekableXZInputStream(new SeekableFileInputStream(archive));
+			this.archive = null;
+		} else {
+			this.xz = null;
+			this.archive = new RandomAccessFile(archive, "r").getChannel();
+		}
+	}
+
+	/**
+	 * @return the sidecar index file for an archive
+	 */
+	public static File getIndexFile(File archive) {
+		return new File(archive.getPath() + INDEX_EXTENSION);
+	}
+
+	private static void checkSeekable(File archive) {
+		String name = archive.getName();
+		if (name.endsWith(".gz") || name.endsWith(".bz2"))
+			throw new IllegalArgumentException("Can't seek in " + archive + ", only uncompressed and xz compressed archives are supported");
+	}
+
+	private static long hash(String s) {
+		// 64 bit FNV-1a
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private static void writeString(OutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(UTF8);
+		ExternalLongTupleSorter.writeVarLong(out, b.length);
+		out.write(b);
+	}
+
+	/**
+	 * Index an archive into its sidecar index file
+	 *
+	 * @see #getIndexFile(File)
+	 */
+	public static void build(File archive) throws IOException {
+		build(archive, getIndexFile(archive));
+	}
+
+	/**
+	 * Index an archive in one pass. Only the metadata entries are read, the
+	 * triple entries are skipped over.
+	 *
+	 * @param archive
+	 *            an uncompressed or xz compressed Sindice DE tar
+	 * @param indexFile
+	 *            the file to write the index to
+	 */
+	public static void build(File archive, File indexFile) throws IOException {
+		checkSeekable(archive);
+		InputStream in = archive.getName().endsWith(".xz") ? CompressedInputStreams.xz(archive, 0) : new MappedFileInputStream(archive);
+		ExternalLongTupleSorter sorter = new ExternalLongTupleSorter(2, 1024 * 1024, indexFile.getAbsoluteFile().getParentFile());
+		try {
+			CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile), 64 * 1024));
+			try {
+				out.write(MAGIC);
+				out.write(VERSION);
+				TarWalker t = new TarWalker(in);
+				long[] entry = new long[2];
+				while (t.next()) {
+					if (!t.name.endsWith("metadata"))
+						throw new IllegalArgumentException("Corrupt archive: " + t.name + " is not metadata");
+					byte[] metadata = t.read();
+					String[] uris = SindiceDETarParser.parseMetadata(metadata, 0, metadata.length);
+					if (!t.next() || !t.name.endsWith("outgoing-triples.nt"))
+						throw new IllegalArgumentException("Corrupt archive: " + t.name + " is not outgoing-triples.nt");
+					long outgoingOffset = t.offset;
+					long outgoingSize = t.size;
+					if (!t.next() || !t.name.endsWith("incoming-triples.nt"))
+						throw new IllegalArgumentException("Corrupt archive: " + t.name + " is not incoming-triples.nt");
+					entry[0] = hash(uris[1]);
+					entry[1] = out.getByteCount();
+					sorter.add(entry);
+					writeString(out, uris[0]);
+					writeString(out, uris[1]);
+					ExternalLongTupleSorter.writeVarLong(out, outgoingOffset);
+					ExternalLongTupleSorter.writeVarLong(out, outgoingSize);
+					ExternalLongTupleSorter.writeVarLong(out, t.offset);
+					ExternalLongTupleSorter.writeVarLong(out, t.size);
+				}
+				long tableOffset = out.getByteCount();
+				ExternalLongTupleSorter.ITupleReader r = sorter.sorted();
+				byte[] b = new byte[16];
+				ByteBuffer bb = ByteBuffer.wrap(b);
+				while (r.next(entry)) {
+					bb.clear();
+					bb.putLong(entry[0]).putLong(entry[1]);
+					out.write(b);
+				}
+				bb.clear();
+				bb.putLong(tableOffset).putLong(sorter.size());
+				out.write(b);
+			} finally {
+				out.close();
+			}
+		} finally {
+			sorter.close();
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the number of entities in the archive
+	 */
+	public long size() {
+		return count;
+	}
+
+	private long readLong(long position) throws IOException {
+		index.seek(position);
+		return index.readLong();
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long v = 0;
+		int shift = 0;
+		while (true) {
+			int x = in.readUnsignedByte();
+			v |= (long) (x & 0x7F) << shift;
+			if (x < 0x80) return v;
+			shift += 7;
+		}
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[(int) readVarLong(in)];
+		in.readFully(b);
+		return new String(b, UTF8);
+	}
+
+	private Entity readEntity(long offset) throws IOException {
+		indexChannel.position(offset);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(indexChannel), 1024));
+		Entity e = new Entity();
+		e.graphURI = readString(in);
+		e.subjectURI = readString(in);
+		e.outgoingOffset = readVarLong(in);
+		e.outgoingSize = readVarLong(in);
+		e.incomingOffset = readVarLong(in);
+		e.incomingSize = readVarLong(in);
+		return e;
+	}
+
+	/**
+	 * @return the entities with the subject, and with the graph if not
+	 *         <code>null</code>
+	 */
+	private List<Entity> find(String subjectURI, String graphURI) throws IOException {
+		long h = hash(subjectURI);
+		long lo = 0, hi = count - 1;
+		// find the first table slot with the hash
+		while (lo <= hi) {
+			long mid = (lo + hi) >>> 1;
+			if (readLong(tableOffset + mid * 16) < h)
+				lo = mid + 1;
+			else hi = mid - 1;
+		}
+		List<Entity> ret = new ArrayList<Entity>(1);
+		for (long i = lo; i < count && readLong(tableOffset + i * 16) == h; i++) {
+			Entity e = readEntity(readLong(tableOffset + i * 16 + 8));
+			if (e.subjectURI.equals(subjectURI) && (graphURI == null || e.graphURI.equals(graphURI))) ret.add(e);
+		}
+		return ret;
+	}
+
+	/**
+	 * @return <code>true</code> if the archive has an entity with the subject
+	 */
+	public boolean contains(String subjectURI) throws IOException {
+		return !find(subjectURI, null).isEmpty();
+	}
+
+	private void read(long offset, byte[] b, int off, int len) throws IOException {
+		if (xz != null) {
+			xz.seek(offset);
+			for (int r = 0; r < len;) {
+				int n = xz.read(b, off + r, len - r);
+				if (n == -1) throw new EOFException();
+				r += n;
+			}
+		} else {
+			ByteBuffer bb = ByteBuffer.wrap(b, off, len);
+			while (bb.hasRemaining())
+				if (archive.read(bb, offset + bb.position() - off) == -1) throw new EOFException();
+		}
+	}
+
+	/**
+	 * Parse the entities with a subject in all graphs, passing their quads to
+	 * a visitor
+	 *
+	 * @return <code>false</code> if there is no such entity
+	 */
+	public boolean parse(String subjectURI, IQuadVisitor visitor) throws IOException {
+		return parse(subjectURI, null, visitor);
+	}
+
+	/**
+	 * Parse the entity with a subject in a graph, passing its quads to a
+	 * visitor
+	 *
+	 * @param graphURI
+	 *            the graph of the entity, or <code>null</code> for all graphs
+	 * @return <code>false</code> if there is no such entity
+	 */
+	public boolean parse(String subjectURI, String graphURI, IQuadVisitor visitor) throws IOException {
+		List<Entity> entities = find(subjectURI, graphURI);
+		List<IQuad> quads = new ArrayList<IQuad>();
+		for (Entity e : entities) {
+			byte[] data = new byte[(int) (e.outgoingSize + e.incomingSize)];
+			read(e.outgoingOffset, data, 0, (int) e.outgoingSize);
+			read(e.incomingOffset, data, (int) e.outgoingSize, (int) e.incomingSize);
+			quads.clear();
+			SindiceDETarParser.parseEntity(e.graphURI, e.subjectURI, data, 0, (int) e.outgoingSize, data.length, quads, null);
+			for (IQuad q : quads)
+				visitor.visit(q);
+		}
+		return !entities.isEmpty();
+	}
+
+	public void close() throws IOException {
+		index.close();
+		if (xz != null) xz.close();
+		if (archive != null) archive.close();
+	}
+
+}
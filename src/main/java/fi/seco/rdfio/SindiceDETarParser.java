@@ -1,21 +1,23 @@
 package fi.seco.rdfio;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
-import org.apache.commons.io.input.CloseShieldInputStream;
-import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.lang.LabelToNode;
 import org.apache.jena.riot.lang.LangNTriples;
-import org.apache.jena.riot.system.ErrorHandlerFactory;
-import org.apache.jena.riot.system.RiotLib;
-import org.apache.jena.riot.system.StreamRDF;
+import org.apache.jena.riot.system.ParserProfileBase;
 import org.apache.jena.riot.system.StreamRDFBase;
 import org.apache.jena.riot.tokens.TokenizerFactory;
 import org.slf4j.Logger;
@@ -23,71 +25,313 @@ import org.slf4j.LoggerFactory;
 
 import com.hp.hpl.jena.graph.Triple;
 
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
 import fi.seco.rdfobject.BNodeResourceRDFObject;
 import fi.seco.rdfobject.IQuad;
 import fi.seco.rdfobject.IQuadVisitor;
 import fi.seco.rdfobject.IRDFObject;
 import fi.seco.rdfobject.Quad;
 import fi.seco.rdfobject.URIResourceRDFObject;
-import fi.seco.rdfobject.jena.JenaRDFObjectUtil;
 
+/**
+ * A parser for the Sindice DE tar format, in which each entity is a group of
+ * three entries: metadata naming the graph and the entity, the outgoing
+ * triples of the entity and its incoming triples. The tar is walked on the
+ * calling thread, reading entity groups into buffers. The groups are parsed
+ * in batches either on the calling thread or on a worker pool, in both cases
+ * reusing a per-thread parser profile and sink instead of setting them up for
+ * each entity. Like in separate N-Triples documents, blank node labels are
+ * scoped to the triples file of an entity they appear in.
+ */
 public class SindiceDETarParser {
 
 	private static final Logger log = LoggerFactory.getLogger(SindiceDETarParser.class);
 
-	public static void parse(InputStream in, final IQuadVisitor visitor) {
+	/** The amount of entity data collected into a batch before parsing it */
+	public static final int DEFAULT_BATCH_SIZE = 1024 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The raw data of consecutive entity groups
+	 */
+	private static final class EntityBatch {
+		byte[] data = new byte[DEFAULT_BATCH_SIZE + 64 * 1024];
+		int length;
+		/** the end offsets of the metadata, outgoing and incoming entries, by entity */
+		int[] ends = new int[3 * 1024];
+		int entities;
+
+		void read(TarArchiveInputStream ta, TarArchiveEntry t) throws IOException {
+			int n = (int) t.getSize();
+			if (length + n > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, length + n));
+			while (n > 0) {
+				int r = ta.read(data, length, n);
+				if (r == -1) throw new EOFException();
+				length += r;
+				n -= r;
+			}
+		}
+
+		void endEntry(int entry) {
+			int i = 3 * entities + entry;
+			if (i == ends.length) ends = Arrays.copyOf(ends, ends.length * 2);
+			ends[i] = length;
+			if (entry == 2) entities++;
+		}
+	}
+
+	/**
+	 * Receives the triples of the entity being parsed
+	 */
+	private static final class EntitySink extends StreamRDFBase {
+		IRDFObject graph;
+		IRDFObject subject;
+		boolean incoming;
+		RDFObjectCache cache;
+		List<IQuad> quads;
+
+		@Override
+		public void triple(Triple t) {
+			if (incoming)
+				quads.add(new Quad(RDFObjectCache.get(cache, t.getSubject()), RDFObjectCache.get(cache, t.getPredicate()), subject, graph));
+			else quads.add(new Quad(subject, RDFObjectCache.get(cache, t.getPredicate()), RDFObjectCache.get(cache, t.getObject()), graph));
+		}
+	}
+
+	private static final class WorkerState {
+		final ParserProfileBase profile = ParallelNTuplesParser.createProfile();
+		final EntitySink sink = new EntitySink();
+	}
+
+	private static final ThreadLocal<WorkerState> workerState = new ThreadLocal<WorkerState>() {
+
+		@Override
+		protected WorkerState initialValue() {
+			return new WorkerState();
+		}
+
+	};
+
+	/**
+	 * Parse a local uncompressed Sindice DE tar file, memory-mapping it
+	 */
+	public static void parse(File f, IQuadVisitor visitor) throws IOException {
+		parse(new MappedFileInputStream(f), visitor, null);
+	}
+
+	/**
+	 * Parse a local uncompressed Sindice DE tar file in parallel,
+	 * memory-mapping it
+	 *
+	 * @see #parse(InputStream, IQuadVisitor, int, boolean, RDFObjectCache)
+	 */
+	public static void parse(File f, IQuadVisitor visitor, int threads, boolean ordered, RDFObjectCache cache) throws IOException {
+		parse(new MappedFileInputStream(f), visitor, threads, ordered, cache);
+	}
+
+	public static void parse(InputStream in, IQuadVisitor visitor) {
+		parse(in, visitor, null);
+	}
+
+	/**
+	 * @param cache
+	 *            a term cache to resolve parsed terms through, or
+	 *            <code>null</code>
+	 */
+	public static void parse(InputStream in, IQuadVisitor visitor, final RDFObjectCache cache) {
+		if (visitor instanceof IRDFBatchHandler) {
+			QuadBatcher b = new QuadBatcher((IRDFBatchHandler) visitor);
+			try {
+				parseEntries(in, b, cache);
+			} finally {
+				b.flush();
+			}
+		} else parseEntries(in, visitor, cache);
+	}
+
+	/**
+	 * Parse a Sindice DE tar in parallel. The tar is read on the calling
+	 * thread and batches of entities are parsed on a worker pool. The quads
+	 * of an entity are always passed to the visitor together, on the calling
+	 * thread.
+	 *
+	 * @param in
+	 *            the stream to read from
+	 * @param visitor
+	 *            the visitor to pass the quads to. A batch handler gets the
+	 *            quads of each parsed batch of entities as one batch.
+	 * @param threads
+	 *            the number of worker threads, zero or less for one per
+	 *            processor
+	 * @param ordered
+	 *            whether entities need to be passed in input order
+	 * @param cache
+	 *            a term cache shared by the worker threads, or
+	 *            <code>null</code>
+	 */
+	public static void parse(InputStream in, final IQuadVisitor visitor, int threads, boolean ordered, final RDFObjectCache cache) {
+		if (threads <= 0) threads = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = ChunkPipeline.newThreadPool(threads, "rdfio-sindice");
+		ChunkPipeline<List<IQuad>> pipeline = new ChunkPipeline<List<IQuad>>(executor, 2 * threads, ordered, visitor instanceof IRDFBatchHandler ? new ChunkPipeline.IResultHandler<List<IQuad>>() {
+
+			private IQuad[] batch = new IQuad[0];
+
+			@Override
+			public void handle(List<IQuad> result) {
+				if (result.isEmpty()) return;
+				batch = result.toArray(batch);
+				((IRDFBatchHandler) visitor).visit(batch, result.size());
+			}
+
+		} : new ChunkPipeline.IResultHandler<List<IQuad>>() {
+
+			@Override
+			public void handle(List<IQuad> result) {
+				for (IQuad q : result)
+					visitor.visit(q);
+			}
+
+		});
 		try {
 			TarArchiveInputStream ta = new TarArchiveInputStream(in);
-			BufferedReader r = new BufferedReader(new InputStreamReader(ta));
-			TarArchiveEntry t;
-			while ((t = ta.getNextTarEntry()) != null) {
-				if (!t.getName().endsWith("metadata"))
-					throw new IllegalArgumentException("Corrupt archive: " + t.getName() + " is not metadata");
-				String graphURI = r.readLine();
-				final IRDFObject graph = new URIResourceRDFObject(graphURI);
-				String subjectURI = r.readLine();
-				final IRDFObject subject;
-				if (subjectURI.startsWith("_:"))
-					subject = new BNodeResourceRDFObject(subjectURI);
-				else subject = new URIResourceRDFObject(subjectURI);
-				t = ta.getNextTarEntry();
-				if (!t.getName().endsWith("outgoing-triples.nt"))
-					throw new IllegalArgumentException("Corrupt archive: " + t.getName() + " is not outgoing-triples.nt");
-				if (ta.available() > 0) {
-					StreamRDF sink1 = new StreamRDFBase() {
-
-						@Override
-						public void triple(Triple t) {
-							visitor.visit(new Quad(subject, JenaRDFObjectUtil.getRDFObjectForNode(t.getPredicate()), JenaRDFObjectUtil.getRDFObjectForNode(t.getObject()), graph));
-						}
-
-					};
-					LangNTriples parser = new LangNTriples(TokenizerFactory.makeTokenizerUTF8(new CloseShieldInputStream(ta)), RiotLib.profile(RDFLanguages.NTRIPLES, null, ErrorHandlerFactory.errorHandlerWarn), sink1);
-					parser.setSkipOnBadTerm(true);
-					parser.parse();
-				}
-				t = ta.getNextTarEntry();
-				if (!t.getName().endsWith("incoming-triples.nt"))
-					throw new IllegalArgumentException("Corrupt archive: " + t.getName() + " is not incoming-triples.nt");
-				if (ta.available() > 0) {
-					StreamRDF sink2 = new StreamRDFBase() {
-
-						@Override
-						public void triple(Triple t) {
-							visitor.visit(new Quad(JenaRDFObjectUtil.getRDFObjectForNode(t.getSubject()), JenaRDFObjectUtil.getRDFObjectForNode(t.getPredicate()), subject, graph));
-						}
-
-					};
-					LangNTriples parser = new LangNTriples(TokenizerFactory.makeTokenizerUTF8(new CloseShieldInputStream(ta)), RiotLib.profile(RDFLanguages.NTRIPLES, null, ErrorHandlerFactory.errorHandlerWarn), sink2);
-					parser.parse();
-				}
+			EntityBatch b;
+			while ((b = readBatch(ta)) != null) {
+				final EntityBatch batch = b;
+				pipeline.submit(new Callable<List<IQuad>>() {
+
+					@Override
+					public List<IQuad> call() {
+						return parseBatch(batch, cache);
+					}
+
+				});
 			}
+			pipeline.finish();
+			ta.close();
+		} catch (IOException e) {
+			log.error("", e);
+		} finally {
+			pipeline.cancel();
+			executor.shutdownNow();
+		}
+	}
+
+	private static void parseEntries(InputStream in, final IQuadVisitor visitor, final RDFObjectCache cache) {
+		try {
+			TarArchiveInputStream ta = new TarArchiveInputStream(in);
+			EntityBatch b;
+			while ((b = readBatch(ta)) != null)
+				for (IQuad q : parseBatch(b, cache))
+					visitor.visit(q);
 			ta.close();
 		} catch (IOException e) {
 			log.error("", e);
 		}
 	}
 
+	private static TarArchiveEntry nextEntry(TarArchiveInputStream ta, String suffix) throws IOException {
+		TarArchiveEntry t = ta.getNextTarEntry();
+		if (t == null) throw new IllegalArgumentException("Corrupt archive: missing " + suffix);
+		if (!t.getName().endsWith(suffix))
+			throw new IllegalArgumentException("Corrupt archive: " + t.getName() + " is not " + suffix);
+		return t;
+	}
+
+	/**
+	 * Read entity groups until the batch is full
+	 *
+	 * @return the batch, or <code>null</code> at the end of the archive
+	 */
+	private static EntityBatch readBatch(TarArchiveInputStream ta) throws IOException {
+		EntityBatch b = null;
+		TarArchiveEntry t;
+		while ((b == null || b.length < DEFAULT_BATCH_SIZE) && (t = ta.getNextTarEntry()) != null) {
+			if (!t.getName().endsWith("metadata"))
+				throw new IllegalArgumentException("Corrupt archive: " + t.getName() + " is not metadata");
+			if (b == null) b = new EntityBatch();
+			b.read(ta, t);
+			b.endEntry(0);
+			b.read(ta, nextEntry(ta, "outgoing-triples.nt"));
+			b.endEntry(1);
+			b.read(ta, nextEntry(ta, "incoming-triples.nt"));
+			b.endEntry(2);
+		}
+		return b;
+	}
+
+	private static List<IQuad> parseBatch(EntityBatch b, RDFObjectCache cache) {
+		RDFIOMetrics.IListener metrics = RDFIOMetrics.getListener();
+		long t = metrics == null ? 0 : System.nanoTime();
+		List<IQuad> ret = new ArrayList<IQuad>(b.length / 100);
+		int start = 0;
+		for (int i = 0; i < b.entities; i++) {
+			int metadataEnd = b.ends[3 * i];
+			String[] metadata = parseMetadata(b.data, start, metadataEnd);
+			parseEntity(metadata[0], metadata[1], b.data, metadataEnd, b.ends[3 * i + 1], b.ends[3 * i + 2], ret, cache);
+			start = b.ends[3 * i + 2];
+		}
+		if (metrics != null) metrics.stageTime(RDFIOMetrics.Stage.PARSE, System.nanoTime() - t);
+		return ret;
+	}
+
+	/**
+	 * @return the graph and subject URIs in the data of a metadata entry
+	 */
+	static String[] parseMetadata(byte[] data, int from, int to) {
+		String metadata = new String(data, from, to - from, UTF8);
+		int nl = metadata.indexOf('\n');
+		int nl2 = metadata.indexOf('\n', nl + 1);
+		if (nl == -1) throw new IllegalArgumentException("Corrupt archive: metadata without a subject");
+		return new String[] { stripCR(metadata.substring(0, nl)), stripCR(nl2 == -1 ? metadata.substring(nl + 1) : metadata.substring(nl + 1, nl2)) };
+	}
+
+	/**
+	 * Parse the triples of one entity, using the parser state of the calling
+	 * thread
+	 *
+	 * @param data
+	 *            holding the outgoing triples from <code>from</code> to
+	 *            <code>outgoingEnd</code> and the incoming triples from there
+	 *            to <code>incomingEnd</code>
+	 * @param quads
+	 *            the list to add the quads to
+	 */
+	static void parseEntity(String graphURI, String subjectURI, byte[] data, int from, int outgoingEnd, int incomingEnd,
+			List<IQuad> quads, RDFObjectCache cache) {
+		WorkerState s = workerState.get();
+		EntitySink sink = s.sink;
+		sink.quads = quads;
+		sink.cache = cache;
+		sink.graph = new URIResourceRDFObject(graphURI);
+		if (subjectURI.startsWith("_:"))
+			sink.subject = new BNodeResourceRDFObject(subjectURI);
+		else sink.subject = new URIResourceRDFObject(subjectURI);
+		try {
+			sink.incoming = false;
+			parseTriples(data, from, outgoingEnd, s);
+			sink.incoming = true;
+			parseTriples(data, outgoingEnd, incomingEnd, s);
+		} finally {
+			sink.quads = null;
+			sink.cache = null;
+		}
+	}
+
+	private static String stripCR(String s) {
+		return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+	}
+
+	private static void parseTriples(byte[] data, int from, int to, WorkerState s) {
+		if (from == to) return;
+		// a fresh blank node scope for each file, as when parsed on its own
+		s.profile.setLabelToNode(LabelToNode.createScopeByDocumentHash());
+		// a string tokenizer is much lighter to set up than a stream one
+		LangNTriples parser = new LangNTriples(TokenizerFactory.makeTokenizerString(new String(data, from, to - from, UTF8)), s.profile, s.sink);
+		parser.setSkipOnBadTerm(true);
+		parser.parse();
+	}
+
 	public static void main(String[] args) throws IOException {
 		IQuadVisitor v = new IQuadVisitor() {
 
@@ -0,0 +1,179 @@
+package fi.seco.rdfio;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
+import fi.seco.rdfio.RDFWriter.IRDFWriter;
+import fi.seco.rdfobject.IQuad;
+import fi.seco.rdfobject.IRDFObject;
+import fi.seco.rdfobject.Quad;
+
+/**
+ * An N-Triples / N-Quads writer producing canonical output sorted by a key
+ * order, for bulk loaders, optionally in several key orders at once. Each
+ * term occurrence is passed to an {@link ExternalTermRanker} as quads come
+ * in. On {@link #close()}, the terms are ranked by their serialized form, the
+ * ranks are joined back into quads by sorting them by occurrence, and the
+ * quads are sorted as rank tuples in an {@link ExternalLongTupleSorter} per
+ * key order and then written out with duplicates removed. Every stage spills
+ * to disk, so memory use is bounded however many quads and distinct terms
+ * there are. The output only depends on the set of quads passed in, not on
+ * their order. Comments and namespaces are not written.
+ */
+public class SortedNTuplesWriter implements IRDFWriter, IRDFBatchHandler {
+
+	/**
+	 * The order of the components of the sort key
+	 */
+	public static enum KeyOrder {
+		SPOG(0, 1, 2, 3), POSG(1, 2, 0, 3), OSPG(2, 0, 1, 3), GSPO(3, 0, 1, 2);
+
+		/** the subject, property, object and graph index of each key position */
+		final int[] key;
+
+		private KeyOrder(int... key) {
+			this.key = key;
+		}
+	}
+
+	private final OutputStream[] outputs;
+	private final KeyOrder[] orders;
+	private final boolean quads;
+	private final int maxBufferedQuads;
+	private final File tmpDir;
+	private final ExternalTermRanker ranker;
+	/** the number of quads seen, numbering the term occurrences */
+	private long count;
+
+	/**
+	 * @param outputs
+	 *            the streams to write to, one for each key order
+	 * @param orders
+	 *            the key orders to write
+	 * @param quads
+	 *            <code>true</code> to write N-Quads, <code>false</code> for
+	 *            N-Triples
+	 * @param maxBufferedQuads
+	 *            the number of quads, term occurrences or rank tuples to keep
+	 *            in memory at each sorting stage, shared by the key orders
+	 * @param tmpDir
+	 *            the directory for the sorted runs and terms, or
+	 *            <code>null</code> for the system default
+	 */
+	public SortedNTuplesWriter(OutputStream[] outputs, KeyOrder[] orders, boolean quads, int maxBufferedQuads, File tmpDir) {
+		if (outputs.length != orders.length || orders.length == 0) throw new IllegalArgumentException("Need one output for each key order");
+		this.outputs = outputs;
+		this.orders = orders;
+		this.quads = quads;
+		this.maxBufferedQuads = Math.max(1, maxBufferedQuads);
+		this.tmpDir = tmpDir;
+		this.ranker = new ExternalTermRanker(this.maxBufferedQuads, tmpDir);
+	}
+
+	@Override
+	public void setNameSpace(String prefix, String ns) {}
+
+	@Override
+	public void setBaseIRI(String baseIRI) {}
+
+	@Override
+	public void comment(String comment) {}
+
+	@Override
+	public void endProlog() {}
+
+	@Override
+	public void visit(IQuad q) {
+		// occurrences are numbered by quad and subject, property, object and graph index
+		long n = count++ * 4;
+		ranker.add(q.getSubject(), n);
+		ranker.add(q.getProperty(), n + 1);
+		ranker.add(q.getObject(), n + 2);
+		if (quads && q.getGraph() != null) ranker.add(q.getGraph(), n + 3);
+	}
+
+	@Override
+	public void visit(IQuad[] quads, int count) {
+		for (int i = 0; i < count; i++)
+			visit(quads[i]);
+	}
+
+	@Override
+	public void close() {
+		ExternalLongTupleSorter occurrences = null;
+		ExternalLongTupleSorter[] sorters = new ExternalLongTupleSorter[orders.length];
+		try {
+			occurrences = new ExternalLongTupleSorter(2, maxBufferedQuads, tmpDir);
+			ranker.rank(occurrences);
+			int perOrder = Math.max(1, maxBufferedQuads / orders.length);
+			for (int i = 0; i < orders.length; i++)
+				sorters[i] = new ExternalLongTupleSorter(4, perOrder, tmpDir);
+			// every quad has a subject, so each quad shows up, with rank 0 for no graph
+			ExternalLongTupleSorter.ITupleReader r = occurrences.sorted();
+			long[] occurrence = new long[2];
+			long[] spog = new long[4];
+			long[] tuple = new long[4];
+			long quad = -1;
+			while (r.next(occurrence)) {
+				long n = occurrence[0] >>> 2;
+				if (n != quad) {
+					if (quad != -1) add(sorters, spog, tuple);
+					quad = n;
+					Arrays.fill(spog, 0);
+				}
+				spog[(int) (occurrence[0] & 3)] = occurrence[1];
+			}
+			if (quad != -1) add(sorters, spog, tuple);
+			occurrences.close();
+			for (int i = 0; i < orders.length; i++) {
+				write(sorters[i], orders[i], outputs[i]);
+				sorters[i].close();
+			}
+		} finally {
+			if (occurrences != null) occurrences.close();
+			for (ExternalLongTupleSorter s : sorters)
+				if (s != null) s.close();
+			ranker.close();
+		}
+	}
+
+	private void add(ExternalLongTupleSorter[] sorters, long[] spog, long[] tuple) {
+		for (int i = 0; i < orders.length; i++) {
+			int[] key = orders[i].key;
+			for (int k = 0; k < 4; k++)
+				tuple[k] = spog[key[k]];
+			sorters[i].add(tuple);
+		}
+	}
+
+	/**
+	 * Write the sorted quads of a key order, skipping duplicates
+	 */
+	private void write(ExternalLongTupleSorter sorter, KeyOrder order, OutputStream output) {
+		NTuplesWriter w = new NTuplesWriter(output, quads);
+		ExternalLongTupleSorter.ITupleReader r = sorter.sorted();
+		long[] tuple = new long[4];
+		long[] previous = new long[4];
+		// ranks and decoded terms by subject, property, object and graph
+		long[] spog = new long[4];
+		IRDFObject[] decoded = new IRDFObject[4];
+		boolean first = true;
+		while (r.next(tuple)) {
+			if (!first && ExternalLongTupleSorter.compare(tuple, 0, previous, 0, 4) == 0) continue;
+			first = false;
+			System.arraycopy(tuple, 0, previous, 0, 4);
+			for (int k = 0; k < 4; k++) {
+				int c = order.key[k];
+				if (spog[c] != tuple[k] || decoded[c] == null && tuple[k] != 0) {
+					spog[c] = tuple[k];
+					decoded[c] = tuple[k] == 0 ? null : ranker.get(tuple[k]);
+				}
+			}
+			w.visit(new Quad(decoded[0], decoded[1], decoded[2], decoded[3]));
+		}
+		w.close();
+	}
+
+}
@@ -0,0 +1,140 @@
+package fi.seco.rdfio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.openrdf.rio.RDFFormat;
+import org.openrdf.rio.RDFHandlerException;
+import org.openrdf.rio.Rio;
+
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
+import fi.seco.rdfio.RDFWriter.IRDFWriter;
+import fi.seco.rdfobject.IQuad;
+import fi.seco.rdfobject.IRDFObject;
+import fi.seco.rdfobject.openrdf.OpenRDFRDFObjectUtil;
+
+/**
+ * A TriG or TriX writer grouping quads like the buffering writers of
+ * {@link RDFWriter}, but with a bounded number of quads in memory. Terms are
+ * kept in an {@link OffHeapTermDictionary} and quads are stored as id tuples
+ * in an {@link ExternalLongTupleSorter}, which spills sorted runs to disk as
+ * needed and merges them on {@link #close()}. For TriG, quads are grouped by
+ * graph and subject, for TriX by graph. Within a group, quads are written in
+ * the order they were passed in.
+ */
+class SpillingGroupedRDFWriter implements IRDFWriter, IRDFBatchHandler {
+
+	private final org.openrdf.rio.RDFWriter w;
+	private final OutputStream output;
+	private final boolean bySubject;
+	private final OffHeapTermDictionary dictionary = new OffHeapTermDictionary();
+	private final ExternalLongTupleSorter sorter;
+	private long seq;
+
+	/**
+	 * @param output
+	 *            the stream to write to
+	 * @param type
+	 *            either {@link RDFFormat#TRIG} or {@link RDFFormat#TRIX}
+	 * @param maxBufferedQuads
+	 *            the number of quads to keep in memory before spilling to disk
+	 * @param tmpDir
+	 *            the directory for spilled runs, or <code>null</code> for the
+	 *            system default
+	 */
+	public SpillingGroupedRDFWriter(OutputStream output, RDFFormat type, int maxBufferedQuads, File tmpDir) {
+		this.w = Rio.createWriter(type, output);
+		this.output = output;
+		this.bySubject = RDFFormat.TRIG.equals(type);
+		this.sorter = new ExternalLongTupleSorter(5, maxBufferedQuads, tmpDir);
+	}
+
+	@Override
+	public void setNameSpace(String prefix, String ns) {
+		try {
+			w.handleNamespace(prefix, ns);
+		} catch (RDFHandlerException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void setBaseIRI(String baseIRI) {
+		if (baseIRI != null) try {
+			w.handleNamespace("", baseIRI);
+		} catch (RDFHandlerException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void comment(String comment) {
+		try {
+			w.handleComment(comment);
+		} catch (RDFHandlerException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void visit(IQuad q) {
+		long s = dictionary.getOrAddId(q.getSubject());
+		long p = dictionary.getOrAddId(q.getProperty());
+		long o = dictionary.getOrAddId(q.getObject());
+		long g = dictionary.getOrAddId(q.getGraph());
+		// the sequence number keeps the input order within a group
+		if (bySubject)
+			sorter.add(g, s, seq++, p, o);
+		else sorter.add(g, seq++, s, p, o);
+	}
+
+	@Override
+	public void visit(IQuad[] quads, int count) {
+		for (int i = 0; i < count; i++)
+			visit(quads[i]);
+	}
+
+	@Override
+	public void endProlog() {
+		try {
+			w.startRDF();
+		} catch (RDFHandlerException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void close() {
+		RDFIOMetrics.bufferedQuads(seq);
+		try {
+			ExternalLongTupleSorter.ITupleReader r = sorter.sorted();
+			long[] t = new long[5];
+			// tuples come grouped, so decode graphs and subjects once per group
+			long g = OffHeapTermDictionary.NO_TERM, s = 0;
+			IRDFObject go = null, so = null;
+			int si = bySubject ? 1 : 2;
+			while (r.next(t)) {
+				if (t[0] != g) {
+					g = t[0];
+					go = dictionary.get(g);
+				}
+				if (t[si] != s) {
+					s = t[si];
+					so = dictionary.get(s);
+				}
+				w.handleStatement(OpenRDFRDFObjectUtil.getStatementForQuad(so, dictionary.get(t[3]), dictionary.get(t[4]), go));
+			}
+			w.endRDF();
+			output.close();
+		} catch (RDFHandlerException e) {
+			throw new RuntimeException(e);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			sorter.close();
+			dictionary.close();
+		}
+	}
+
+}
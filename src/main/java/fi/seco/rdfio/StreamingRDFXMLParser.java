@@ -0,0 +1,660 @@
+package fi.seco.rdfio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.openrdf.rio.RDFParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.seco.openrdf.IllegalURICorrectingValueFactory;
+import fi.seco.rdfio.RDFReader.IRDFHandler;
+import fi.seco.rdfobject.BNodeResourceRDFObject;
+import fi.seco.rdfobject.IRDFObject;
+import fi.seco.rdfobject.LiteralRDFObject;
+import fi.seco.rdfobject.Quad;
+import fi.seco.rdfobject.URIResourceRDFObject;
+import fi.seco.util.LocaleUtil;
+
+/**
+ * A lenient streaming RDF/XML parser on top of StAX. Walks the document with
+ * a cursor, passing quads to the handler as soon as their terms are known,
+ * so memory use only depends on the nesting depth. Property and type URIs are
+ * cached by qualified name, so repeated elements don't build their URIs
+ * again.
+ * <p>
+ * Only XML well-formedness errors stop parsing. Violations of the RDF/XML
+ * grammar are logged and worked around: unknown and misplaced attributes are
+ * ignored, the unqualified legacy forms of <code>about</code>,
+ * <code>ID</code>, <code>resource</code> etc. are accepted, URIs that can't be
+ * resolved are used as given, extra node elements within a property element
+ * each produce a triple and text content next to <code>rdf:resource</code> is
+ * ignored. URIs are corrected by {@link IllegalURICorrectingValueFactory}
+ * like for the Sesame parsers.
+ * <p>
+ * Namespace declarations are passed to the handler as they are encountered,
+ * the default namespace as the base IRI like for the other parsers used by
+ * {@link RDFReader}. Blank nodes get labels unique to the parse.
+ */
+public final class StreamingRDFXMLParser {
+
+	private static final Logger log = LoggerFactory.getLogger(StreamingRDFXMLParser.class);
+
+	static final String RDF_NS = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+	private static final String XML_LITERAL = RDF_NS + "XMLLiteral";
+
+	private static final int XML_BASE = 1;
+	private static final int XML_LANG = 2;
+	private static final int IGNORED = 3;
+	private static final int RDF_ABOUT = 4;
+	private static final int RDF_ID = 5;
+	private static final int RDF_NODE_ID = 6;
+	private static final int RDF_RESOURCE = 7;
+	private static final int RDF_DATATYPE = 8;
+	private static final int RDF_PARSE_TYPE = 9;
+	private static final int RDF_TYPE = 10;
+	private static final int PROPERTY = 11;
+
+	private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+	static {
+		factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		factory.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, true);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+	}
+
+	private final XMLStreamReader r;
+	private final IRDFObject dg;
+	private final IRDFHandler handler;
+	private final RDFObjectCache cache;
+	private final String bnodePrefix;
+	private long bnodes;
+	private final Map<String, Map<String, IRDFObject>> qnames = new HashMap<String, Map<String, IRDFObject>>();
+	private final Map<String, Locale> locales = new HashMap<String, Locale>();
+	private String lastBase;
+	private URI lastBaseURI;
+
+	private final IRDFObject rdfType;
+	private final IRDFObject rdfFirst;
+	private final IRDFObject rdfRest;
+	private final IRDFObject rdfNil;
+
+	private StreamingRDFXMLParser(XMLStreamReader r, IRDFObject dg, IRDFHandler handler, RDFObjectCache cache) {
+		this.r = r;
+		this.dg = dg;
+		this.handler = handler;
+		this.cache = cache;
+		this.bnodePrefix = "x" + Long.toString(System.nanoTime() & 0xFFFFFFFFFFL, 36);
+		this.rdfType = qname(RDF_NS, "type");
+		this.rdfFirst = qname(RDF_NS, "first");
+		this.rdfRest = qname(RDF_NS, "rest");
+		this.rdfNil = qname(RDF_NS, "nil");
+	}
+
+	/**
+	 * Parse RDF/XML, streaming quads and namespaces to an RDF handler
+	 *
+	 * @param baseURI
+	 *            the URI to resolve relative URIs against, unless overridden
+	 *            by <code>xml:base</code>
+	 * @param dg
+	 *            the graph of the quads
+	 * @param cache
+	 *            a term cache to resolve URIs through, or <code>null</code>
+	 * @throws RDFParseException
+	 *             if the document is not well-formed XML
+	 */
+	public static void parse(InputStream in, String baseURI, IRDFObject dg, IRDFHandler handler, RDFObjectCache cache) throws IOException, RDFParseException {
+		XMLStreamReader r;
+		try {
+			r = factory.createXMLStreamReader(in);
+		} catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+		try {
+			new StreamingRDFXMLParser(r, dg, handler, cache).document(baseURI == null ? "" : stripFragment(baseURI));
+		} catch (XMLStreamException e) {
+			Location l = e.getLocation();
+			if (l == null) throw new RDFParseException(e.getMessage(), e);
+			throw new RDFParseException(e.getMessage(), e, l.getLineNumber(), l.getColumnNumber());
+		} finally {
+			try {
+				r.close();
+			} catch (XMLStreamException e) {
+				log.error("", e);
+			}
+		}
+	}
+
+	private void document(String base) throws XMLStreamException {
+		while (r.hasNext())
+			if (r.next() == XMLStreamConstants.START_ELEMENT) {
+				if (RDF_NS.equals(r.getNamespaceURI()) && "RDF".equals(r.getLocalName())) {
+					namespaces();
+					String lang = null;
+					for (int i = 0, n = r.getAttributeCount(); i < n; i++)
+						switch (classify(i)) {
+						case XML_BASE:
+							base = resolve(base, r.getAttributeValue(i));
+							break;
+						case XML_LANG:
+							lang = r.getAttributeValue(i);
+							break;
+						}
+					while (true) {
+						int e = r.next();
+						if (e == XMLStreamConstants.START_ELEMENT)
+							nodeElement(base, lang, null, null);
+						else if (e == XMLStreamConstants.END_ELEMENT) break;
+					}
+				} else nodeElement(base, null, null, null);
+				return;
+			}
+	}
+
+	/**
+	 * Pass the namespaces declared on the current element to the handler
+	 */
+	private void namespaces() {
+		for (int i = 0, n = r.getNamespaceCount(); i < n; i++) {
+			String prefix = r.getNamespacePrefix(i);
+			if (prefix == null || prefix.isEmpty())
+				handler.setBaseIRI(r.getNamespaceURI(i));
+			else handler.setNameSpace(prefix, r.getNamespaceURI(i));
+		}
+	}
+
+	/**
+	 * @return what the attribute at the index of the current element is
+	 */
+	private int classify(int i) {
+		String ns = r.getAttributeNamespace(i);
+		String local = r.getAttributeLocalName(i);
+		if (ns == null || ns.isEmpty()) {
+			// the legacy unqualified forms of the RDF attributes
+			int c = classifyRDF(local);
+			if (c == PROPERTY) {
+				if (log.isDebugEnabled()) log.debug("Ignoring unqualified attribute " + local + locationString());
+				return IGNORED;
+			}
+			return c;
+		}
+		if (XMLConstants.XML_NS_URI.equals(ns)) {
+			if ("base".equals(local)) return XML_BASE;
+			if ("lang".equals(local)) return XML_LANG;
+			return IGNORED;
+		}
+		if (RDF_NS.equals(ns)) return classifyRDF(local);
+		return PROPERTY;
+	}
+
+	private static int classifyRDF(String local) {
+		if ("about".equals(local)) return RDF_ABOUT;
+		if ("ID".equals(local)) return RDF_ID;
+		if ("nodeID".equals(local)) return RDF_NODE_ID;
+		if ("resource".equals(local)) return RDF_RESOURCE;
+		if ("datatype".equals(local)) return RDF_DATATYPE;
+		if ("parseType".equals(local)) return RDF_PARSE_TYPE;
+		if ("type".equals(local)) return RDF_TYPE;
+		if ("bagID".equals(local) || "aboutEach".equals(local) || "aboutEachPrefix".equals(local) || "li".equals(local)) return IGNORED;
+		return PROPERTY;
+	}
+
+	private String locationString() {
+		Location l = r.getLocation();
+		return l == null ? "" : " at line " + l.getLineNumber() + ", column " + l.getColumnNumber();
+	}
+
+	private void emit(IRDFObject s, IRDFObject p, IRDFObject o) {
+		handler.visit(new Quad(s, p, o, dg));
+	}
+
+	/**
+	 * Parse the node element starting at the current event, up to and
+	 * including its end
+	 *
+	 * @param ls
+	 *            the subject of a triple linking to the node, or
+	 *            <code>null</code>
+	 * @param lp
+	 *            the property of the triple linking to the node
+	 * @return the node
+	 */
+	private IRDFObject nodeElement(String base, String lang, IRDFObject ls, IRDFObject lp) throws XMLStreamException {
+		namespaces();
+		String about = null, id = null, nodeID = null;
+		boolean attributes = false;
+		for (int i = 0, n = r.getAttributeCount(); i < n; i++)
+			switch (classify(i)) {
+			case XML_BASE:
+				base = resolve(base, r.getAttributeValue(i));
+				break;
+			case XML_LANG:
+				lang = r.getAttributeValue(i);
+				break;
+			case RDF_ABOUT:
+				about = r.getAttributeValue(i);
+				break;
+			case RDF_ID:
+				id = r.getAttributeValue(i);
+				break;
+			case RDF_NODE_ID:
+				nodeID = r.getAttributeValue(i);
+				break;
+			case RDF_TYPE:
+			case PROPERTY:
+				attributes = true;
+				break;
+			case IGNORED:
+				break;
+			default:
+				if (log.isDebugEnabled()) log.debug("Ignoring " + r.getAttributeLocalName(i) + " on a node element" + locationString());
+			}
+		IRDFObject s;
+		if (about != null)
+			s = uri(resolve(base, about));
+		else if (id != null)
+			s = uri(resolve(base, "#" + id));
+		else if (nodeID != null)
+			s = nodeID(nodeID);
+		else s = bnode();
+		if (ls != null) emit(ls, lp, s);
+		if (!RDF_NS.equals(r.getNamespaceURI()) || !"Description".equals(r.getLocalName())) emit(s, rdfType, qname(r.getNamespaceURI(), r.getLocalName()));
+		if (attributes) propertyAttributes(s, base, lang);
+		propertyElements(s, base, lang);
+		return s;
+	}
+
+	/**
+	 * Emit the property attributes of the current element as triples about
+	 * the subject
+	 */
+	private void propertyAttributes(IRDFObject s, String base, String lang) {
+		for (int i = 0, n = r.getAttributeCount(); i < n; i++) {
+			int c = classify(i);
+			if (c == RDF_TYPE)
+				emit(s, rdfType, uri(resolve(base, r.getAttributeValue(i))));
+			else if (c == PROPERTY) emit(s, qname(r.getAttributeNamespace(i), r.getAttributeLocalName(i)), literal(r.getAttributeValue(i), lang, null));
+		}
+	}
+
+	/**
+	 * Parse property elements up to and including the end of the current
+	 * node element
+	 */
+	private void propertyElements(IRDFObject s, String base, String lang) throws XMLStreamException {
+		int li = 0;
+		while (true) {
+			int e = r.next();
+			// text between property elements is not meaningful
+			if (e == XMLStreamConstants.START_ELEMENT)
+				li = propertyElement(s, base, lang, li);
+			else if (e == XMLStreamConstants.END_ELEMENT) return;
+		}
+	}
+
+	/**
+	 * Parse the property element starting at the current event, up to and
+	 * including its end
+	 *
+	 * @param li
+	 *            the number of <code>rdf:li</code> elements of the subject
+	 *            so far
+	 * @return the number of <code>rdf:li</code> elements including this one
+	 */
+	private int propertyElement(IRDFObject s, String base, String lang, int li) throws XMLStreamException {
+		namespaces();
+		IRDFObject p;
+		if (RDF_NS.equals(r.getNamespaceURI()) && "li".equals(r.getLocalName()))
+			p = uri(RDF_NS + "_" + ++li);
+		else p = qname(r.getNamespaceURI(), r.getLocalName());
+		String id = null, datatype = null, parseType = null, resource = null, nodeID = null;
+		// the property attributes as namespace, local name and value
+		List<String> attributes = null;
+		for (int i = 0, n = r.getAttributeCount(); i < n; i++)
+			switch (classify(i)) {
+			case XML_BASE:
+				base = resolve(base, r.getAttributeValue(i));
+				break;
+			case XML_LANG:
+				lang = r.getAttributeValue(i);
+				break;
+			case RDF_ID:
+				id = r.getAttributeValue(i);
+				break;
+			case RDF_NODE_ID:
+				nodeID = r.getAttributeValue(i);
+				break;
+			case RDF_RESOURCE:
+				resource = r.getAttributeValue(i);
+				break;
+			case RDF_DATATYPE:
+				datatype = r.getAttributeValue(i);
+				break;
+			case RDF_PARSE_TYPE:
+				parseType = r.getAttributeValue(i);
+				break;
+			case RDF_TYPE:
+			case PROPERTY:
+				if (attributes == null) attributes = new ArrayList<String>();
+				attributes.add(r.getAttributeNamespace(i));
+				attributes.add(r.getAttributeLocalName(i));
+				attributes.add(r.getAttributeValue(i));
+				break;
+			case IGNORED:
+				break;
+			default:
+				if (log.isDebugEnabled()) log.debug("Ignoring " + r.getAttributeLocalName(i) + " on a property element" + locationString());
+			}
+		if (parseType != null) {
+			IRDFObject o;
+			if ("Resource".equals(parseType)) {
+				o = bnode();
+				emit(s, p, o);
+				propertyElements(o, base, lang);
+			} else if ("Collection".equals(parseType))
+				o = collection(s, p, base, lang);
+			else {
+				// Literal, and by the specification any other parse type
+				o = literal(xmlLiteral(), null, XML_LITERAL);
+				emit(s, p, o);
+			}
+			if (id != null) reify(base, id, s, p, o);
+			return li;
+		}
+		String text = null;
+		IRDFObject o = null;
+		while (true) {
+			int e = r.next();
+			if (e == XMLStreamConstants.START_ELEMENT) {
+				IRDFObject n = nodeElement(base, lang, s, p);
+				if (o == null)
+					o = n;
+				else if (log.isDebugEnabled()) log.debug("Multiple node elements in a property element" + locationString());
+			} else if (e == XMLStreamConstants.END_ELEMENT)
+				break;
+			else if (o == null && (e == XMLStreamConstants.CHARACTERS || e == XMLStreamConstants.CDATA || e == XMLStreamConstants.SPACE))
+				text = text == null ? r.getText() : text + r.getText();
+		}
+		if (o == null) {
+			if ((resource != null || nodeID != null || attributes != null) && isBlank(text)) {
+				if (resource != null)
+					o = uri(resolve(base, resource));
+				else if (nodeID != null)
+					o = nodeID(nodeID);
+				else o = bnode();
+				emit(s, p, o);
+				if (attributes != null) for (int i = 0; i < attributes.size(); i += 3)
+					if (RDF_NS.equals(attributes.get(i)) && "type".equals(attributes.get(i + 1)) || (attributes.get(i) == null || attributes.get(i).isEmpty()) && "type".equals(attributes.get(i + 1)))
+						emit(o, rdfType, uri(resolve(base, attributes.get(i + 2))));
+					else emit(o, qname(attributes.get(i), attributes.get(i + 1)), literal(attributes.get(i + 2), lang, null));
+			} else {
+				if (resource != null || nodeID != null) if (log.isDebugEnabled()) log.debug("Ignoring a resource reference on a property element with text" + locationString());
+				o = datatype != null ? literal(text == null ? "" : text, null, resolve(base, datatype)) : literal(text == null ? "" : text, lang, null);
+				emit(s, p, o);
+			}
+		}
+		if (id != null) reify(base, id, s, p, o);
+		return li;
+	}
+
+	private static boolean isBlank(String s) {
+		if (s == null) return true;
+		for (int i = 0; i < s.length(); i++)
+			if (!Character.isWhitespace(s.charAt(i))) return false;
+		return true;
+	}
+
+	/**
+	 * Parse the node elements of a collection up to and including the end of
+	 * the current property element, linking the subject to the list
+	 *
+	 * @return the head of the list
+	 */
+	private IRDFObject collection(IRDFObject s, IRDFObject p, String base, String lang) throws XMLStreamException {
+		IRDFObject head = null;
+		IRDFObject last = null;
+		while (true) {
+			int e = r.next();
+			if (e == XMLStreamConstants.START_ELEMENT) {
+				IRDFObject cell = bnode();
+				if (last == null) {
+					head = cell;
+					emit(s, p, cell);
+				} else emit(last, rdfRest, cell);
+				nodeElement(base, lang, cell, rdfFirst);
+				last = cell;
+			} else if (e == XMLStreamConstants.END_ELEMENT) break;
+		}
+		if (last == null) {
+			emit(s, p, rdfNil);
+			return rdfNil;
+		}
+		emit(last, rdfRest, rdfNil);
+		return head;
+	}
+
+	private void reify(String base, String id, IRDFObject s, IRDFObject p, IRDFObject o) {
+		IRDFObject st = uri(resolve(base, "#" + id));
+		emit(st, rdfType, qname(RDF_NS, "Statement"));
+		emit(st, qname(RDF_NS, "subject"), s);
+		emit(st, qname(RDF_NS, "predicate"), p);
+		emit(st, qname(RDF_NS, "object"), o);
+	}
+
+	/**
+	 * Serialize the contents of the current element as XML, up to and
+	 * including its end. Namespaces used within the literal but declared
+	 * outside it are declared where first used.
+	 */
+	private String xmlLiteral() throws XMLStreamException {
+		StringBuilder sb = new StringBuilder();
+		// the prefixes declared in the literal, with the depth they were declared at
+		List<String> declared = new ArrayList<String>();
+		List<Integer> depths = new ArrayList<Integer>();
+		int depth = 0;
+		while (true)
+			switch (r.next()) {
+			case XMLStreamConstants.START_ELEMENT:
+				depth++;
+				sb.append('<');
+				appendName(sb, r.getPrefix(), r.getLocalName());
+				for (int i = 0, n = r.getNamespaceCount(); i < n; i++)
+					declare(sb, r.getNamespacePrefix(i), r.getNamespaceURI(i), declared, depths, depth);
+				declare(sb, r.getPrefix(), r.getNamespaceURI(), declared, depths, depth);
+				for (int i = 0, n = r.getAttributeCount(); i < n; i++)
+					if (r.getAttributePrefix(i) != null && !r.getAttributePrefix(i).isEmpty()) declare(sb, r.getAttributePrefix(i), r.getAttributeNamespace(i), declared, depths, depth);
+				for (int i = 0, n = r.getAttributeCount(); i < n; i++) {
+					sb.append(' ');
+					appendName(sb, r.getAttributePrefix(i), r.getAttributeLocalName(i));
+					sb.append("=\"");
+					escape(sb, r.getAttributeValue(i), true);
+					sb.append('"');
+				}
+				sb.append('>');
+				break;
+			case XMLStreamConstants.END_ELEMENT:
+				if (depth == 0) return sb.toString();
+				sb.append("</");
+				appendName(sb, r.getPrefix(), r.getLocalName());
+				sb.append('>');
+				while (!depths.isEmpty() && depths.get(depths.size() - 1) == depth) {
+					depths.remove(depths.size() - 1);
+					declared.remove(declared.size() - 1);
+				}
+				depth--;
+				break;
+			case XMLStreamConstants.CHARACTERS:
+			case XMLStreamConstants.CDATA:
+			case XMLStreamConstants.SPACE:
+				escape(sb, r.getText(), false);
+				break;
+			case XMLStreamConstants.PROCESSING_INSTRUCTION:
+				sb.append("<?").append(r.getPITarget());
+				if (r.getPIData() != null && !r.getPIData().isEmpty()) sb.append(' ').append(r.getPIData());
+				sb.append("?>");
+				break;
+			}
+	}
+
+	private static void appendName(StringBuilder sb, String prefix, String local) {
+		if (prefix != null && !prefix.isEmpty()) sb.append(prefix).append(':');
+		sb.append(local);
+	}
+
+	/**
+	 * Declare a namespace within an XML literal unless it already is
+	 */
+	private static void declare(StringBuilder sb, String prefix, String ns, List<String> declared, List<Integer> depths, int depth) {
+		if (prefix == null) prefix = "";
+		if (ns == null) ns = "";
+		String key = prefix + '\u0000' + ns;
+		for (int i = declared.size() - 1; i >= 0; i--) {
+			String d = declared.get(i);
+			if (d.equals(key)) return;
+			// redeclared within the literal
+			if (d.startsWith(prefix + '\u0000')) break;
+		}
+		if (prefix.isEmpty() && ns.isEmpty() && declared.isEmpty()) return;
+		declared.add(key);
+		depths.add(depth);
+		sb.append(prefix.isEmpty() ? " xmlns" : " xmlns:" + prefix).append("=\"");
+		escape(sb, ns, true);
+		sb.append('"');
+	}
+
+	private static void escape(StringBuilder sb, String s, boolean attribute) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			switch (c) {
+			case '&':
+				sb.append("&amp;");
+				break;
+			case '<':
+				sb.append("&lt;");
+				break;
+			case '>':
+				sb.append("&gt;");
+				break;
+			case '"':
+				if (attribute)
+					sb.append("&quot;");
+				else sb.append(c);
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+	}
+
+	private static String stripFragment(String uri) {
+		int i = uri.indexOf('#');
+		return i == -1 ? uri : uri.substring(0, i);
+	}
+
+	/**
+	 * @return whether the URI reference has a scheme
+	 */
+	private static boolean isAbsolute(String ref) {
+		for (int i = 0; i < ref.length(); i++) {
+			char c = ref.charAt(i);
+			if (c == ':') return i > 0;
+			if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || i > 0 && (c >= '0' && c <= '9' || c == '+' || c == '-' || c == '.'))) return false;
+		}
+		return false;
+	}
+
+	/**
+	 * Resolve a URI reference against a base, leaving it as is if it can't
+	 * be resolved
+	 */
+	private String resolve(String base, String ref) {
+		if (isAbsolute(ref)) return ref;
+		if (ref.isEmpty()) return stripFragment(base);
+		if (ref.charAt(0) == '#') return stripFragment(base) + ref;
+		try {
+			if (!base.equals(lastBase)) {
+				URI b = new URI(base);
+				// java.net.URI drops the slash between an authority and a relative path
+				if (b.getRawAuthority() != null && (b.getRawPath() == null || b.getRawPath().isEmpty())) b = new URI(base + "/");
+				lastBaseURI = b;
+				lastBase = base;
+			}
+			return lastBaseURI.resolve(ref).toString();
+		} catch (Exception e) {
+			if (log.isDebugEnabled()) log.debug("Couldn't resolve " + ref + " against " + base + locationString());
+			return ref;
+		}
+	}
+
+	/**
+	 * @return the URI as corrected by the Sesame parsers, or as given if it
+	 *         can't be
+	 */
+	private static String correct(String uri) {
+		try {
+			return IllegalURICorrectingValueFactory.instance.createURI(uri).stringValue();
+		} catch (IllegalArgumentException e) {
+			return uri;
+		}
+	}
+
+	private IRDFObject uri(String uri) {
+		IRDFObject o = new URIResourceRDFObject(correct(uri));
+		return cache == null ? o : cache.intern(o);
+	}
+
+	/**
+	 * @return the URI of a qualified name, cached
+	 */
+	private IRDFObject qname(String ns, String local) {
+		if (ns == null) ns = "";
+		Map<String, IRDFObject> m = qnames.get(ns);
+		if (m == null) {
+			m = new HashMap<String, IRDFObject>();
+			qnames.put(ns, m);
+		}
+		IRDFObject o = m.get(local);
+		if (o == null) {
+			o = uri(ns + local);
+			m.put(local, o);
+		}
+		return o;
+	}
+
+	private IRDFObject bnode() {
+		return new BNodeResourceRDFObject(bnodePrefix + "b" + ++bnodes);
+	}
+
+	private IRDFObject nodeID(String id) {
+		return new BNodeResourceRDFObject(bnodePrefix + "n" + id);
+	}
+
+	private IRDFObject literal(String value, String lang, String datatype) {
+		Locale l = null;
+		if (lang != null && !lang.isEmpty()) {
+			l = locales.get(lang);
+			if (l == null) {
+				l = LocaleUtil.parseLocaleString(lang);
+				locales.put(lang, l);
+			}
+		}
+		IRDFObject o = new LiteralRDFObject(value, l, datatype == null ? null : correct(datatype));
+		return cache == null || value.length() > RDFObjectCache.MAX_LITERAL_LENGTH ? o : cache.intern(o);
+	}
+
+}
@@ -0,0 +1,387 @@
+package fi.seco.rdfio;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fi.seco.rdfio.RDFReader.IRDFBatchHandler;
+import fi.seco.rdfio.RDFWriter.IRDFWriter;
+import fi.seco.rdfobject.IQuad;
+import fi.seco.rdfobject.IRDFObject;
+
+/**
+ * A streaming pretty printer for Turtle and N3. Triples are collected into
+ * per subject blocks in a window of bounded size. When the window fills up,
+ * the oldest blocks are written out, abbreviating repeated predicates with
+ * <code>;</code> and objects with <code>,</code>, and using prefixed names
+ * where possible. Blank nodes are written by label, encoded with
+ * {@link BNodeLabelEncoder}.
+ * <p>
+ * Memory use is bounded by the window size. Output is most compact for
+ * subject clustered input. For input known to keep all references to a blank
+ * node and its description close together, such as subject clustered or
+ * sorted output of a model, blank nodes referenced exactly once within the
+ * window can be written inline as <code>[ ... ]</code>. This is decided on
+ * what is in the window, so with other input a blank node referenced again
+ * after its inlined use would be split in two. Such cases are detected within
+ * a bounded history and logged.
+ */
+public class StreamingTurtleWriter implements IRDFWriter, IRDFBatchHandler {
+
+	private static final Logger log = LoggerFactory.getLogger(StreamingTurtleWriter.class);
+
+	/** The default number of triples kept in the window */
+	public static final int DEFAULT_WINDOW_SIZE = 10000;
+
+	private static final String RDF_TYPE = "http://www.w3.org/1999/02/22-rdf-syntax-ns#type";
+
+	private static final class Block {
+		final IRDFObject subject;
+		final LinkedHashMap<IRDFObject, List<IRDFObject>> predicateObjects = new LinkedHashMap<IRDFObject, List<IRDFObject>>();
+
+		Block(IRDFObject subject) {
+			this.subject = subject;
+		}
+	}
+
+	/** A bounded set of blank nodes, forgetting the oldest ones */
+	private static final class BoundedSet extends LinkedHashMap<IRDFObject, Boolean> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		BoundedSet(int capacity) {
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<IRDFObject, Boolean> eldest) {
+			return size() > capacity;
+		}
+
+	}
+
+	private final Writer out;
+	private final int windowSize;
+	private final boolean inlineBlankNodes;
+	private final LinkedHashMap<IRDFObject, Block> blocks = new LinkedHashMap<IRDFObject, Block>();
+	/** references to blank nodes from blocks in the window */
+	private final Map<IRDFObject, int[]> bnodeReferences = new HashMap<IRDFObject, int[]>();
+	/** blank nodes written out inline */
+	private final BoundedSet inlined;
+	/** blank nodes written out by label */
+	private final BoundedSet labeled;
+	private final Map<String, String> prefixes = new LinkedHashMap<String, String>();
+	private final Map<String, String> namespaces = new HashMap<String, String>();
+	private final List<IRDFObject> inlineStack = new ArrayList<IRDFObject>();
+	private int windowed;
+	private boolean prologWritten;
+	private boolean warned;
+
+	/**
+	 * @param output
+	 *            the stream to write to
+	 * @param windowSize
+	 *            the maximum number of triples kept in the window
+	 */
+	public StreamingTurtleWriter(OutputStream output, int windowSize) {
+		this(output, windowSize, false);
+	}
+
+	/**
+	 * @param inlineBlankNodes
+	 *            whether to write blank nodes referenced once inline. Only
+	 *            for input clustered so that all references to a blank node
+	 *            and its description fall within the window.
+	 * @see #StreamingTurtleWriter(OutputStream, int)
+	 */
+	public StreamingTurtleWriter(OutputStream output, int windowSize, boolean inlineBlankNodes) {
+		this.inlineBlankNodes = inlineBlankNodes;
+		this.out = new BufferedWriter(new OutputStreamWriter(output, Charset.forName("UTF-8")), 64 * 1024);
+		this.windowSize = windowSize;
+		this.inlined = new BoundedSet(windowSize * 4);
+		this.labeled = new BoundedSet(windowSize * 4);
+	}
+
+	@Override
+	public void setNameSpace(String prefix, String ns) {
+		String old = prefixes.put(prefix, ns);
+		if (old != null) namespaces.remove(old);
+		namespaces.put(ns, prefix);
+		if (prologWritten) try {
+			writePrefix(prefix, ns);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void setBaseIRI(String baseIRI) {
+		if (baseIRI != null) setNameSpace("", baseIRI);
+	}
+
+	@Override
+	public void comment(String comment) {
+		try {
+			out.write("# ");
+			out.write(comment.replace('\n', ' ').replace('\r', ' '));
+			out.write('\n');
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void writePrefix(String prefix, String ns) throws IOException {
+		out.write("@prefix ");
+		out.write(prefix);
+		out.write(": <");
+		writeIRIContent(ns);
+		out.write("> .\n");
+	}
+
+	@Override
+	public void endProlog() {
+		try {
+			for (Map.Entry<String, String> e : prefixes.entrySet())
+				writePrefix(e.getKey(), e.getValue());
+			if (!prefixes.isEmpty()) out.write('\n');
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		prologWritten = true;
+	}
+
+	@Override
+	public void visit(IQuad q) {
+		IRDFObject s = q.getSubject();
+		IRDFObject o = q.getObject();
+		if (!warned && (inlined.containsKey(s) || inlined.containsKey(o))) {
+			log.warn("Blank node " + (inlined.containsKey(s) ? s : o) + " used again after being written inline, output will split it. Increase the window size or cluster the input by subject.");
+			warned = true;
+		}
+		Block b = blocks.get(s);
+		if (b == null) {
+			b = new Block(s);
+			blocks.put(s, b);
+		}
+		List<IRDFObject> objects = b.predicateObjects.get(q.getProperty());
+		if (objects == null) {
+			objects = new ArrayList<IRDFObject>(1);
+			b.predicateObjects.put(q.getProperty(), objects);
+		}
+		objects.add(o);
+		if (o.isBlankNode()) {
+			int[] c = bnodeReferences.get(o);
+			if (c == null) bnodeReferences.put(o, c = new int[1]);
+			c[0]++;
+		}
+		if (++windowed > windowSize) try {
+			while (windowed > windowSize / 2 && !blocks.isEmpty())
+				writeOldestBlock();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void visit(IQuad[] quads, int count) {
+		for (int i = 0; i < count; i++)
+			visit(quads[i]);
+	}
+
+	private void writeOldestBlock() throws IOException {
+		Iterator<Block> i = blocks.values().iterator();
+		Block b = i.next();
+		i.remove();
+		writeNode(b.subject, 0);
+		out.write(' ');
+		writePredicateObjects(b, 1);
+		out.write(" .\n\n");
+		release(b);
+	}
+
+	/**
+	 * Remove a block from the window accounting
+	 */
+	private void release(Block b) {
+		for (List<IRDFObject> objects : b.predicateObjects.values()) {
+			windowed -= objects.size();
+			for (IRDFObject o : objects)
+				if (o.isBlankNode()) {
+					int[] c = bnodeReferences.get(o);
+					if (c != null && --c[0] == 0) bnodeReferences.remove(o);
+				}
+		}
+	}
+
+	private boolean isType(IRDFObject p) {
+		return p.isURIResource() && RDF_TYPE.equals(p.getURI());
+	}
+
+	private void writePredicateObjects(Block b, int depth) throws IOException {
+		boolean first = true;
+		List<IRDFObject> types = null;
+		for (Map.Entry<IRDFObject, List<IRDFObject>> e : b.predicateObjects.entrySet())
+			if (isType(e.getKey())) types = e.getValue();
+		if (types != null) {
+			out.write("a ");
+			writeObjects(types, depth);
+			first = false;
+		}
+		for (Map.Entry<IRDFObject, List<IRDFObject>> e : b.predicateObjects.entrySet()) {
+			if (isType(e.getKey())) continue;
+			if (!first) {
+				out.write(" ;\n");
+				indent(depth);
+			}
+			first = false;
+			writeNode(e.getKey(), depth);
+			out.write(' ');
+			writeObjects(e.getValue(), depth);
+		}
+	}
+
+	private void writeObjects(List<IRDFObject> objects, int depth) throws IOException {
+		for (int i = 0; i < objects.size(); i++) {
+			if (i > 0) out.write(", ");
+			IRDFObject o = objects.get(i);
+			if (o.isBlankNode() && canInline(o)) {
+				Block ob = blocks.remove(o);
+				// this block's reference to it has been written
+				bnodeReferences.remove(o);
+				inlined.put(o, Boolean.TRUE);
+				inlineStack.add(o);
+				out.write('[');
+				out.write('\n');
+				indent(depth + 1);
+				writePredicateObjects(ob, depth + 1);
+				out.write('\n');
+				indent(depth);
+				out.write(']');
+				inlineStack.remove(inlineStack.size() - 1);
+				release(ob);
+			} else writeNode(o, depth);
+		}
+	}
+
+	private boolean canInline(IRDFObject o) {
+		if (!inlineBlankNodes) return false;
+		int[] c = bnodeReferences.get(o);
+		return c != null && c[0] == 1 && blocks.containsKey(o) && !labeled.containsKey(o) && !inlineStack.contains(o);
+	}
+
+	private void indent(int depth) throws IOException {
+		for (int i = 0; i < depth; i++)
+			out.write("    ");
+	}
+
+	private void writeNode(IRDFObject o, int depth) throws IOException {
+		if (o.isLiteral())
+			writeLiteral(o);
+		else if (o.isBlankNode()) {
+			labeled.put(o, Boolean.TRUE);
+			out.write("_:");
+			out.write(BNodeLabelEncoder.encode(o.getURI()));
+		} else writeIRI(o.getURI());
+	}
+
+	private void writeIRI(String iri) throws IOException {
+		int i = Math.max(iri.lastIndexOf('#'), Math.max(iri.lastIndexOf('/'), iri.lastIndexOf(':')));
+		if (i != -1) {
+			String prefix = namespaces.get(iri.substring(0, i + 1));
+			if (prefix != null && isLocalName(iri, i + 1)) {
+				out.write(prefix);
+				out.write(':');
+				out.write(iri, i + 1, iri.length() - i - 1);
+				return;
+			}
+		}
+		out.write('<');
+		writeIRIContent(iri);
+		out.write('>');
+	}
+
+	private static boolean isLocalName(String s, int start) {
+		// conservative, as older parsers reject local names starting with a digit
+		if (start < s.length() && !(Character.isLetter(s.charAt(start)) || s.charAt(start) == '_')) return false;
+		for (int i = start; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (!(Character.isLetterOrDigit(c) || c == '_' || c == '-')) return false;
+		}
+		return true;
+	}
+
+	private void writeIRIContent(String iri) throws IOException {
+		for (int i = 0; i < iri.length(); i++) {
+			char c = iri.charAt(i);
+			if (c <= 0x20 || c == '<' || c == '>' || c == '"' || c == '{' || c == '}' || c == '|' || c == '^' || c == '`' || c == '\\')
+				out.write(String.format("\\u%04X", (int) c));
+			else out.write(c);
+		}
+	}
+
+	private void writeLiteral(IRDFObject o) throws IOException {
+		String v = o.getValue();
+		out.write('"');
+		for (int i = 0; i < v.length(); i++) {
+			char c = v.charAt(i);
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+			case '\\':
+				out.write("\\\\");
+				break;
+			case '\n':
+				out.write("\\n");
+				break;
+			case '\r':
+				out.write("\\r");
+				break;
+			case '\t':
+				out.write("\\t");
+				break;
+			default:
+				if (c < 0x20)
+					out.write(String.format("\\u%04X", (int) c));
+				else out.write(c);
+			}
+		}
+		out.write('"');
+		Locale l = o.getLang();
+		String dt = o.getDatatype();
+		if (l != null) {
+			out.write('@');
+			out.write(l.toString().replace('_', '-'));
+		} else if (dt != null) {
+			out.write("^^");
+			writeIRI(dt);
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			while (!blocks.isEmpty())
+				writeOldestBlock();
+			out.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package fi.seco.rdfio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+import fi.seco.rdfio.ParallelDecompressingInputStream.ISegmenter;
+import fi.seco.rdfio.ParallelDecompressingInputStream.Segment;
+
+/**
+ * Splits a local multi-block xz file into its blocks using the xz index.
+ * Blocks are decoded by seeking to them in a per-thread seekable xz stream.
+ */
+final class XZBlockSegmenter implements ISegmenter {
+
+	private final File file;
+	private final int blocks;
+	private int nextBlock;
+	private final List<SeekableXZInputStream> opened = new ArrayList<SeekableXZInputStream>();
+	private final ThreadLocal<SeekableXZInputStream> streams = new ThreadLocal<SeekableXZInputStream>() {
+
+		@Override
+		protected SeekableXZInputStream initialValue() {
+			try {
+				SeekableXZInputStream s = new SeekableXZInputStream(new SeekableFileInputStream(file));
+				synchronized (opened) {
+					opened.add(s);
+				}
+				return s;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+	};
+
+	/**
+	 * @return the number of blocks in the xz file
+	 * @throws IOException
+	 */
+	static int getBlockCount(File file) throws IOException {
+		SeekableXZInputStream s = new SeekableXZInputStream(new SeekableFileInputStream(file));
+		try {
+			return s.getBlockCount();
+		} finally {
+			s.close();
+		}
+	}
+
+	public XZBlockSegmenter(File file) throws IOException {
+		this.file = file;
+		this.blocks = getBlockCount(file);
+	}
+
+	private final class BlockSegment extends Segment {
+		private final int block;
+
+		BlockSegment(int block) {
+			this.block = block;
+		}
+
+		@Override
+		public byte[] decode() {
+			SeekableXZInputStream s = streams.get();
+			try {
+				s.seekToBlock(block);
+				long size = s.getBlockSize(block);
+				if (size > Integer.MAX_VALUE) throw new IOException("xz block too large to decode in memory: " + size);
+				byte[] ret = new byte[(int) size];
+				int len = 0;
+				int r;
+				while (len < ret.length && (r = s.read(ret, len, ret.length - len)) != -1)
+					len += r;
+				if (len < ret.length) throw new IOException("Truncated xz block " + block);
+				return ret;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	@Override
+	public Segment next() {
+		if (nextBlock == blocks) return null;
+		return new BlockSegment(nextBlock++);
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (opened) {
+			for (SeekableXZInputStream s : opened)
+				s.close();
+			opened.clear();
+		}
+	}
+
+}